@@ -0,0 +1,581 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LibraNet Benchmarks – throughput & latency of the LibraryCatalog hot paths, results as JSON
+ *
+ * Usage: java LibraNetBench [--sizes 1000,100000,1000000,10000000] [--threads 1,4]
+ *                           [--warmup 3] [--iterations 5] [--time-ms 1000]
+ *                           [--filter name,...] [--footprint true] [--stress true] [--out results.json]
+ * Large catalogs need heap: the 10M-item run wants roughly -Xmx4g.
+ */
+public class LibraNetBench {
+    /* ---------------------------
+       Benchmark definitions
+       --------------------------- */
+    static final int HOT_SET = 16;
+    static final int USERS = 1000;
+    static final int CART = 10;
+
+    interface Op {
+        /** Untimed per-op setup (e.g. borrowing the item a timed return needs). */
+        default void prepare(State s, int thread, long n) throws Exception {}
+        /** Timed section; returns false when the call ended in an expected failure. */
+        boolean run(State s, int thread, long n) throws Exception;
+    }
+
+    static final class Benchmark {
+        final String name;
+        final boolean contended;
+        final boolean perSize;   // false: independent of the catalog, run once at the first size only
+        final Op op;
+        Benchmark(String name, boolean contended, Op op) { this(name, contended, true, op); }
+        Benchmark(String name, boolean contended, boolean perSize, Op op) {
+            this.name = name; this.contended = contended; this.perSize = perSize; this.op = op;
+        }
+    }
+
+    static final class State {
+        final int size;
+        final LibraNetDemo.LibraryCatalog catalog;
+        final LibraNetDemo.User[] users = new LibraNetDemo.User[USERS];
+        final LocalDate onTime = LocalDate.now();
+        State(int size) {
+            this.size = size;
+            this.catalog = buildCatalog(size);
+            for (int u = 0; u < USERS; u++) users[u] = new LibraNetDemo.User(u + 1, "user-" + (u + 1));
+            // seed the fine ledger: one late return per user where the catalog is big enough
+            try {
+                for (int u = 0; u < Math.min(USERS, size); u++) {
+                    catalog.borrowItem(u + 1, users[u], "1 day");
+                    catalog.returnItem(u + 1, onTime.plusDays(1 + u % 30));
+                }
+            } catch (LibraNetDemo.LibraryException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+        /** Returns anything a previous benchmark left on loan so every run starts from a fully available catalog. */
+        void reset() throws LibraNetDemo.LibraryException {
+            catalog.setStacklessFailures(false);
+            catalog.setItemLocking(LibraNetDemo.ItemLocking.CAS);
+            for (int id = 1; id <= size; id++) {
+                if (catalog.getItem(id).getCurrentBorrowRecord() != null) catalog.returnItem(id, onTime);
+            }
+        }
+        int randomId() { return 1 + ThreadLocalRandom.current().nextInt(size); }
+        /** Items [1, size] are split into one contiguous partition per thread so uncontended runs never collide. */
+        int partitionedId(int thread, int threads, long n) {
+            int span = Math.max(1, size / threads);
+            return 1 + thread * span + (int) (n % span);
+        }
+        /** First id of a CART-sized run that lies wholly inside the thread's partition (and the catalog). */
+        int cartStart(int thread, int threads, long n) {
+            int span = Math.max(1, size / threads);
+            return 1 + thread * span + (int) (n * CART % Math.max(1, span - CART + 1));
+        }
+        int hotId(long n) { return 1 + (int) (n % Math.min(HOT_SET, size)); }
+        LibraNetDemo.User user(long n) { return users[(int) (n % USERS)]; }
+
+        private Map<Integer, LibraNetDemo.LibraryItem> boxedItems;
+        /** The catalog's former storage (boxed keys in a ConcurrentHashMap), built on first use for comparison runs. */
+        synchronized Map<Integer, LibraNetDemo.LibraryItem> boxedItems() throws LibraNetDemo.LibraryException {
+            if (boxedItems == null) {
+                boxedItems = new java.util.concurrent.ConcurrentHashMap<>();
+                for (int id = 1; id <= size; id++) boxedItems.put(id, catalog.getItem(id));
+            }
+            return boxedItems;
+        }
+    }
+
+    static LibraNetDemo.LibraryCatalog buildCatalog(int size) {
+        LibraNetDemo.LibraryCatalog catalog = new LibraNetDemo.LibraryCatalog();
+        catalog.setEventSink(LibraNetDemo.LibraryEventSink.NO_OP);
+        for (int id = 1; id <= size; id++) {
+            switch (id % 20) {
+                case 0: case 1: case 2: catalog.addItem(new LibraNetDemo.EMagazine(id, "Issue " + id, "Editor Team", id % 500)); break;
+                case 3: case 4: case 5: case 6: case 7: catalog.addItem(new LibraNetDemo.Audiobook(id, "Audio " + id, "Narrator " + (id % 97), 3600)); break;
+                default: catalog.addItem(new LibraNetDemo.Book(id, "Book " + id, "Author " + (id % 997), 300));
+            }
+        }
+        return catalog;
+    }
+
+    static List<Benchmark> benchmarks(int threads) {
+        List<Benchmark> list = new ArrayList<>();
+        list.add(new Benchmark("getItem", false, (s, t, n) -> { s.catalog.getItem(s.randomId()); return true; }));
+        list.add(new Benchmark("getItemConcurrentHashMap", false, (s, t, n) -> s.boxedItems().get(s.randomId()) != null));
+        list.add(new Benchmark("borrowItem", false, new Op() {
+            @Override public boolean run(State s, int t, long n) throws Exception {
+                s.catalog.borrowItem(s.partitionedId(t, threads, n), s.user(n), "14 days");
+                return true;
+            }
+            @Override public void prepare(State s, int t, long n) throws Exception {
+                LibraNetDemo.LibraryItem it = s.catalog.getItem(s.partitionedId(t, threads, n));
+                if (!it.isAvailable()) s.catalog.returnItem(it.getId(), s.onTime);
+            }
+        }));
+        list.add(new Benchmark("returnItem", false, new Op() {
+            @Override public void prepare(State s, int t, long n) throws Exception {
+                LibraNetDemo.LibraryItem it = s.catalog.getItem(s.partitionedId(t, threads, n));
+                if (it.isAvailable()) s.catalog.borrowItem(it.getId(), s.user(n), "14 days");
+            }
+            @Override public boolean run(State s, int t, long n) throws Exception {
+                s.catalog.returnItem(s.partitionedId(t, threads, n), s.onTime);
+                return true;
+            }
+        }));
+        list.add(new Benchmark("borrowReturn", false, (s, t, n) -> {
+            int id = s.partitionedId(t, threads, n);
+            s.catalog.borrowItem(id, s.user(n), "2 weeks");
+            s.catalog.returnItem(id, s.onTime);
+            return true;
+        }));
+        // Every thread fights over the same handful of titles: mostly ItemUnavailable / ItemNotBorrowed.
+        list.add(new Benchmark("borrowReturnContended", true, (s, t, n) -> {
+            int id = s.hotId(n + t);
+            try {
+                s.catalog.borrowItem(id, s.user(n), "7 days");
+                s.catalog.returnItem(id, s.onTime);
+                return true;
+            } catch (LibraNetDemo.ItemUnavailableException | LibraNetDemo.ItemNotBorrowedException ex) {
+                return false;
+            }
+        }));
+        list.add(new Benchmark("tryBorrowReturn", false, (s, t, n) -> {
+            int id = s.partitionedId(t, threads, n);
+            return s.catalog.tryBorrow(id, s.user(n), "2 weeks").isSuccess() && s.catalog.tryReturn(id, s.onTime).isSuccess();
+        }));
+        list.add(new Benchmark("tryBorrowReturnContended", true, (s, t, n) -> {
+            int id = s.hotId(n + t);
+            return s.catalog.tryBorrow(id, s.user(n), "7 days").isSuccess() && s.catalog.tryReturn(id, s.onTime).isSuccess();
+        }));
+        // a 10-item self-checkout cart: one call per item versus one borrowAll / returnAll per cart
+        list.add(new Benchmark("cartOneByOne", false, (s, t, n) -> {
+            int first = s.cartStart(t, threads, n);
+            boolean ok = true;
+            for (int i = 0; i < CART; i++) ok &= s.catalog.tryBorrow(first + i, s.user(n), "2 weeks").isSuccess();
+            for (int i = 0; i < CART; i++) ok &= s.catalog.tryReturn(first + i, s.onTime).isSuccess();
+            return ok;
+        }));
+        list.add(new Benchmark("cartBatch", false, (s, t, n) -> {
+            int first = s.cartStart(t, threads, n);
+            int[] cart = new int[CART];
+            for (int i = 0; i < CART; i++) cart[i] = first + i;
+            boolean ok = true;
+            for (LibraNetDemo.BorrowResult r : s.catalog.borrowAll(cart, s.user(n), "2 weeks", LibraNetDemo.BatchMode.ALL_OR_NOTHING)) ok &= r.isSuccess();
+            for (LibraNetDemo.BorrowResult r : s.catalog.returnAll(cart, s.onTime, LibraNetDemo.BatchMode.ALL_OR_NOTHING)) ok &= r.isSuccess();
+            return ok;
+        }));
+        list.add(new Benchmark("itemTransitionsCas", true, transitions(LibraNetDemo.ItemLocking.CAS)));
+        list.add(new Benchmark("itemTransitionsStriped", true, transitions(LibraNetDemo.ItemLocking.STRIPED)));
+        list.add(new Benchmark("borrowUnavailable", true, unavailable(false, false)));
+        list.add(new Benchmark("borrowUnavailableStackless", true, unavailable(true, false)));
+        list.add(new Benchmark("tryBorrowUnavailable", true, unavailable(false, true)));
+        list.add(new Benchmark("searchByType", false, (s, t, n) -> {
+            s.catalog.searchByType(LibraNetDemo.Audiobook.class);
+            return true;
+        }));
+        list.add(new Benchmark("getAccumulatedFineForUser", false, (s, t, n) -> {
+            s.catalog.getAccumulatedFineForUser(1 + (int) (n % USERS));
+            return true;
+        }));
+        // eight hot users shared by all threads: the ledger's LongAdder cells vs the former BigDecimal merge
+        list.add(new Benchmark("fineAccrual", true, false, (s, t, n) -> {
+            LEDGER.accrue((int) (n & 7), 1000);
+            return true;
+        }));
+        list.add(new Benchmark("fineAccrualBigDecimalMerge", true, false, (s, t, n) -> {
+            BOXED_FINES.merge((int) (n & 7), BigDecimal.TEN, BigDecimal::add);
+            return true;
+        }));
+        list.add(new Benchmark("parseId", false, false, (s, t, n) -> {
+            LibraNetDemo.IdParser.parseId(ID_INPUTS[(int) (n & (ID_INPUTS.length - 1))]);
+            return true;
+        }));
+        list.add(new Benchmark("parseIdRegex", false, false, (s, t, n) -> {
+            LibraNetDemo.IdParser.parseIdRegex(ID_INPUTS[(int) (n & (ID_INPUTS.length - 1))]);
+            return true;
+        }));
+        list.add(new Benchmark("parseIdBytes", false, false, (s, t, n) -> {
+            byte[] b = ID_BYTES[(int) (n & (ID_BYTES.length - 1))];
+            LibraNetDemo.IdParser.parseId(b, 0, b.length);
+            return true;
+        }));
+        list.add(new Benchmark("parseToDays", false, false, (s, t, n) -> {
+            LibraNetDemo.DurationParser.parseToDays(DURATIONS[(int) (n & (DURATIONS.length - 1))]);
+            return true;
+        }));
+        return list;
+    }
+
+    /** All threads borrow or return one of four titles, whichever the title allows: same-item collisions only. */
+    static Op transitions(LibraNetDemo.ItemLocking mode) {
+        return new Op() {
+            @Override public void prepare(State s, int t, long n) { s.catalog.setItemLocking(mode); }
+            @Override public boolean run(State s, int t, long n) {
+                int id = 1 + (int) (n & 3);
+                LibraNetDemo.BorrowResult r = s.catalog.tryBorrow(id, s.user(n), "7 days");
+                if (r.getStatus() == LibraNetDemo.BorrowResult.Status.UNAVAILABLE) r = s.catalog.tryReturn(id, s.onTime);
+                return r.isSuccess();
+            }
+        };
+    }
+
+    /**
+     * Runs {@link #transitions} flat out in the given mode, then checks that every successful borrow and return
+     * left the catalog consistent: items on loan = borrows - returns = loans in the user index.
+     */
+    static String stress(State s, LibraNetDemo.ItemLocking mode, int threads, long timeMs) throws Exception {
+        s.reset();
+        s.catalog.setItemLocking(mode);
+        long[] borrows = new long[threads], returns = new long[threads];
+        Thread[] workers = new Thread[threads];
+        long end = System.nanoTime() + timeMs * 1_000_000L;
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                while (System.nanoTime() < end) {
+                    int id = 1 + rnd.nextInt(Math.min(4, s.size));
+                    if (rnd.nextBoolean()) { if (s.catalog.tryBorrow(id, s.user(rnd.nextInt(USERS)), "7 days").isSuccess()) borrows[thread]++; }
+                    else if (s.catalog.tryReturn(id, s.onTime).isSuccess()) returns[thread]++;
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread w : workers) w.join();
+        long ops = 0, net = 0, onLoan = 0, indexed = 0;
+        for (int t = 0; t < threads; t++) { ops += borrows[t] + returns[t]; net += borrows[t] - returns[t]; }
+        for (int id = 1; id <= Math.min(4, s.size); id++) {
+            LibraNetDemo.LibraryItem it = s.catalog.getItem(id);
+            if ((it.getCurrentBorrowRecord() != null) != (it.getStatus() == LibraNetDemo.AvailabilityStatus.BORROWED)) {
+                throw new IllegalStateException("Item " + id + " has status " + it.getStatus() + " and loan " + it.getCurrentBorrowRecord());
+            }
+            if (it.getCurrentBorrowRecord() != null) onLoan++;
+        }
+        for (LibraNetDemo.User u : s.users) indexed += s.catalog.countActiveLoans(u.getId());
+        if (net != onLoan || indexed != onLoan) {
+            throw new IllegalStateException(mode + ": borrows - returns = " + net + ", on loan = " + onLoan + ", user index = " + indexed);
+        }
+        return String.format("%-28s size=%-9d threads=%-3d %14.1f transitions/s  consistent (%d on loan)",
+                "stress" + mode, s.size, threads, ops * 1000.0 / timeMs, onLoan);
+    }
+
+    /** Borrow attempts against titles that are already out: the ItemUnavailableException path. */
+    static Op unavailable(boolean stackless, boolean nonThrowing) {
+        return new Op() {
+            @Override public void prepare(State s, int t, long n) throws Exception {
+                s.catalog.setStacklessFailures(stackless);
+                LibraNetDemo.LibraryItem it = s.catalog.getItem(s.hotId(n));
+                if (it.isAvailable()) {
+                    try { s.catalog.borrowItem(it.getId(), s.user(n), "7 days"); }
+                    catch (LibraNetDemo.ItemUnavailableException raced) { /* someone else took it */ }
+                }
+            }
+            @Override public boolean run(State s, int t, long n) throws Exception {
+                if (nonThrowing) return s.catalog.tryBorrow(s.hotId(n), s.user(n), "7 days").isSuccess();
+                try {
+                    s.catalog.borrowItem(s.hotId(n), s.user(n), "7 days");
+                    return true;
+                } catch (LibraNetDemo.ItemUnavailableException ex) {
+                    return false;
+                }
+            }
+        };
+    }
+
+    static final LibraNetDemo.FineLedger LEDGER = new LibraNetDemo.FineLedger();
+    static final Map<Integer, BigDecimal> BOXED_FINES = new java.util.concurrent.ConcurrentHashMap<>();
+    static final String[] DURATIONS = { "14 days", "2 weeks", "7 days", "P14D", "1 fortnight", "21", "3 Weeks", "1 month" };
+    static final String[] ID_INPUTS = new String[64];
+    static final byte[][] ID_BYTES = new byte[64][];
+    static {
+        Random r = new Random(42);
+        for (int i = 0; i < ID_INPUTS.length; i++) {
+            String id = Integer.toString(r.nextInt(Integer.MAX_VALUE));
+            ID_INPUTS[i] = i % 4 == 0 ? " " + id + " " : id;
+            ID_BYTES[i] = ID_INPUTS[i].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /* ---------------------------
+       Harness
+       --------------------------- */
+    static final class Histogram {
+        // 64 magnitudes x 16 linear sub-buckets: ~6% relative error, fixed footprint
+        private final long[] counts = new long[64 * 16];
+        private long total, max;
+
+        void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            counts[index(nanos)]++;
+            total++;
+            if (nanos > max) max = nanos;
+        }
+        static int index(long v) {
+            if (v < 16) return (int) v;
+            int mag = 63 - Long.numberOfLeadingZeros(v);
+            int sub = (int) (v >>> (mag - 4)) & 15;
+            return (mag - 3) * 16 + sub;
+        }
+        static long lowerBound(int idx) {
+            if (idx < 16) return idx;
+            int mag = idx / 16 + 3, sub = idx % 16;
+            return (16L | sub) << (mag - 4);
+        }
+        void add(Histogram o) {
+            for (int i = 0; i < counts.length; i++) counts[i] += o.counts[i];
+            total += o.total;
+            max = Math.max(max, o.max);
+        }
+        long percentile(double p) {
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(p / 100.0 * total), seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(lowerBound(i), max);
+            }
+            return max;
+        }
+    }
+
+    static final class IterationResult {
+        long ops, failures, timedNanos;
+        final Histogram latency = new Histogram();
+        double opsPerSec(int threads) { return timedNanos == 0 ? 0 : ops * 1e9 * threads / timedNanos; }
+    }
+
+    static IterationResult runIteration(Benchmark b, State s, int threads, long timeMs) throws Exception {
+        IterationResult[] perThread = new IterationResult[threads];
+        CountDownLatch start = new CountDownLatch(1), done = new CountDownLatch(threads);
+        AtomicLong counter = new AtomicLong();
+        Exception[] error = new Exception[1];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            perThread[t] = new IterationResult();
+            workers[t] = new Thread(() -> {
+                IterationResult r = perThread[thread];
+                try {
+                    start.await();
+                    long end = System.nanoTime() + timeMs * 1_000_000L;
+                    long n = b.contended ? counter.getAndIncrement() : 0;
+                    while (true) {
+                        b.op.prepare(s, thread, n);
+                        long t0 = System.nanoTime();
+                        boolean ok = b.op.run(s, thread, n);
+                        long t1 = System.nanoTime();
+                        r.latency.record(t1 - t0);
+                        r.timedNanos += t1 - t0;
+                        r.ops++;
+                        if (!ok) r.failures++;
+                        if (t1 >= end) break;
+                        n = b.contended ? counter.getAndIncrement() : n + 1;
+                    }
+                } catch (Exception ex) {
+                    synchronized (error) { error[0] = ex; }
+                } finally {
+                    done.countDown();
+                }
+            }, "bench-" + b.name + "-" + t);
+            workers[t].start();
+        }
+        start.countDown();
+        done.await();
+        if (error[0] != null) throw error[0];
+        IterationResult total = new IterationResult();
+        for (IterationResult r : perThread) {
+            total.ops += r.ops; total.failures += r.failures; total.timedNanos += r.timedNanos;
+            total.latency.add(r.latency);
+        }
+        return total;
+    }
+
+    static final class Result {
+        String benchmark; int size, threads;
+        double[] opsPerSec; long failures;
+        Histogram latency = new Histogram();
+
+        double mean() { double s = 0; for (double v : opsPerSec) s += v; return s / opsPerSec.length; }
+        double stddev() {
+            if (opsPerSec.length < 2) return 0;
+            double m = mean(), s = 0;
+            for (double v : opsPerSec) s += (v - m) * (v - m);
+            return Math.sqrt(s / (opsPerSec.length - 1));
+        }
+    }
+
+    static Result measure(Benchmark b, State s, int threads, int warmup, int iterations, long timeMs) throws Exception {
+        for (int i = 0; i < warmup; i++) runIteration(b, s, threads, timeMs);
+        Result r = new Result();
+        r.benchmark = b.name; r.size = s.size; r.threads = threads;
+        r.opsPerSec = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            IterationResult it = runIteration(b, s, threads, timeMs);
+            r.opsPerSec[i] = it.opsPerSec(threads);
+            r.failures += it.failures;
+            r.latency.add(it.latency);
+        }
+        return r;
+    }
+
+    /* ---------------------------
+       Memory footprint
+       --------------------------- */
+    static final class Footprint {
+        int size;
+        long concurrentHashMapBytes, intObjectMapBytes, intObjectMapEstimateBytes;
+    }
+
+    static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /** Heap retained by the id -> item table alone, old map versus new, for the same (shared) item objects. */
+    static Footprint footprint(int size) {
+        Object[] values = new Object[size + 1];
+        Object shared = new Object();
+        Arrays.fill(values, shared);
+        Footprint f = new Footprint();
+        f.size = size;
+        long before = usedHeap();
+        Map<Integer, Object> chm = new java.util.concurrent.ConcurrentHashMap<>();
+        for (int id = 1; id <= size; id++) chm.put(id, values[id]);
+        f.concurrentHashMapBytes = usedHeap() - before;
+        chm = null;
+        before = usedHeap();
+        LibraNetDemo.IntObjectMap<Object> map = new LibraNetDemo.IntObjectMap<>();
+        for (int id = 1; id <= size; id++) map.put(id, values[id]);
+        f.intObjectMapBytes = usedHeap() - before;
+        f.intObjectMapEstimateBytes = map.footprintBytes();
+        return f;
+    }
+
+    /* ---------------------------
+       JSON output
+       --------------------------- */
+    static String toJson(List<Result> results, List<Footprint> footprints, Map<String, String> params) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n  \"timestamp\": \"").append(Instant.now()).append("\",\n");
+        sb.append("  \"jvm\": \"").append(System.getProperty("java.vm.name")).append(' ')
+          .append(System.getProperty("java.runtime.version")).append("\",\n");
+        sb.append("  \"cpus\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+        sb.append("  \"params\": {");
+        int p = 0;
+        for (Map.Entry<String, String> e : params.entrySet()) {
+            sb.append(p++ == 0 ? "" : ", ").append('"').append(e.getKey()).append("\": \"").append(e.getValue()).append('"');
+        }
+        sb.append("},\n  \"results\": [\n");
+        for (int i = 0; i < results.size(); i++) {
+            Result r = results.get(i);
+            sb.append("    {\"benchmark\": \"").append(r.benchmark).append("\", \"size\": ").append(r.size)
+              .append(", \"threads\": ").append(r.threads)
+              .append(", \"opsPerSec\": ").append(String.format(Locale.ROOT, "%.1f", r.mean()))
+              .append(", \"opsPerSecError\": ").append(String.format(Locale.ROOT, "%.1f", r.stddev()))
+              .append(", \"failures\": ").append(r.failures)
+              .append(", \"latencyNs\": {\"p50\": ").append(r.latency.percentile(50))
+              .append(", \"p90\": ").append(r.latency.percentile(90))
+              .append(", \"p99\": ").append(r.latency.percentile(99))
+              .append(", \"p999\": ").append(r.latency.percentile(99.9))
+              .append(", \"max\": ").append(r.latency.max).append("}}")
+              .append(i + 1 < results.size() ? ",\n" : "\n");
+        }
+        sb.append("  ],\n  \"footprint\": [\n");
+        for (int i = 0; i < footprints.size(); i++) {
+            Footprint f = footprints.get(i);
+            sb.append("    {\"size\": ").append(f.size)
+              .append(", \"concurrentHashMapBytes\": ").append(f.concurrentHashMapBytes)
+              .append(", \"intObjectMapBytes\": ").append(f.intObjectMapBytes)
+              .append(", \"intObjectMapEstimateBytes\": ").append(f.intObjectMapEstimateBytes).append('}')
+              .append(i + 1 < footprints.size() ? ",\n" : "\n");
+        }
+        return sb.append("  ]\n}\n").toString();
+    }
+
+    /* ---------------------------
+       Main
+       --------------------------- */
+    static int[] ints(String csv) { return Arrays.stream(csv.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray(); }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> params = new LinkedHashMap<>();
+        params.put("sizes", "1000,100000,1000000,10000000");
+        params.put("threads", "1," + Math.max(2, Runtime.getRuntime().availableProcessors()));
+        params.put("warmup", "3");
+        params.put("iterations", "5");
+        params.put("time-ms", "1000");
+        params.put("filter", "");
+        params.put("footprint", "false");
+        params.put("stress", "false");
+        params.put("out", "");
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--") || !params.containsKey(args[i].substring(2))) {
+                System.err.println("Unknown option: " + args[i]);
+                return;
+            }
+            params.put(args[i].substring(2), args[i + 1]);
+        }
+        int[] sizes = ints(params.get("sizes")), threadCounts = ints(params.get("threads"));
+        int warmup = Integer.parseInt(params.get("warmup")), iterations = Integer.parseInt(params.get("iterations"));
+        long timeMs = Long.parseLong(params.get("time-ms"));
+        Set<String> filter = new HashSet<>();
+        for (String f : params.get("filter").split(",")) if (!f.trim().isEmpty()) filter.add(f.trim());
+
+        // events go to NO_OP; anything else that prints stays out of the measurement
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        List<Result> results = new ArrayList<>();
+        List<Footprint> footprints = new ArrayList<>();
+        try {
+            boolean firstSize = true;
+            for (int size : sizes) {
+                if (Boolean.parseBoolean(params.get("footprint"))) {
+                    Footprint f = footprint(size);
+                    footprints.add(f);
+                    console.printf("%-28s size=%-9d ConcurrentHashMap=%,d B  IntObjectMap=%,d B (estimate %,d B)%n",
+                            "footprint", size, f.concurrentHashMapBytes, f.intObjectMapBytes, f.intObjectMapEstimateBytes);
+                }
+                State state = new State(size);
+                for (int threads : threadCounts) {
+                    for (Benchmark b : benchmarks(threads)) {
+                        if (!filter.isEmpty() && !filter.contains(b.name)) continue;
+                        if (!b.perSize && !firstSize) continue;
+                        state.reset();
+                        Result r = measure(b, state, threads, warmup, iterations, timeMs);
+                        results.add(r);
+                        console.printf("%-28s size=%-9d threads=%-3d %14.1f ops/s  +- %-10.1f p50=%dns p99=%dns%n",
+                                r.benchmark, r.size, r.threads, r.mean(), r.stddev(),
+                                r.latency.percentile(50), r.latency.percentile(99));
+                    }
+                    if (Boolean.parseBoolean(params.get("stress"))) {
+                        for (LibraNetDemo.ItemLocking mode : LibraNetDemo.ItemLocking.values()) console.println(stress(state, mode, threads, timeMs));
+                    }
+                }
+                firstSize = false;
+            }
+        } finally {
+            System.setOut(console);
+        }
+        String json = toJson(results, footprints, params);
+        if (params.get("out").isEmpty()) {
+            System.out.print(json);
+        } else {
+            Path out = Paths.get(params.get("out"));
+            Files.write(out, json.getBytes(StandardCharsets.UTF_8));
+            System.out.println("Results written to " + out.toAbsolutePath());
+        }
+    }
+}
@@ -0,0 +1,640 @@
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LibraNet Checks – end-to-end scenarios for crash recovery and concurrency that the demo does not exercise.
+ * Each check builds catalogs in its own temporary directory and throws on the first wrong answer.
+ *
+ * Usage: java LibraNetChecks [--filter name,...]
+ * Exits with status 1 if any check fails.
+ */
+public class LibraNetChecks {
+    interface Check { void run(Path dir) throws Exception; }
+
+    static final Clock CLOCK = Clock.fixed(Instant.parse("2026-01-01T10:00:00Z"), ZoneOffset.UTC);
+
+    static Map<String, Check> checks() {
+        Map<String, Check> all = new LinkedHashMap<>();
+        all.put("walDamagedTail", LibraNetChecks::walDamagedTail);
+        all.put("walWriteFailure", LibraNetChecks::walWriteFailure);
+        all.put("walSnapshotAheadOfLostTail", LibraNetChecks::walSnapshotAheadOfLostTail);
+        all.put("snapshotDuringAdds", LibraNetChecks::snapshotDuringAdds);
+        all.put("importerLineNumbers", LibraNetChecks::importerLineNumbers);
+        all.put("itemInTwoCatalogs", LibraNetChecks::itemInTwoCatalogs);
+        all.put("replaceItemOnLoan", LibraNetChecks::replaceItemOnLoan);
+        all.put("searchPrefixOverManyWords", LibraNetChecks::searchPrefixOverManyWords);
+        all.put("statusCountsUnderReplacement", LibraNetChecks::statusCountsUnderReplacement);
+        all.put("dueDatePruneRace", LibraNetChecks::dueDatePruneRace);
+        all.put("abortedClaimsDoNotFailOthers", LibraNetChecks::abortedClaimsDoNotFailOthers);
+        all.put("asyncSinkClose", LibraNetChecks::asyncSinkClose);
+        all.put("holdHandoffOnReturn", LibraNetChecks::holdHandoffOnReturn);
+        all.put("holdHandoffRace", LibraNetChecks::holdHandoffRace);
+        return all;
+    }
+
+    /* ---------------------------
+       Write-ahead log and snapshots
+       --------------------------- */
+
+    /**
+     * A crash can leave the log's last record half written or garbled. Recovery must keep every record before it,
+     * drop the rest, and append after the good prefix so that the next recovery sees new writes too.
+     */
+    static void walDamagedTail(Path dir) throws Exception {
+        int n = 200;
+        Path live = dir.resolve("live");
+        try (LibraNetDemo.LibraryCatalog c = open(live)) {
+            for (int id = 1; id <= n; id++) c.addItem(new LibraNetDemo.Book(id, "Book " + id, "Author", 100));
+        }
+        Path segment = last(LibraNetDemo.WriteAheadLog.segments(live));
+        long size = Files.size(segment);
+        long[] cuts = {size - 1, size - 9, size - 23, size / 2, size / 2 + 5, 30};
+        for (long cut : cuts) {
+            Path crashed = dir.resolve("cut-" + cut);
+            copy(live, crashed, segment.getFileName(), cut);
+            int kept = expectPrefix(crashed, n);
+            expect(kept < n, "a log cut at byte " + cut + " of " + size + " to lose its last record");
+            appendAfterRecovery(crashed, kept);
+        }
+        // a flipped byte inside the last record: the checksum must catch it
+        Path garbled = dir.resolve("garbled");
+        copy(live, garbled, null, 0);
+        try (FileChannel ch = FileChannel.open(garbled.resolve(segment.getFileName()), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            ch.read(b, size - 3);
+            b.put(0, (byte) ~b.get(0)).rewind();
+            ch.write(b, size - 3);
+        }
+        int kept = expectPrefix(garbled, n);
+        expect(kept == n - 1, "a garbled last record to be dropped alone, kept " + kept + " of " + n);
+        appendAfterRecovery(garbled, kept);
+    }
+
+    /** Recovers {@code dir} and checks that it holds items 1..k and none after; returns k. */
+    static int expectPrefix(Path dir, int n) throws Exception {
+        try (LibraNetDemo.LibraryCatalog c = open(dir)) {
+            expect(c.getWriteAheadLog().getDiscardedBytes() > 0, "recovery to report the damaged tail it cut off");
+            int kept = c.countByType(LibraNetDemo.LibraryItem.class);
+            Set<Integer> ids = new HashSet<>();
+            c.streamByType(LibraNetDemo.LibraryItem.class).forEach(item -> ids.add(item.getId()));
+            for (int id = 1; id <= n; id++) {
+                boolean present = ids.contains(id);
+                expect(present == (id <= kept), "items 1.." + kept + " only, item " + id + (present ? " present" : " missing"));
+            }
+            return kept;
+        }
+    }
+
+    /** Writes after recovering the good prefix, then checks that a second recovery has both. */
+    static void appendAfterRecovery(Path dir, int kept) throws Exception {
+        int id = 1_000_000;
+        try (LibraNetDemo.LibraryCatalog c = open(dir)) {
+            c.addItem(new LibraNetDemo.Book(id, "After", "Author", 100));
+            c.borrowItem(id, user(1), "7 days");
+        }
+        try (LibraNetDemo.LibraryCatalog c = open(dir)) {
+            expect(c.getWriteAheadLog().getDiscardedBytes() == 0, "nothing left to cut off");
+            expect(c.countByType(LibraNetDemo.LibraryItem.class) == kept + 1, (kept + 1) + " items after the second recovery, found " + c.countByType(LibraNetDemo.LibraryItem.class));
+            expectBorrower(c, id, 1);
+        }
+    }
+
+    /**
+     * Once a write to the log fails, the log must take no more changes: the failing change and every later one
+     * report the error, and nothing is retried, so recovery sees exactly what was logged before.
+     */
+    static void walWriteFailure(Path dir) throws Exception {
+        LibraNetDemo.LibraryCatalog c = LibraNetDemo.LibraryCatalog.recover(dir, LibraNetDemo.WriteAheadLog.SyncPolicy.COMMIT, CLOCK);
+        c.setEventSink(LibraNetDemo.LibraryEventSink.NO_OP);
+        for (int id = 1; id <= 3; id++) c.addItem(new LibraNetDemo.Book(id, "Book " + id, "Author", 100));
+        c.borrowItem(1, user(1), "7 days");
+        // the I/O error: the segment's channel goes away under the log
+        java.lang.reflect.Field segment = LibraNetDemo.WriteAheadLog.class.getDeclaredField("segment");
+        segment.setAccessible(true);
+        ((FileChannel) segment.get(c.getWriteAheadLog())).close();
+        expectFailure(() -> c.tryBorrow(2, user(2), "7 days"), "the borrow whose record could not be written");
+        expect(c.getWriteAheadLog().getFailure() != null, "the log to report its failure");
+        expectFailure(() -> c.tryBorrow(3, user(3), "7 days"), "a borrow after the failure");
+        expectBorrower(c, 3, 0);
+        expectFailure(() -> c.addItem(new LibraNetDemo.Book(4, "Book 4", "Author", 100)), "an add after the failure");
+        expectFailure(c::close, "close to report the failure");
+        try (LibraNetDemo.LibraryCatalog r = open(dir)) {
+            expect(r.getWriteAheadLog().getDiscardedBytes() == 0, "an intact log");
+            expect(r.countByType(LibraNetDemo.LibraryItem.class) == 3, "3 items after recovery");
+            expectBorrower(r, 1, 1);
+            expectBorrower(r, 2, 0);
+            r.borrowItem(3, user(3), "7 days");
+        }
+        try (LibraNetDemo.LibraryCatalog r = open(dir)) {
+            expectBorrower(r, 3, 3);
+        }
+    }
+
+    /**
+     * A snapshot can cover records that were still in the log's buffer when the process died. Recovery must
+     * continue numbering after the snapshot without the next recovery taking the jump for a damaged tail.
+     */
+    static void walSnapshotAheadOfLostTail(Path dir) throws Exception {
+        Path live = dir.resolve("live"), crashed = dir.resolve("crashed");
+        try (LibraNetDemo.LibraryCatalog c = open(live)) {
+            for (int id = 1; id <= 10; id++) c.addItem(new LibraNetDemo.Book(id, "Book " + id, "Author", 100));
+            c.borrowItem(1, user(1), "7 days");
+            c.borrowItem(2, user(2), "7 days");
+        }
+        Path segment = last(LibraNetDemo.WriteAheadLog.segments(live));
+        long flushed = Files.size(segment);
+        try (LibraNetDemo.LibraryCatalog c = open(live)) {
+            c.borrowItem(3, user(3), "7 days");
+            c.returnItem(1);
+            c.writeSnapshot(live);
+            // the crash: the snapshot is on disk, the log records behind it are not
+            copy(live, crashed, segment.getFileName(), flushed);
+        }
+        try (LibraNetDemo.LibraryCatalog c = open(crashed)) {
+            expectBorrower(c, 3, 3);
+            expectBorrower(c, 1, 0);
+            c.borrowItem(4, user(4), "7 days");
+            c.returnItem(2);
+        }
+        try (LibraNetDemo.LibraryCatalog c = open(crashed)) {
+            expectBorrower(c, 1, 0);
+            expectBorrower(c, 2, 0);
+            expectBorrower(c, 3, 3);
+            expectBorrower(c, 4, 4);
+        }
+    }
+
+    /**
+     * A snapshot may only let the log go up to LSNs it fully reflects. Adds are the only records here, so item k
+     * is logged at LSN k and a snapshot starting at LSN s must hold items 1..s.
+     */
+    static void snapshotDuringAdds(Path dir) throws Exception {
+        int n = 20_000;
+        try (LibraNetDemo.LibraryCatalog c = open(dir)) {
+            Thread adder = new Thread(() -> {
+                for (int id = 1; id <= n; id++) c.addItem(new LibraNetDemo.Book(id, "Book " + id, "Author", 100));
+            });
+            adder.start();
+            try {
+                while (adder.isAlive()) {
+                    String name = c.writeSnapshot(dir).getFileName().toString();
+                    long startLsn = Long.parseLong(name.substring("snapshot-".length(), name.length() - ".bin".length()));
+                    try (LibraNetDemo.LibraryCatalog s = LibraNetDemo.LibraryCatalog.loadSnapshot(dir, CLOCK)) {
+                        int held = s.countByType(LibraNetDemo.LibraryItem.class);
+                        expect(held >= startLsn, "a snapshot starting at LSN " + startLsn + " to hold that many items, found " + held);
+                    }
+                }
+            } finally {
+                adder.join();
+            }
+        }
+        try (LibraNetDemo.LibraryCatalog c = open(dir)) {
+            expect(c.countByType(LibraNetDemo.LibraryItem.class) == n, n + " items after recovery, found " + c.countByType(LibraNetDemo.LibraryItem.class));
+        }
+    }
+
+    /* ---------------------------
+       Bulk import
+       --------------------------- */
+
+    /**
+     * Bad and duplicate lines spread over many small chunks. Whatever the thread count, the report must name exactly
+     * those lines (numbered from the top of the file) and the first copy of each id must win.
+     */
+    static void importerLineNumbers(Path dir) throws Exception {
+        int n = 3001;
+        StringBuilder csv = new StringBuilder("type,id,title,author,extra\n");
+        List<Long> rejected = new ArrayList<>();
+        Set<Integer> imported = new HashSet<>();
+        for (int line = 2; line <= n; line++) {
+            boolean good = false;
+            if (line % 50 == 0) {
+                // blank: counted, neither imported nor rejected
+                good = true;
+            } else if (line % 97 == 0) {
+                csv.append("Book,x").append(line).append(",Title,Author,100");
+            } else if (line % 89 == 0) {
+                csv.append("Scroll,").append(line).append(",Title,Author,100");
+            } else if (line % 83 == 0) {
+                csv.append("Book,").append(line).append(",\"Unterminated,Author,100");
+            } else {
+                // duplicates: of a line far behind, in an earlier chunk, or of the line before, usually in this one
+                int id = line % 131 == 0 ? 2 : line % 61 == 0 ? line - 1 : line;
+                csv.append(line % 7 == 0 ? "Audiobook," : "Book,").append(id)
+                        .append(",\"Title, \"\"").append(line).append("\"\"\",Author,").append(100 + line);
+                good = imported.add(id);
+            }
+            if (!good) rejected.add((long) line);
+            if (line < n) csv.append('\n');
+        }
+        Path file = dir.resolve("items.csv");
+        Files.writeString(file, csv);
+        for (int threads : new int[] {1, 4}) {
+            LibraNetDemo.LibraryCatalog c = new LibraNetDemo.LibraryCatalog(CLOCK);
+            c.setEventSink(LibraNetDemo.LibraryEventSink.NO_OP);
+            LibraNetDemo.CatalogImporter importer = new LibraNetDemo.CatalogImporter(c, threads);
+            importer.setChunkBytes(1024);
+            importer.setMaxInFlight(2);
+            LibraNetDemo.CatalogImporter.Report report = importer.importFile(file);
+            List<Long> reported = new ArrayList<>();
+            for (LibraNetDemo.CatalogImporter.LineError e : report.getErrors()) reported.add(e.getLine());
+            expect(report.getLines() == n, n + " lines with " + threads + " thread(s), found " + report.getLines());
+            expect(reported.equals(rejected), "rejected lines " + rejected + " with " + threads + " thread(s), found " + reported);
+            expect(report.getFailed() == rejected.size() && report.getImported() == imported.size(),
+                    imported.size() + " imported and " + rejected.size() + " rejected, found " + report);
+            expect(c.countByType(LibraNetDemo.LibraryItem.class) == imported.size(), imported.size() + " items in the catalog");
+            expect(c.getItem(2).getTitle().equals("Title, \"2\""), "the first line with id 2 to win, found " + c.getItem(2).getTitle());
+        }
+    }
+
+    /* ---------------------------
+       Catalog contents
+       --------------------------- */
+
+    /** An item keeps its index positions on itself, so a second catalog must not be able to take it over. */
+    static void itemInTwoCatalogs(Path dir) throws Exception {
+        LibraNetDemo.LibraryCatalog a = new LibraNetDemo.LibraryCatalog(CLOCK), b = new LibraNetDemo.LibraryCatalog(CLOCK);
+        List<LibraNetDemo.LibraryItem> books = new ArrayList<>();
+        for (int id = 1; id <= 3; id++) books.add(new LibraNetDemo.Book(id, "Book " + id, "Author", 100));
+        a.addItems(books);
+        b.addItem(new LibraNetDemo.Book(9, "Book 9", "Author", 100));
+        for (Runnable add : List.<Runnable>of(() -> b.addItem(books.get(2)), () -> b.addItems(List.of(new LibraNetDemo.Book(8, "Book 8", "Author", 100), books.get(0))))) {
+            try {
+                add.run();
+                throw new AssertionError("expected adding an item of catalog A to B to fail");
+            } catch (IllegalArgumentException expected) {
+                // nothing of a rejected batch is added
+            }
+        }
+        expect(b.countByType(LibraNetDemo.LibraryItem.class) == 1, "B to hold only book 9");
+        LibraNetDemo.Book replacement = new LibraNetDemo.Book(3, "Book 3 v2", "Author", 100);
+        a.addItem(replacement);
+        List<LibraNetDemo.LibraryItem> found = a.searchByType(LibraNetDemo.Book.class);
+        expect(found.size() == 3 && found.contains(books.get(0)) && found.contains(books.get(1)) && found.contains(replacement),
+                "A to list books 1, 2 and the new 3, found " + found);
+        a.addItems(books.subList(0, 2)); // re-adding to the owner is fine
+        expect(a.countByType(LibraNetDemo.LibraryItem.class) == 3, "A still to hold 3 items");
+    }
+
+    /** Replacing an item that is on loan ends the loan everywhere, also when the log is replayed. */
+    static void replaceItemOnLoan(Path dir) throws Exception {
+        try (LibraNetDemo.LibraryCatalog c = open(dir)) {
+            c.setBorrowLimit(1);
+            c.addItem(new LibraNetDemo.Book(1, "Book 1", "Author", 100));
+            c.addItem(new LibraNetDemo.Book(2, "Book 2", "Author", 100));
+            c.borrowItem(1, user(7), "0 days");
+            c.borrowItem(2, user(8), "7 days");
+            c.placeHold(2, user(9), "5 days");
+            c.addItem(new LibraNetDemo.Book(1, "Book 1, 2nd edition", "Author", 100));
+            c.addItems(List.of(new LibraNetDemo.Book(2, "Book 2, 2nd edition", "Author", 100)));
+            expectBorrower(c, 1, 0);
+            expect(c.tryReturn(1).getStatus() == LibraNetDemo.BorrowResult.Status.NOT_BORROWED, "nothing to return on the new item");
+            expect(c.getActiveLoans(7).isEmpty() && c.getActiveLoans(8).isEmpty(), "the old loans gone from users 7 and 8");
+            expectBorrower(c, 2, 9); // the holder gets the new copy
+            expect(c.tryBorrow(1, user(7), "7 days").isSuccess(), "user 7 to be under the limit again");
+        }
+        // three days on, the 0-day loan of the old item 1 would be overdue if it were still indexed
+        try (LibraNetDemo.LibraryCatalog c = open(dir, Clock.offset(CLOCK, Duration.ofDays(3)))) {
+            expect(c.countOverdueLoans() == 0, "no overdue loans, found " + c.getOverdueLoans());
+            expectBorrower(c, 1, 7);
+            expectBorrower(c, 2, 9);
+            expect(c.getActiveLoans(7).size() == 1 && c.getActiveLoans(8).isEmpty(), "one loan for user 7 and none for 8 after recovery");
+            expect(c.countByStatus(LibraNetDemo.AvailabilityStatus.BORROWED) == 2, "two items borrowed after recovery");
+        }
+    }
+
+    /** A prefix matching more words than a union cursor takes still finds, and ranks, every item. */
+    static void searchPrefixOverManyWords(Path dir) throws Exception {
+        LibraNetDemo.LibraryCatalog c = new LibraNetDemo.LibraryCatalog(CLOCK);
+        int words = 3 * LibraNetDemo.TextIndex.MAX_UNION_TERMS;
+        List<LibraNetDemo.LibraryItem> books = new ArrayList<>();
+        for (int id = 1; id <= words; id++) books.add(new LibraNetDemo.Book(id, String.format("w%05d w%05d", id, id), "Author", 100));
+        books.add(new LibraNetDemo.Book(words + 1, "Zebra", "w99999", 100)); // sorts last, and only its author matches
+        c.addItems(books);
+        List<LibraNetDemo.LibraryItem> found = c.search("w*", Integer.MAX_VALUE);
+        expect(found.size() == words + 1, "all " + (words + 1) + " items, found " + found.size());
+        expect(found.get(words).getId() == words + 1, "the author-only match to rank last, found " + found.get(words));
+        expect(c.search("w*", 5).size() == 5, "a limit to still apply");
+        expect(c.search("w0299*", Integer.MAX_VALUE).size() == 10, "a narrow prefix to keep working");
+    }
+
+    /* ---------------------------
+       Concurrency
+       --------------------------- */
+
+    /** Items replaced by addItem while others borrow and return them; the live counts must match a scan. */
+    static void statusCountsUnderReplacement(Path dir) throws Exception {
+        int n = 64;
+        LibraNetDemo.LibraryCatalog c = new LibraNetDemo.LibraryCatalog(CLOCK);
+        c.setEventSink(LibraNetDemo.LibraryEventSink.NO_OP);
+        for (int id = 1; id <= n; id++) c.addItem(new LibraNetDemo.Book(id, "Book " + id, "Author", 100));
+        c.enableStatusSets();
+        runAll(4, t -> {
+            Random r = new Random(t);
+            for (int k = 0; k < 200_000; k++) {
+                int id = 1 + r.nextInt(n);
+                if (t == 0) {
+                    c.addItem(k % 2 == 0 ? new LibraNetDemo.Book(id, "Book " + id, "Author", 100) : new LibraNetDemo.EMagazine(id, "Mag " + id, "Editor", k));
+                } else if (r.nextBoolean()) {
+                    c.tryBorrow(id, user(t), "7 days");
+                } else {
+                    c.tryReturn(id);
+                }
+            }
+        });
+        for (LibraNetDemo.AvailabilityStatus status : LibraNetDemo.AvailabilityStatus.values()) {
+            long scanned = c.streamByType(LibraNetDemo.LibraryItem.class).filter(i -> i.getStatus() == status).count();
+            expect(c.countByStatus(status) == scanned, status + " count " + scanned + ", found " + c.countByStatus(status));
+            expect(c.streamByStatus(status).count() == scanned, status + " set size " + scanned + ", found " + c.streamByStatus(status).count());
+        }
+    }
+
+    /**
+     * The sweeper drops empty past due-day buckets while loans can still land in them (a short loan whose borrow
+     * read the date just before midnight). Every loan added must stay findable.
+     */
+    static void dueDatePruneRace(Path dir) throws Exception {
+        LibraNetDemo.DueDateIndex index = new LibraNetDemo.DueDateIndex();
+        int days = 200_000;
+        AtomicBoolean done = new AtomicBoolean();
+        runAll(2, t -> {
+            if (t == 1) {
+                while (!done.get()) index.pruneBefore(Integer.MAX_VALUE);
+                return;
+            }
+            try {
+                for (int day = 0; day < days; day++) {
+                    LibraNetDemo.BorrowRecord returned = new LibraNetDemo.BorrowRecord(1, day, day, day, BigDecimal.TEN);
+                    index.add(returned);
+                    index.remove(returned); // the bucket is empty now and may be pruned
+                    index.add(new LibraNetDemo.BorrowRecord(2, day, day, day, BigDecimal.TEN));
+                }
+            } finally {
+                done.set(true);
+            }
+        });
+        expect(index.countDueBefore(Integer.MAX_VALUE) == days, days + " loans in the index, found " + index.countDueBefore(Integer.MAX_VALUE));
+    }
+
+    /**
+     * A user at the borrow limit keeps trying an item, so it briefly holds claims that are then aborted. Another
+     * user borrowing and returning that item must never be turned away by those claims.
+     */
+    static void abortedClaimsDoNotFailOthers(Path dir) throws Exception {
+        for (LibraNetDemo.ItemLocking mode : LibraNetDemo.ItemLocking.values()) {
+            LibraNetDemo.LibraryCatalog c = new LibraNetDemo.LibraryCatalog(CLOCK);
+            c.setEventSink(LibraNetDemo.LibraryEventSink.NO_OP);
+            c.setItemLocking(mode);
+            c.setBorrowLimit(1);
+            c.addItem(new LibraNetDemo.Book(1, "Book 1", "Author", 100));
+            c.addItem(new LibraNetDemo.Book(2, "Book 2", "Author", 100));
+            c.borrowItem(2, user(1), "7 days"); // user 1 is at the limit
+            AtomicBoolean done = new AtomicBoolean();
+            int[] refused = new int[1];
+            runAll(2, t -> {
+                if (t == 1) {
+                    while (!done.get()) {
+                        LibraNetDemo.BorrowResult r = c.tryBorrow(1, user(1), "7 days");
+                        expect(!r.isSuccess(), "user 1 never to get past the limit");
+                    }
+                    return;
+                }
+                try {
+                    for (int k = 0; k < 200_000; k++) {
+                        if (!c.tryBorrow(1, user(2), "7 days").isSuccess()) refused[0]++;
+                        c.tryReturn(1);
+                    }
+                } finally {
+                    done.set(true);
+                }
+            });
+            expect(refused[0] == 0, mode + ": user 2 always to get the free item, refused " + refused[0] + " times");
+        }
+    }
+
+    /** Events published while the async sink closes are either delivered or counted as dropped, never lost. */
+    static void asyncSinkClose(Path dir) throws Exception {
+        LibraNetDemo.LibraryEvent event = new LibraNetDemo.LibraryEvent(LibraNetDemo.LibraryEvent.Kind.ARCHIVED,
+                new LibraNetDemo.Book(1, "Book 1", "Author", 100), null, 0, null);
+        for (int round = 0; round < 200; round++) {
+            LongAdder delivered = new LongAdder(), published = new LongAdder();
+            LibraNetDemo.AsyncEventSink sink = new LibraNetDemo.AsyncEventSink(e -> delivered.increment(), 1024);
+            int closeAfter = round * 50;
+            runAll(3, t -> {
+                if (t == 0) {
+                    while (published.sum() < closeAfter) Thread.onSpinWait();
+                    sink.close();
+                    return;
+                }
+                for (int k = 0; k < 20_000; k++) {
+                    sink.publish(event);
+                    published.increment();
+                }
+            });
+            long accounted = delivered.sum() + sink.getDroppedCount();
+            expect(accounted == published.sum(), "round " + round + ": " + published.sum() + " events delivered or dropped, found "
+                    + delivered.sum() + " + " + sink.getDroppedCount());
+        }
+    }
+
+    /* ---------------------------
+       Holds
+       --------------------------- */
+
+    /**
+     * A return with holders waiting lends the item straight to the first of them, for the holder's duration, and
+     * logs that loan so it survives recovery.
+     */
+    static void holdHandoffOnReturn(Path dir) throws Exception {
+        List<LibraNetDemo.LibraryEvent> events = Collections.synchronizedList(new ArrayList<>());
+        try (LibraNetDemo.LibraryCatalog c = open(dir)) {
+            c.setEventSink(events::add);
+            c.addItem(new LibraNetDemo.Book(1, "Book 1", "Author", 100));
+            c.addItem(new LibraNetDemo.Book(2, "Book 2", "Author", 100));
+            c.borrowItem(1, user(1), "7 days");
+            LibraNetDemo.Hold first = c.placeHold(1, user(2), "3 days");
+            c.placeHold(1, user(3), "5 days");
+            expect(c.holdPosition(1, 2) == 1 && c.holdPosition(1, 3) == 2, "holders 2 and 3 in that order");
+            c.returnItem(1);
+            expectBorrower(c, 1, 2);
+            expect(c.getItem(1).getCurrentBorrowRecord().getDueDate().equals(c.today().plusDays(3)), "the holder's 3-day loan");
+            expect(first.getState() == LibraNetDemo.Hold.State.FILLED && c.holdPosition(1, 3) == 1, "the queue to move up");
+            expect(last(events).getKind() == LibraNetDemo.LibraryEvent.Kind.HOLD_READY, "HOLD_READY, found " + last(events));
+            expect(c.countByStatus(LibraNetDemo.AvailabilityStatus.BORROWED) == 1, "one item borrowed");
+            expect(c.getActiveLoans(1).isEmpty() && c.getActiveLoans(2).size() == 1, "the loan to move from user 1 to user 2");
+            c.returnItem(1);
+            expectBorrower(c, 1, 3);
+            c.returnItem(1);
+            expectBorrower(c, 1, 0);
+            // on the shelf: filled at once
+            expect(c.placeHold(2, user(4), "2 days").getState() == LibraNetDemo.Hold.State.FILLED, "a hold on a shelved item to be filled");
+            c.borrowItem(1, user(1), "7 days");
+            c.placeHold(1, user(5), "4 days");
+            c.returnItem(1);
+        }
+        try (LibraNetDemo.LibraryCatalog c = open(dir)) {
+            expectBorrower(c, 1, 5);
+            expectBorrower(c, 2, 4);
+            expect(c.getActiveLoans(5).size() == 1, "the handed-off loan in user 5's loans after recovery");
+        }
+    }
+
+    /**
+     * Walk-up borrowers try the item nonstop while it is returned to a holder. The item must never be free in
+     * between, so the holder has it every time.
+     */
+    static void holdHandoffRace(Path dir) throws Exception {
+        for (LibraNetDemo.ItemLocking mode : LibraNetDemo.ItemLocking.values()) {
+            LibraNetDemo.LibraryCatalog c = new LibraNetDemo.LibraryCatalog(CLOCK);
+            c.setEventSink(LibraNetDemo.LibraryEventSink.NO_OP);
+            c.setItemLocking(mode);
+            c.addItem(new LibraNetDemo.Book(1, "Book 1", "Author", 100));
+            AtomicBoolean done = new AtomicBoolean();
+            runAll(3, t -> {
+                if (t > 0) {
+                    while (!done.get()) c.tryBorrow(1, user(99), "7 days");
+                    return;
+                }
+                try {
+                    for (int holder = 100; holder < 2_100; holder++) {
+                        // take it back from whoever has it, walk-up borrowers included
+                        while (!c.tryBorrow(1, user(1), "7 days").isSuccess()) c.tryReturn(1);
+                        c.placeHold(1, user(holder), "7 days");
+                        c.returnItem(1);
+                        expectBorrower(c, 1, holder);
+                    }
+                } finally {
+                    done.set(true);
+                }
+            });
+            long borrowed = c.streamByType(LibraNetDemo.LibraryItem.class).filter(i -> !i.isAvailable()).count();
+            expect(c.countByStatus(LibraNetDemo.AvailabilityStatus.BORROWED) == borrowed, mode + ": BORROWED count " + borrowed);
+        }
+    }
+
+    /* ---------------------------
+       Helpers
+       --------------------------- */
+
+    static LibraNetDemo.LibraryCatalog open(Path dir) throws IOException { return open(dir, CLOCK); }
+
+    static LibraNetDemo.LibraryCatalog open(Path dir, Clock clock) throws IOException {
+        LibraNetDemo.LibraryCatalog c = LibraNetDemo.LibraryCatalog.recover(dir, LibraNetDemo.WriteAheadLog.SyncPolicy.NONE, clock);
+        c.setEventSink(LibraNetDemo.LibraryEventSink.NO_OP);
+        return c;
+    }
+
+    static LibraNetDemo.User user(int id) { return new LibraNetDemo.User(id, "User " + id); }
+
+    /** {@code userId} 0 means the item must be on the shelf. */
+    static void expectBorrower(LibraNetDemo.LibraryCatalog c, int itemId, int userId) throws Exception {
+        LibraNetDemo.BorrowRecord r = c.getItem(itemId).getCurrentBorrowRecord();
+        int actual = r == null ? 0 : r.getUserId();
+        expect(actual == userId, "item " + itemId + " borrowed by " + userId + ", found " + actual);
+    }
+
+    static void expect(boolean condition, String what) {
+        if (!condition) throw new AssertionError("expected " + what);
+    }
+
+    interface Action { void run() throws Exception; }
+
+    static void expectFailure(Action action, String what) {
+        try {
+            action.run();
+        } catch (Exception expected) {
+            return;
+        }
+        throw new AssertionError("expected " + what + " to fail");
+    }
+
+    interface Worker { void run(int thread) throws Exception; }
+
+    /** Runs {@code worker} on {@code threads} threads at once and rethrows the first failure. */
+    static void runAll(int threads, Worker worker) throws Exception {
+        List<Thread> all = new ArrayList<>();
+        Throwable[] failure = new Throwable[1];
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            all.add(new Thread(() -> {
+                try { worker.run(thread); }
+                catch (Throwable ex) { synchronized (failure) { if (failure[0] == null) failure[0] = ex; } }
+            }));
+        }
+        for (Thread t : all) t.start();
+        for (Thread t : all) t.join();
+        if (failure[0] instanceof Exception) throw (Exception) failure[0];
+        if (failure[0] != null) throw (Error) failure[0];
+    }
+
+    static <T> T last(List<T> list) { return list.get(list.size() - 1); }
+
+    /** Copies {@code from} into {@code to}, keeping only the first {@code keep} bytes of {@code cut} (if not null). */
+    static void copy(Path from, Path to, Path cut, long keep) throws IOException {
+        Files.createDirectories(to);
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(from)) {
+            for (Path f : ds) {
+                Path target = to.resolve(f.getFileName());
+                Files.copy(f, target);
+                if (f.getFileName().equals(cut)) {
+                    try (FileChannel ch = FileChannel.open(target, StandardOpenOption.WRITE)) { ch.truncate(keep); }
+                }
+            }
+        }
+    }
+
+    static void delete(Path dir) throws IOException {
+        if (!Files.exists(dir)) return;
+        try (var walk = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator) Files.delete(p);
+        }
+    }
+
+    /* ---------------------------
+       Main
+       --------------------------- */
+
+    public static void main(String[] args) throws IOException {
+        Set<String> filter = new HashSet<>();
+        for (int i = 0; i < args.length; i += 2) {
+            if (!args[i].equals("--filter") || i + 1 >= args.length) {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(2);
+            }
+            for (String f : args[i + 1].split(",")) if (!f.trim().isEmpty()) filter.add(f.trim());
+        }
+        int failed = 0;
+        for (Map.Entry<String, Check> e : checks().entrySet()) {
+            if (!filter.isEmpty() && !filter.contains(e.getKey())) continue;
+            Path dir = Files.createTempDirectory("libranet-check-");
+            long start = System.nanoTime();
+            try {
+                e.getValue().run(dir);
+                System.out.printf("PASS %-34s %6d ms%n", e.getKey(), (System.nanoTime() - start) / 1_000_000);
+            } catch (Throwable t) {
+                failed++;
+                System.out.printf("FAIL %-34s %s%n", e.getKey(), t);
+                if (!(t instanceof AssertionError)) t.printStackTrace(System.out);
+            } finally {
+                delete(dir);
+            }
+        }
+        if (failed > 0) {
+            System.out.println(failed + " check(s) failed");
+            System.exit(1);
+        }
+    }
+}
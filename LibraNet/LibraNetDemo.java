@@ -1,303 +1,4258 @@
-import java.math.BigDecimal;
-import java.time.LocalDate;
-import java.time.temporal.ChronoUnit;
-import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-/**
- * LibraNet Library Demo – Clean ASCII Output with Fine Summary
- */
-public class LibraNetDemo {
-    /* ---------------------------
-       Enums & Interfaces
-       --------------------------- */
-    public enum AvailabilityStatus { AVAILABLE, BORROWED, ARCHIVED }
-
-    public interface Playable {
-        void play();
-        void pause();
-        void stop();
-        long getPlaybackSeconds();
-    }
-
-    /* ---------------------------
-       Exceptions
-       --------------------------- */
-    public static class LibraryException extends Exception { public LibraryException(String m){ super(m);} }
-    public static class ItemNotFoundException extends LibraryException { public ItemNotFoundException(String m){ super(m);} }
-    public static class ItemUnavailableException extends LibraryException { public ItemUnavailableException(String m){ super(m);} }
-    public static class InvalidDurationFormatException extends LibraryException { public InvalidDurationFormatException(String m){ super(m);} }
-    public static class InvalidIdFormatException extends LibraryException { public InvalidIdFormatException(String m){ super(m);} }
-    public static class ItemNotBorrowedException extends LibraryException { public ItemNotBorrowedException(String m){ super(m);} }
-
-    /* ---------------------------
-       Models
-       --------------------------- */
-    public static abstract class LibraryItem {
-        private final int id;
-        private final String title, author;
-        private AvailabilityStatus status;
-        private final BigDecimal finePerDay = BigDecimal.valueOf(10); // fixed Rs.10/day
-        private BorrowRecord currentBorrow;
-
-        protected LibraryItem(int id, String title, String author) {
-            this.id = id;
-            this.title = Objects.requireNonNull(title);
-            this.author = Objects.requireNonNull(author);
-            this.status = AvailabilityStatus.AVAILABLE;
-        }
-
-        public int getId() { return id; }
-        public String getTitle() { return title; }
-        public String getAuthor() { return author; }
-        public AvailabilityStatus getStatus() { return status; }
-        public boolean isAvailable() { return status == AvailabilityStatus.AVAILABLE; }
-        protected void setStatus(AvailabilityStatus status) { this.status = status; }
-
-        public BigDecimal getFinePerDay() { return finePerDay; }
-
-        void attachBorrowRecord(BorrowRecord r) {
-            this.currentBorrow = r;
-            this.status = AvailabilityStatus.BORROWED;
-        }
-        BorrowRecord detachBorrowRecord() {
-            BorrowRecord temp = currentBorrow;
-            currentBorrow = null;
-            this.status = AvailabilityStatus.AVAILABLE;
-            return temp;
-        }
-        public BorrowRecord getCurrentBorrowRecord() { return currentBorrow; }
-
-        @Override public String toString() {
-            return String.format("%s: \"%s\" by %s (ID: %d) - Status: %s",
-                    this.getClass().getSimpleName(), getTitle(), getAuthor(), getId(), getStatus());
-        }
-    }
-
-    public static class Book extends LibraryItem {
-        private final int pageCount;
-        public Book(int id, String title, String author, int pageCount) {
-            super(id, title, author);
-            this.pageCount = pageCount;
-        }
-        public int getPageCount() { return pageCount; }
-    }
-
-    public static class Audiobook extends LibraryItem implements Playable {
-        private final long playbackSeconds;
-        private boolean isPlaying = false;
-        public Audiobook(int id, String title, String author, long playbackSeconds) {
-            super(id, title, author);
-            this.playbackSeconds = playbackSeconds;
-        }
-        @Override public void play() { isPlaying = true; System.out.println("Playing audiobook: \"" + getTitle() + "\""); }
-        @Override public void pause() { isPlaying = false; System.out.println("Paused: \"" + getTitle() + "\""); }
-        @Override public void stop() { isPlaying = false; System.out.println("Stopped: \"" + getTitle() + "\""); }
-        @Override public long getPlaybackSeconds() { return playbackSeconds; }
-    }
-
-    public static class EMagazine extends LibraryItem {
-        private final int issueNumber;
-        private boolean archived = false;
-        public EMagazine(int id, String title, String author, int issueNumber) {
-            super(id, title, author);
-            this.issueNumber = issueNumber;
-        }
-        public int getIssueNumber() { return issueNumber; }
-        public void archiveIssue() {
-            if (!archived) {
-                archived = true;
-                setStatus(AvailabilityStatus.ARCHIVED);
-                System.out.println("Archived e-magazine issue: " + issueNumber + " (\"" + getTitle() + "\")");
-            }
-        }
-    }
-
-    public static class User {
-        private final int id; private final String name;
-        public User(int id, String name) { this.id = id; this.name = name; }
-        public int getId() { return id; } public String getName() { return name; }
-        @Override public String toString() { return name + " (UserID=" + id + ")"; }
-    }
-
-    public static class BorrowRecord {
-        private final int userId;
-        private final int itemId;
-        private final LocalDate borrowDate;
-        private final LocalDate dueDate;
-        private final BigDecimal finePerDayAtBorrow;
-
-        public BorrowRecord(int userId, int itemId, LocalDate borrowDate, LocalDate dueDate, BigDecimal finePerDayAtBorrow) {
-            this.userId = userId; this.itemId = itemId; this.borrowDate = borrowDate; this.dueDate = dueDate; this.finePerDayAtBorrow = finePerDayAtBorrow;
-        }
-        public int getUserId() { return userId; }
-        public int getItemId() { return itemId; }
-        public LocalDate getBorrowDate() { return borrowDate; }
-        public LocalDate getDueDate() { return dueDate; }
-        public BigDecimal getFinePerDayAtBorrow() { return finePerDayAtBorrow; }
-
-        @Override public String toString() {
-            return String.format("Borrowed by User %d -> Item %d%n   Period: %s -> %s%n   Fine Rate: Rs.%s/day",
-                    userId, itemId, borrowDate, dueDate, finePerDayAtBorrow.toPlainString());
-        }
-    }
-
-    /* ---------------------------
-       Utility Parsers
-       --------------------------- */
-    public static class IdParser {
-        private static final Pattern DIGITS = Pattern.compile("^\\s*([0-9]+)\\s*$");
-        public static int parseId(String raw) throws InvalidIdFormatException {
-            if (raw == null) throw new InvalidIdFormatException("ID string is null");
-            Matcher m = DIGITS.matcher(raw);
-            if (!m.matches()) throw new InvalidIdFormatException("Invalid ID format: '" + raw + "'. Expect digits only.");
-            try { return Integer.parseInt(m.group(1)); }
-            catch (NumberFormatException ex) { throw new InvalidIdFormatException("ID out of range: " + raw); }
-        }
-    }
-
-    public static class DurationParser {
-        private static final Pattern PATTERN = Pattern.compile("(?i)^\\s*(\\d+)\\s*(d|day|days|w|week|weeks)?\\s*$");
-
-        public static long parseToDays(String raw) throws InvalidDurationFormatException {
-            if (raw == null) throw new InvalidDurationFormatException("Duration string is null");
-            Matcher m = PATTERN.matcher(raw.trim());
-            if (!m.matches()) throw new InvalidDurationFormatException("Unrecognized duration format: '" + raw + "'");
-            long value = Long.parseLong(m.group(1));
-            String unit = m.group(2);
-            if (unit == null || unit.toLowerCase().startsWith("d")) {
-                return value;
-            } else if (unit.toLowerCase().startsWith("w")) {
-                return value * 7L;
-            } else {
-                throw new InvalidDurationFormatException("Unsupported duration unit in: '" + raw + "'");
-            }
-        }
-    }
-
-    /* ---------------------------
-       Catalog
-       --------------------------- */
-    public static class LibraryCatalog {
-        private final Map<Integer, LibraryItem> items = new ConcurrentHashMap<>();
-        private final Map<Integer, BigDecimal> finesByUser = new ConcurrentHashMap<>();
-
-        public void addItem(LibraryItem item) {
-            Objects.requireNonNull(item);
-            items.put(item.getId(), item);
-        }
-
-        public LibraryItem getItem(int id) throws ItemNotFoundException {
-            LibraryItem it = items.get(id);
-            if (it == null) throw new ItemNotFoundException("No item with id: " + id);
-            return it;
-        }
-
-        public BorrowRecord borrowItem(int itemId, User user, String durationStr) throws LibraryException {
-            LibraryItem item = getItem(itemId);
-            synchronized (item) {
-                if (!item.isAvailable()) throw new ItemUnavailableException("Item not available: " + item);
-                long days = DurationParser.parseToDays(durationStr);
-                LocalDate borrowDate = LocalDate.now();
-                LocalDate dueDate = borrowDate.plusDays(days);
-                BorrowRecord record = new BorrowRecord(user.getId(), itemId, borrowDate, dueDate, item.getFinePerDay());
-                item.attachBorrowRecord(record);
-                return record;
-            }
-        }
-
-        public BigDecimal returnItem(int itemId, LocalDate returnDate) throws LibraryException {
-            LibraryItem item = getItem(itemId);
-            synchronized (item) {
-                BorrowRecord record = item.getCurrentBorrowRecord();
-                if (record == null) throw new ItemNotBorrowedException("Item not currently borrowed: " + item);
-                LocalDate due = record.getDueDate();
-                long overdueDays = ChronoUnit.DAYS.between(due, returnDate);
-                BigDecimal fine = BigDecimal.ZERO;
-                if (overdueDays > 0) {
-                    fine = record.getFinePerDayAtBorrow().multiply(BigDecimal.valueOf(overdueDays));
-                    finesByUser.merge(record.getUserId(), fine, BigDecimal::add);
-                    System.out.printf("User %d returned Item %d late by %d days -> Fine: Rs.%s%n",
-                            record.getUserId(), record.getItemId(), overdueDays, fine.toPlainString());
-                } else {
-                    System.out.printf("User %d returned Item %d on time. No fine.%n", record.getUserId(), record.getItemId());
-                }
-                item.detachBorrowRecord();
-                return fine;
-            }
-        }
-
-        public List<LibraryItem> searchByType(Class<? extends LibraryItem> type) {
-            List<LibraryItem> out = new ArrayList<>();
-            for (LibraryItem it : items.values()) if (type.isInstance(it)) out.add(it);
-            return out;
-        }
-
-        public BigDecimal getAccumulatedFineForUser(int userId) {
-            return finesByUser.getOrDefault(userId, BigDecimal.ZERO);
-        }
-    }
-
-    /* ---------------------------
-       Demo / main
-       --------------------------- */
-    public static void main(String[] args) {
-        try {
-            LibraryCatalog catalog = new LibraryCatalog();
-
-            // Create items
-            Book b1 = new Book(IdParser.parseId("101"), "Clean Code", "Robert C. Martin", 464);
-            Audiobook a1 = new Audiobook(IdParser.parseId("202"), "Effective Java (Audio)", "Joshua Bloch", 3600);
-            EMagazine m1 = new EMagazine(IdParser.parseId("303"), "Tech Monthly", "Editor Team", 42);
-
-            catalog.addItem(b1); catalog.addItem(a1); catalog.addItem(m1);
-
-            User u1 = new User(1, "Aisha");
-            User u2 = new User(2, "Vikram");
-
-            // Borrow book
-            System.out.println(catalog.borrowItem(101, u1, "14 days"));
-
-            // Attempting to borrow same book should fail
-            try {
-                catalog.borrowItem(101, u2, "7 days");
-            } catch (ItemUnavailableException ex) {
-                System.out.println("Failure: " + ex.getMessage());
-            }
-
-            // Borrow audiobook
-            System.out.println(catalog.borrowItem(202, u2, "7 days"));
-            a1.play();
-            a1.pause();
-
-            // Return book late by 3 days
-            LocalDate lateReturnDate = LocalDate.now().plusDays(17);
-            catalog.returnItem(101, lateReturnDate);
-
-            // Archive e-magazine
-            m1.archiveIssue();
-
-            // Search example
-            System.out.println("\nAudiobooks in catalog:");
-            for (LibraryItem it : catalog.searchByType(Audiobook.class)) {
-                System.out.println("   - " + it);
-            }
-
-            // Bad ID parsing
-            try { IdParser.parseId("12a"); } catch (InvalidIdFormatException ex) { System.out.println("Error: " + ex.getMessage()); }
-
-            // Bad duration parsing
-            try { DurationParser.parseToDays("3fortnights"); } catch (InvalidDurationFormatException ex) { System.out.println("Error: " + ex.getMessage()); }
-
-            // Fine summary
-            System.out.println("\nUser fines summary:");
-            System.out.printf("- %s: Rs.%s%n", u1, catalog.getAccumulatedFineForUser(u1.getId()).toPlainString());
-            System.out.printf("- %s: Rs.%s%n", u2, catalog.getAccumulatedFineForUser(u2.getId()).toPlainString());
-
-        } catch (LibraryException ex) {
-            System.err.println("Library error: " + ex.getMessage());
-        }
-    }
-}
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * LibraNet Library Demo – Clean ASCII Output with Fine Summary
+ */
+public class LibraNetDemo {
+    /* ---------------------------
+       Enums & Interfaces
+       --------------------------- */
+    public enum AvailabilityStatus { AVAILABLE, BORROWED, ARCHIVED }
+
+    /** How a catalog serializes borrow / return / archive on one item; see {@link LibraryCatalog#setItemLocking}. */
+    public enum ItemLocking {
+        /** Claim the item with a compare-and-set on its state; a rare same-item collision spins briefly. */
+        CAS,
+        /** Also take one of a fixed table of locks picked by item id; collisions park instead of spinning. */
+        STRIPED
+    }
+
+    /** What {@link LibraryCatalog#borrowAll} / {@link LibraryCatalog#returnAll} do when some items fail. */
+    public enum BatchMode {
+        /** Apply nothing unless every item succeeds. */
+        ALL_OR_NOTHING,
+        /** Apply every item that can be applied. */
+        BEST_EFFORT
+    }
+
+    public interface Playable {
+        void play();
+        void pause();
+        void stop();
+        long getPlaybackSeconds();
+    }
+
+    /* ---------------------------
+       Exceptions
+       --------------------------- */
+    public static class LibraryException extends Exception {
+        public LibraryException(String m){ super(m);}
+        /** For expected, high-frequency failures: {@code stackTrace == false} skips fillInStackTrace and suppression. */
+        protected LibraryException(String m, boolean stackTrace){ super(m, null, stackTrace, stackTrace);}
+    }
+    public static class ItemNotFoundException extends LibraryException {
+        private final int itemId;
+        public ItemNotFoundException(String m){ super(m); this.itemId = -1;}
+        public ItemNotFoundException(int itemId, boolean stackTrace){ super(null, stackTrace); this.itemId = itemId;}
+        public int getItemId() { return itemId; }
+        @Override public String getMessage() { String m = super.getMessage(); return m != null ? m : "No item with id: " + itemId; }
+    }
+    public static class ItemUnavailableException extends LibraryException {
+        private final LibraryItem item;
+        private final AvailabilityStatus statusAtFailure;
+        public ItemUnavailableException(String m){ super(m); this.item = null; this.statusAtFailure = null;}
+        /** The message is only formatted if someone asks for it, from the status captured here. */
+        public ItemUnavailableException(LibraryItem item, AvailabilityStatus status, boolean stackTrace){
+            super(null, stackTrace); this.item = item; this.statusAtFailure = status;
+        }
+        public LibraryItem getItem() { return item; }
+        @Override public String getMessage() {
+            String m = super.getMessage();
+            return m != null ? m : "Item not available: " + item.describe(statusAtFailure);
+        }
+    }
+    public static class BorrowLimitExceededException extends LibraryException {
+        private static final long serialVersionUID = 1L;
+        private final int userId, limit;
+        public BorrowLimitExceededException(int userId, int limit, boolean stackTrace){ super(null, stackTrace); this.userId = userId; this.limit = limit;}
+        public int getUserId() { return userId; }
+        public int getLimit() { return limit; }
+        @Override public String getMessage() { return "User " + userId + " already has the maximum of " + limit + " items on loan"; }
+    }
+    public static class InvalidDurationFormatException extends LibraryException { public InvalidDurationFormatException(String m){ super(m);} }
+    public static class InvalidIdFormatException extends LibraryException { public InvalidIdFormatException(String m){ super(m);} }
+    public static class ItemNotBorrowedException extends LibraryException {
+        private final LibraryItem item;
+        private final AvailabilityStatus statusAtFailure;
+        public ItemNotBorrowedException(String m){ super(m); this.item = null; this.statusAtFailure = null;}
+        public ItemNotBorrowedException(LibraryItem item, AvailabilityStatus status, boolean stackTrace){
+            super(null, stackTrace); this.item = item; this.statusAtFailure = status;
+        }
+        public LibraryItem getItem() { return item; }
+        @Override public String getMessage() {
+            String m = super.getMessage();
+            return m != null ? m : "Item not currently borrowed: " + item.describe(statusAtFailure);
+        }
+    }
+
+    /* ---------------------------
+       Models
+       --------------------------- */
+    public static abstract class LibraryItem {
+        private final int id;
+        private final String title, author; // null when the metadata lives in a ColdItemStore
+        final ColdItemStore cold;
+        private volatile ItemState state = ItemState.INITIAL;
+        private final BigDecimal finePerDay = BigDecimal.valueOf(10); // fixed Rs.10/day
+        // the fields below belong to the one catalog that owns the item (see adopt)
+        int typeSlot = -1; // position in the catalog's TypeIndex bucket
+        int textDoc = -1;  // document number in the catalog's TextIndex
+        volatile LibraryCatalog catalog; // set by addItem; routes this item's events to the catalog's sink
+        long walLsn;                     // LSN of the last logged change to this item; written by the state's owner
+
+        private static final AtomicReferenceFieldUpdater<LibraryItem, ItemState> STATE =
+                AtomicReferenceFieldUpdater.newUpdater(LibraryItem.class, ItemState.class, "state");
+        private static final AtomicReferenceFieldUpdater<LibraryItem, LibraryCatalog> CATALOG =
+                AtomicReferenceFieldUpdater.newUpdater(LibraryItem.class, LibraryCatalog.class, "catalog");
+
+        protected LibraryItem(int id, String title, String author) {
+            this.id = id;
+            this.title = Objects.requireNonNull(title);
+            this.author = Objects.requireNonNull(author);
+            this.cold = null;
+        }
+        // a view: only the status / borrow state is on the heap
+        LibraryItem(int id, ColdItemStore cold) {
+            this.id = id;
+            this.title = this.author = null;
+            this.cold = cold;
+        }
+
+        public int getId() { return id; }
+        public String getTitle() { return cold == null ? title : cold.title(id); }
+        public String getAuthor() { return cold == null ? author : cold.author(id); }
+        public AvailabilityStatus getStatus() { return state.status; }
+        public boolean isAvailable() { return state.status == AvailabilityStatus.AVAILABLE; }
+        /** Overwrites the status without claiming the item: only for items not yet shared between threads. */
+        protected void setStatus(AvailabilityStatus status) { ItemState s = state; setState(status, s.record, s.archived); }
+
+        public BigDecimal getFinePerDay() { return finePerDay; }
+
+        public BorrowRecord getCurrentBorrowRecord() { return state.record; }
+
+        /**
+         * Makes {@code owner} the item's catalog. An item keeps its index positions and log LSN on itself, so it
+         * can belong to one catalog only; false if another one already has it.
+         */
+        boolean adopt(LibraryCatalog owner) {
+            return CATALOG.compareAndSet(this, null, owner) || catalog == owner;
+        }
+
+        /* ----- state transitions ----- */
+
+        static final int BORROW = 0, RETURN = 1, ARCHIVE = 2;
+
+        ItemState state() { return state; }
+
+        // unowned write, for items being restored (snapshot load, log replay) before anyone else can see them
+        void setState(AvailabilityStatus status, BorrowRecord record, boolean archived) {
+            AvailabilityStatus from = state.status;
+            state = new ItemState(status, record, archived, null);
+            LibraryCatalog c = catalog;
+            if (c != null) c.statusMoved(this, from, status);
+        }
+
+        /**
+         * Claims the item for one transition by installing its unsettled result with a CAS, or returns null if
+         * the transition is not allowed from the current state (a failed borrow needs no lock and no wait).
+         * The caller then owns the item: it logs / indexes the change and ends with {@link #settle} or
+         * {@link #abort}. Anyone who needs the state after an unsettled one waits for the owner to finish,
+         * including a transition that the unsettled state would refuse: the owner may still abort it.
+         */
+        ItemState claim(int transition, BorrowRecord record) {
+            ItemContentionEvent contention = null;
+            for (int spins = 0; ; spins++) {
+                ItemState s = state;
+                ItemState next = null;
+                if (s.settled) {
+                    switch (transition) {
+                        case BORROW:
+                            if (s.status != AvailabilityStatus.AVAILABLE) return claimed(contention, transition, spins, null);
+                            next = new ItemState(AvailabilityStatus.BORROWED, record, s.archived, s);
+                            break;
+                        case RETURN:
+                            if (s.record == null) return claimed(contention, transition, spins, null);
+                            next = new ItemState(AvailabilityStatus.AVAILABLE, null, s.archived, s);
+                            break;
+                        default:
+                            if (s.archived) return claimed(contention, transition, spins, null);
+                            next = new ItemState(AvailabilityStatus.ARCHIVED, s.record, true, s);
+                    }
+                }
+                if (next == null) {
+                    if (contention == null && ItemContentionEvent.enabled()) {
+                        contention = new ItemContentionEvent();
+                        contention.begin();
+                    }
+                    backOff(spins);
+                    continue;
+                }
+                if (STATE.compareAndSet(this, s, next)) return claimed(contention, transition, spins, next);
+            }
+        }
+        private ItemState claimed(ItemContentionEvent contention, int transition, int spins, ItemState next) {
+            if (contention != null) {
+                contention.end();
+                if (contention.shouldCommit()) {
+                    contention.itemId = id;
+                    contention.transition = transition == BORROW ? "BORROW" : transition == RETURN ? "RETURN" : "ARCHIVE";
+                    contention.spins = spins;
+                    contention.claimed = next != null;
+                    contention.commit();
+                }
+            }
+            return next;
+        }
+        // fast failure checks before claim: only a settled state is final
+        boolean mayBorrow() { ItemState s = state; return !s.settled || s.status == AvailabilityStatus.AVAILABLE; }
+        boolean mayReturn() { ItemState s = state; return !s.settled || s.record != null; }
+
+        /** Publishes a claimed state once its side effects are done. */
+        void settle(ItemState next) {
+            AvailabilityStatus from = next.previous.status;
+            next.previous = null;
+            LibraryCatalog c = catalog;
+            if (c != null) c.statusMoved(this, from, next.status); // before settling: see StatusIndex.enableMembers
+            next.settled = true;
+        }
+        /** One attempt at claiming an available, settled item for a borrow: never waits, null if not claimed. */
+        ItemState tryClaimBorrow(BorrowRecord record) {
+            ItemState s = state;
+            if (s.status != AvailabilityStatus.AVAILABLE || !s.settled) return null;
+            ItemState next = new ItemState(AvailabilityStatus.BORROWED, record, s.archived, s);
+            return STATE.compareAndSet(this, s, next) ? next : null;
+        }
+        /** Swaps the owner's unsettled state for another one with the same {@code previous}; owner only. */
+        void replaceClaim(ItemState next) { state = next; }
+        /** Claims the item without changing it, so its status holds still until {@link #abort}. */
+        ItemState pin() {
+            for (int spins = 0; ; spins++) {
+                ItemState s = state;
+                if (s.settled) {
+                    ItemState pinned = new ItemState(s.status, s.record, s.archived, s);
+                    if (STATE.compareAndSet(this, s, pinned)) return pinned;
+                }
+                backOff(spins);
+            }
+        }
+        /** Gives up a claim, restoring the state it replaced. */
+        void abort(ItemState next) { state = next.previous; }
+
+        /** The current state once no transition is in progress. */
+        ItemState settledState() {
+            for (int spins = 0; ; spins++) {
+                ItemState s = state;
+                if (s.settled) return s;
+                backOff(spins);
+            }
+        }
+        private static void backOff(int spins) {
+            if (spins < 64) Thread.onSpinWait(); else Thread.yield();
+        }
+
+        protected void publish(LibraryEvent.Kind kind) {
+            LibraryCatalog c = catalog;
+            (c != null ? c.getEventSink() : LibraryEventSink.STDOUT).publish(new LibraryEvent(kind, this, null, 0, null));
+        }
+
+        @Override public String toString() { return describe(getStatus()); }
+
+        String describe(AvailabilityStatus status) {
+            return String.format("%s: \"%s\" by %s (ID: %d) - Status: %s",
+                    this.getClass().getSimpleName(), getTitle(), getAuthor(), getId(), status);
+        }
+    }
+
+    /**
+     * An item's status and current loan as one immutable value, so both change with a single CAS. A new state
+     * is installed unsettled by the thread that claimed the item and marked settled when its change is done.
+     */
+    static final class ItemState {
+        static final ItemState INITIAL = new ItemState(AvailabilityStatus.AVAILABLE, null, false, null);
+
+        final AvailabilityStatus status;
+        final BorrowRecord record;       // the open loan, if any (an archived issue can still be out)
+        final boolean archived;          // sticky: a returned archived issue is AVAILABLE but stays archived
+        ItemState previous;              // while unsettled: what abort restores
+        volatile boolean settled;
+
+        ItemState(AvailabilityStatus status, BorrowRecord record, boolean archived, ItemState previous) {
+            this.status = status;
+            this.record = record;
+            this.archived = archived;
+            this.previous = previous;
+            this.settled = previous == null;
+        }
+    }
+
+    public static class Book extends LibraryItem {
+        private final int pageCount;
+        public Book(int id, String title, String author, int pageCount) {
+            super(id, title, author);
+            this.pageCount = pageCount;
+        }
+        Book(int id, ColdItemStore cold) { super(id, cold); this.pageCount = 0; }
+        public int getPageCount() { return cold == null ? pageCount : (int) cold.extra(getId()); }
+    }
+
+    public static class Audiobook extends LibraryItem implements Playable {
+        private final long playbackSeconds;
+        private boolean isPlaying = false;
+        public Audiobook(int id, String title, String author, long playbackSeconds) {
+            super(id, title, author);
+            this.playbackSeconds = playbackSeconds;
+        }
+        Audiobook(int id, ColdItemStore cold) { super(id, cold); this.playbackSeconds = 0; }
+        @Override public void play() { isPlaying = true; publish(LibraryEvent.Kind.PLAYING); }
+        @Override public void pause() { isPlaying = false; publish(LibraryEvent.Kind.PAUSED); }
+        @Override public void stop() { isPlaying = false; publish(LibraryEvent.Kind.STOPPED); }
+        @Override public long getPlaybackSeconds() { return cold == null ? playbackSeconds : cold.extra(getId()); }
+    }
+
+    public static class EMagazine extends LibraryItem {
+        private final int issueNumber;
+        public EMagazine(int id, String title, String author, int issueNumber) {
+            super(id, title, author);
+            this.issueNumber = issueNumber;
+        }
+        EMagazine(int id, ColdItemStore cold) { super(id, cold); this.issueNumber = 0; }
+        public int getIssueNumber() { return cold == null ? issueNumber : (int) cold.extra(getId()); }
+        public boolean isArchived() { return state().archived; }
+        public void archiveIssue() {
+            ArchiveEvent event = ArchiveEvent.enabled() ? new ArchiveEvent() : null;
+            if (event != null) event.begin();
+            LibraryCatalog c = catalog;
+            if (c != null) c.checkLog();
+            ItemState next = claim(ARCHIVE, null);
+            if (next == null) return;
+            long lsn = c != null ? c.logArchive(this) : 0;
+            settle(next);
+            if (c != null) c.awaitLog(lsn);
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.itemId = getId();
+                    event.issueNumber = getIssueNumber();
+                    event.commit();
+                }
+            }
+            publish(LibraryEvent.Kind.ARCHIVED);
+        }
+    }
+
+    public static class User {
+        private final int id; private final String name;
+        public User(int id, String name) { this.id = id; this.name = name; }
+        public int getId() { return id; } public String getName() { return name; }
+        @Override public String toString() { return name + " (UserID=" + id + ")"; }
+    }
+
+    public static class BorrowRecord {
+        private final int userId;
+        private final int itemId;
+        private final int borrowEpochDay;   // days since 1970-01-01, so overdue checks are int subtraction
+        private final int dueEpochDay;
+        private final BigDecimal finePerDayAtBorrow;
+        private final long finePerDayPaise;
+
+        public BorrowRecord(int userId, int itemId, LocalDate borrowDate, LocalDate dueDate, BigDecimal finePerDayAtBorrow) {
+            this(userId, itemId, Math.toIntExact(borrowDate.toEpochDay()), Math.toIntExact(dueDate.toEpochDay()), finePerDayAtBorrow);
+        }
+        public BorrowRecord(int userId, int itemId, int borrowEpochDay, int dueEpochDay, BigDecimal finePerDayAtBorrow) {
+            this.userId = userId; this.itemId = itemId; this.borrowEpochDay = borrowEpochDay; this.dueEpochDay = dueEpochDay;
+            this.finePerDayAtBorrow = finePerDayAtBorrow;
+            this.finePerDayPaise = FineLedger.toPaise(finePerDayAtBorrow);
+        }
+        public int getUserId() { return userId; }
+        public int getItemId() { return itemId; }
+        public LocalDate getBorrowDate() { return LocalDate.ofEpochDay(borrowEpochDay); }
+        public LocalDate getDueDate() { return LocalDate.ofEpochDay(dueEpochDay); }
+        public int getBorrowEpochDay() { return borrowEpochDay; }
+        public int getDueEpochDay() { return dueEpochDay; }
+        public BigDecimal getFinePerDayAtBorrow() { return finePerDayAtBorrow; }
+        public long getFinePerDayPaiseAtBorrow() { return finePerDayPaise; }
+
+        /** Days past the due date on {@code epochDay}; zero or negative when not overdue. */
+        public long overdueDaysOn(long epochDay) { return epochDay - dueEpochDay; }
+
+        @Override public String toString() {
+            return String.format("Borrowed by User %d -> Item %d%n   Period: %s -> %s%n   Fine Rate: Rs.%s/day",
+                    userId, itemId, getBorrowDate(), getDueDate(), finePerDayAtBorrow.toPlainString());
+        }
+    }
+
+    /**
+     * Today's epoch day for a Clock. The clock is read on every call (clock.millis() is cheap); the date is only
+     * recomputed when that instant leaves the cached day in the clock's zone.
+     */
+    static final class DayCache {
+        private static final class Day {
+            final int epochDay; final long startMillis, endMillis;
+            Day(int epochDay, long startMillis, long endMillis) { this.epochDay = epochDay; this.startMillis = startMillis; this.endMillis = endMillis; }
+        }
+        private final Clock clock;
+        private volatile Day day;
+
+        DayCache(Clock clock) { this.clock = Objects.requireNonNull(clock); }
+
+        Clock getClock() { return clock; }
+
+        int today() {
+            long now = clock.millis();
+            Day d = day;
+            if (d == null || now < d.startMillis || now >= d.endMillis) day = d = compute(now);
+            return d.epochDay;
+        }
+
+        private Day compute(long now) {
+            ZoneId zone = clock.getZone();
+            LocalDate date = LocalDate.ofInstant(Instant.ofEpochMilli(now), zone);
+            return new Day(Math.toIntExact(date.toEpochDay()),
+                    date.atStartOfDay(zone).toInstant().toEpochMilli(),
+                    date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli());
+        }
+    }
+
+    /* ---------------------------
+       Events
+       --------------------------- */
+    /** Something that happened to an item. Immutable; the text is only formatted when a sink asks for it. */
+    public static final class LibraryEvent {
+        public enum Kind {
+            RETURNED_ON_TIME, RETURNED_LATE, OVERDUE, ARCHIVED, PLAYING, PAUSED, STOPPED,
+            HOLD_READY, HOLD_EXPIRED, HOLD_CANCELLED // HOLD_CANCELLED: dropped because the holder was at the borrow limit
+        }
+
+        private final Kind kind;
+        private final LibraryItem item;
+        private final BorrowRecord record;
+        private final long overdueDays;
+        private final BigDecimal fine;
+        private final Hold hold;
+
+        LibraryEvent(Kind kind, LibraryItem item, BorrowRecord record, long overdueDays, BigDecimal fine) {
+            this(kind, item, record, overdueDays, fine, null);
+        }
+        LibraryEvent(Kind kind, LibraryItem item, BorrowRecord record, long overdueDays, BigDecimal fine, Hold hold) {
+            this.kind = kind; this.item = item; this.record = record; this.overdueDays = overdueDays; this.fine = fine;
+            this.hold = hold;
+        }
+        public Kind getKind() { return kind; }
+        public LibraryItem getItem() { return item; }
+        /** The closed borrow for return events, the open one for OVERDUE and HOLD_READY, null otherwise. */
+        public BorrowRecord getRecord() { return record; }
+        public long getOverdueDays() { return overdueDays; }
+        /** The fine charged (returns) or that would be charged if returned today (OVERDUE). */
+        public BigDecimal getFine() { return fine; }
+        /** The hold for HOLD_* events, null otherwise. */
+        public Hold getHold() { return hold; }
+
+        @Override public String toString() {
+            switch (kind) {
+                case RETURNED_LATE: return String.format("User %d returned Item %d late by %d days -> Fine: Rs.%s",
+                        record.getUserId(), record.getItemId(), overdueDays, FineLedger.format(fine));
+                case RETURNED_ON_TIME: return String.format("User %d returned Item %d on time. No fine.", record.getUserId(), record.getItemId());
+                case OVERDUE: return String.format("User %d has Item %d overdue by %d days -> Fine so far: Rs.%s",
+                        record.getUserId(), record.getItemId(), overdueDays, FineLedger.format(fine));
+                case ARCHIVED: return "Archived e-magazine issue: " + ((EMagazine) item).getIssueNumber() + " (\"" + item.getTitle() + "\")";
+                case PLAYING: return "Playing audiobook: \"" + item.getTitle() + "\"";
+                case PAUSED: return "Paused: \"" + item.getTitle() + "\"";
+                case HOLD_READY: return String.format("Hold filled: User %d now has Item %d, due %s",
+                        record.getUserId(), record.getItemId(), record.getDueDate());
+                case HOLD_EXPIRED: return String.format("Hold expired: User %d on Item %d", hold.getUserId(), hold.getItemId());
+                case HOLD_CANCELLED: return String.format("Hold cancelled: User %d on Item %d (borrow limit reached)",
+                        hold.getUserId(), hold.getItemId());
+                default: return "Stopped: \"" + item.getTitle() + "\"";
+            }
+        }
+    }
+
+    public interface LibraryEventSink {
+        /** Called outside any item lock; must not block for long. */
+        void publish(LibraryEvent event);
+
+        LibraryEventSink STDOUT = System.out::println;
+        LibraryEventSink NO_OP = event -> {};
+    }
+
+    /**
+     * Hands events to a background thread through a bounded lock-free ring (multi-producer, single consumer).
+     * Publishing never blocks: when the ring is full the event is dropped and counted.
+     */
+    public static class AsyncEventSink implements LibraryEventSink, AutoCloseable {
+        private final AtomicReferenceArray<LibraryEvent> ring;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong(); // next slot to claim
+        private final AtomicLong head = new AtomicLong(); // next slot to consume
+        private final LongAdder dropped = new LongAdder();
+        private final LibraryEventSink downstream;
+        private final Thread consumer;
+        private volatile boolean sleeping, closed;
+        // fills a slot whose publisher saw close() only after claiming it; skipped by the consumer
+        private static final LibraryEvent SKIP = new LibraryEvent(null, null, null, 0, null);
+
+        public AsyncEventSink(LibraryEventSink downstream, int capacity) {
+            if (capacity < 2 || Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("capacity must be a power of two >= 2");
+            this.downstream = Objects.requireNonNull(downstream);
+            this.ring = new AtomicReferenceArray<>(capacity);
+            this.mask = capacity - 1;
+            this.consumer = new Thread(this::drainLoop, "libranet-events");
+            consumer.setDaemon(true);
+            consumer.start();
+        }
+
+        @Override public void publish(LibraryEvent event) {
+            long t;
+            do {
+                t = tail.get();
+                if (closed || t - head.get() > mask) { dropped.increment(); return; }
+            } while (!tail.compareAndSet(t, t + 1));
+            // look again now that the slot is claimed: if close() had not started, the consumer's last pass
+            // will see the claim and wait for the event; if it had, that pass may be over already
+            if (closed) {
+                ring.set((int) t & mask, SKIP);
+                dropped.increment();
+            } else {
+                ring.set((int) t & mask, event);
+            }
+            if (sleeping) LockSupport.unpark(consumer);
+        }
+
+        /** Events not delivered: published while the ring was full or once close() had started. */
+        public long getDroppedCount() { return dropped.sum(); }
+
+        private void drainLoop() {
+            int idle = 0;
+            while (true) {
+                long h = head.get();
+                int slot = (int) h & mask;
+                LibraryEvent e = ring.get(slot);
+                if (e != null) {
+                    ring.lazySet(slot, null);
+                    head.set(h + 1);
+                    idle = 0;
+                    if (e == SKIP) continue;
+                    try { downstream.publish(e); }
+                    catch (RuntimeException ex) { ex.printStackTrace(); }
+                } else if (tail.get() != h) {
+                    Thread.onSpinWait(); // slot claimed, event not written yet
+                } else if (closed) {
+                    if (tail.get() == h) return; // read after closed: a claim made before close() is seen here
+                } else if (++idle < 100) {
+                    Thread.onSpinWait();
+                } else {
+                    sleeping = true;
+                    if (tail.get() == h && !closed) LockSupport.parkNanos(this, 1_000_000L);
+                    sleeping = false;
+                }
+            }
+        }
+
+        /**
+         * Stops accepting events (later ones are counted as dropped), delivers everything already published, and
+         * waits for the consumer to finish.
+         */
+        @Override public void close() {
+            closed = true;
+            LockSupport.unpark(consumer);
+            try { consumer.join(); }
+            catch (InterruptedException ex) { Thread.currentThread().interrupt(); }
+        }
+    }
+
+    /** Outcome of {@link LibraryCatalog#tryBorrow} / {@link LibraryCatalog#tryReturn}; failures are shared constants. */
+    public static final class BorrowResult {
+        /** ABORTED: this item was fine, but another item of the same all-or-nothing batch failed. */
+        public enum Status { SUCCESS, NOT_FOUND, UNAVAILABLE, BAD_DURATION, LIMIT_REACHED, NOT_BORROWED, ABORTED }
+
+        public static final BorrowResult NOT_FOUND = new BorrowResult(Status.NOT_FOUND, null, null);
+        public static final BorrowResult UNAVAILABLE = new BorrowResult(Status.UNAVAILABLE, null, null);
+        public static final BorrowResult BAD_DURATION = new BorrowResult(Status.BAD_DURATION, null, null);
+        public static final BorrowResult LIMIT_REACHED = new BorrowResult(Status.LIMIT_REACHED, null, null);
+        public static final BorrowResult NOT_BORROWED = new BorrowResult(Status.NOT_BORROWED, null, null);
+        public static final BorrowResult ABORTED = new BorrowResult(Status.ABORTED, null, null);
+
+        private final Status status;
+        private final BorrowRecord record;
+        private final BigDecimal fine;
+
+        private BorrowResult(Status status, BorrowRecord record, BigDecimal fine) {
+            this.status = status; this.record = record; this.fine = fine;
+        }
+        static BorrowResult borrowed(BorrowRecord record) { return new BorrowResult(Status.SUCCESS, record, null); }
+        static BorrowResult returned(BorrowRecord record, BigDecimal fine) { return new BorrowResult(Status.SUCCESS, record, fine); }
+
+        public Status getStatus() { return status; }
+        public boolean isSuccess() { return status == Status.SUCCESS; }
+        /** The record created by a borrow, or closed by a return; null on failure. */
+        public BorrowRecord getRecord() { return record; }
+        /** The fine charged by a successful return; null otherwise. */
+        public BigDecimal getFine() { return fine; }
+
+        @Override public String toString() {
+            if (!isSuccess()) return status.toString();
+            return fine == null ? "SUCCESS: " + record : "SUCCESS: " + record + " (fine Rs." + FineLedger.format(fine) + ")";
+        }
+    }
+
+    /* ---------------------------
+       Utility Parsers
+       --------------------------- */
+    public static class IdParser {
+        private static final Pattern DIGITS = Pattern.compile("^\\s*([0-9]+)\\s*$");
+
+        public static int parseId(String raw) throws InvalidIdFormatException {
+            if (raw == null) throw new InvalidIdFormatException("ID string is null");
+            return parseId((CharSequence) raw);
+        }
+
+        /** Single pass, allocation-free unless the input is rejected; same rules as the DIGITS pattern. */
+        public static int parseId(CharSequence raw) throws InvalidIdFormatException {
+            if (raw == null) throw new InvalidIdFormatException("ID string is null");
+            int start = 0, end = raw.length();
+            while (start < end && isSpace(raw.charAt(start))) start++;
+            while (end > start && isSpace(raw.charAt(end - 1))) end--;
+            if (start == end) throw invalidFormat(raw);
+            int value = 0;
+            boolean overflow = false;
+            for (int i = start; i < end; i++) {
+                int d = raw.charAt(i) - '0';
+                if (d < 0 || d > 9) throw invalidFormat(raw);
+                if (value > (Integer.MAX_VALUE - d) / 10) overflow = true; // keep scanning: bad digits win
+                else value = value * 10 + d;
+            }
+            if (overflow) throw new InvalidIdFormatException("ID out of range: " + raw);
+            return value;
+        }
+
+        /** Parses the ASCII ID in {@code buf[off, off+len)}, e.g. straight out of a network read buffer. */
+        public static int parseId(byte[] buf, int off, int len) throws InvalidIdFormatException {
+            Objects.checkFromIndexSize(off, len, buf.length);
+            int start = off, end = off + len;
+            while (start < end && isSpace(buf[start])) start++;
+            while (end > start && isSpace(buf[end - 1])) end--;
+            if (start == end) throw invalidFormat(new String(buf, off, len, StandardCharsets.ISO_8859_1));
+            int value = 0;
+            boolean overflow = false;
+            for (int i = start; i < end; i++) {
+                int d = buf[i] - '0';
+                if (d < 0 || d > 9) throw invalidFormat(new String(buf, off, len, StandardCharsets.ISO_8859_1));
+                if (value > (Integer.MAX_VALUE - d) / 10) overflow = true;
+                else value = value * 10 + d;
+            }
+            if (overflow) throw new InvalidIdFormatException("ID out of range: " + new String(buf, off, len, StandardCharsets.ISO_8859_1));
+            return value;
+        }
+
+        /** Parses the ID between the buffer's position and limit without moving either. */
+        public static int parseId(ByteBuffer buf) throws InvalidIdFormatException {
+            if (buf.hasArray()) return parseId(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            int start = buf.position(), end = buf.limit();
+            while (start < end && isSpace(buf.get(start))) start++;
+            while (end > start && isSpace(buf.get(end - 1))) end--;
+            if (start == end) throw invalidFormat(StandardCharsets.ISO_8859_1.decode(buf.duplicate()));
+            int value = 0;
+            boolean overflow = false;
+            for (int i = start; i < end; i++) {
+                int d = buf.get(i) - '0';
+                if (d < 0 || d > 9) throw invalidFormat(StandardCharsets.ISO_8859_1.decode(buf.duplicate()));
+                if (value > (Integer.MAX_VALUE - d) / 10) overflow = true;
+                else value = value * 10 + d;
+            }
+            if (overflow) throw new InvalidIdFormatException("ID out of range: " + StandardCharsets.ISO_8859_1.decode(buf.duplicate()));
+            return value;
+        }
+
+        /** The original Matcher-based parser, kept as the reference for tests and benchmarks. */
+        static int parseIdRegex(String raw) throws InvalidIdFormatException {
+            if (raw == null) throw new InvalidIdFormatException("ID string is null");
+            Matcher m = DIGITS.matcher(raw);
+            if (!m.matches()) throw invalidFormat(raw);
+            try { return Integer.parseInt(m.group(1)); }
+            catch (NumberFormatException ex) { throw new InvalidIdFormatException("ID out of range: " + raw); }
+        }
+
+        // the \s class of DIGITS: space, tab, LF, VT, FF, CR
+        private static boolean isSpace(int c) { return c == ' ' || (c >= '\t' && c <= '\r'); }
+
+        private static InvalidIdFormatException invalidFormat(CharSequence raw) {
+            return new InvalidIdFormatException("Invalid ID format: '" + raw + "'. Expect digits only.");
+        }
+    }
+
+    public static class DurationParser {
+        private static final class Unit {
+            final String name; final long days;
+            Unit(String name, long days) { this.name = name; this.days = days; }
+        }
+        // unit words bucketed by lower-case first letter; a number without a unit means days
+        private static final Unit[][] UNITS = new Unit[26][];
+        static {
+            Map<Character, List<Unit>> table = new TreeMap<>();
+            for (String d : new String[] { "d", "day", "days" }) table.computeIfAbsent('d', k -> new ArrayList<>()).add(new Unit(d, 1));
+            for (String w : new String[] { "w", "week", "weeks" }) table.computeIfAbsent('w', k -> new ArrayList<>()).add(new Unit(w, 7));
+            for (String f : new String[] { "fortnight", "fortnights" }) table.computeIfAbsent('f', k -> new ArrayList<>()).add(new Unit(f, 14));
+            for (String m : new String[] { "month", "months" }) table.computeIfAbsent('m', k -> new ArrayList<>()).add(new Unit(m, 30));
+            table.forEach((c, units) -> UNITS[c - 'a'] = units.toArray(new Unit[0]));
+        }
+        private static final long DAYS_PER_MONTH = 30, DAYS_PER_YEAR = 365;
+        private static final long MALFORMED = -1, OUT_OF_RANGE = -2;
+
+        private static volatile int cacheCapacity = 0;
+        private static final Map<String, Long> CACHE = new ConcurrentHashMap<>();
+
+        /**
+         * Memoizes up to {@code capacity} distinct successfully parsed strings (0 disables and clears the cache).
+         * Once full, new strings are parsed but not remembered, so the early, hot strings stay cached.
+         */
+        public static void setCacheCapacity(int capacity) {
+            if (capacity < 0) throw new IllegalArgumentException("capacity must be >= 0");
+            cacheCapacity = capacity;
+            if (capacity == 0) CACHE.clear();
+        }
+
+        /** Accepts "14", "14 days", "2 weeks", "1 fortnight", "3 months" (units case-insensitive) and ISO-8601 "P14D"/"P1M2W". */
+        public static long parseToDays(String raw) throws InvalidDurationFormatException {
+            if (raw == null) throw new InvalidDurationFormatException("Duration string is null");
+            long days = tryParseToDays(raw);
+            if (days == OUT_OF_RANGE) throw new InvalidDurationFormatException("Duration out of range: '" + raw + "'");
+            if (days < 0) throw new InvalidDurationFormatException("Unrecognized duration format: '" + raw + "'");
+            return days;
+        }
+
+        /** Non-throwing variant: the number of days, or a negative value if {@code raw} is null or not a valid duration. */
+        public static long tryParseToDays(String raw) {
+            if (raw == null) return MALFORMED;
+            if (cacheCapacity > 0) {
+                Long hit = CACHE.get(raw);
+                if (hit != null) return hit;
+            }
+            long days = parse(raw);
+            if (days >= 0 && cacheCapacity > 0 && CACHE.size() < cacheCapacity) CACHE.putIfAbsent(raw, days);
+            return days;
+        }
+
+        private static long parse(String raw) {
+            int i = 0, end = raw.length();
+            while (i < end && Character.isWhitespace(raw.charAt(i))) i++;
+            while (end > i && Character.isWhitespace(raw.charAt(end - 1))) end--;
+            if (i == end) return MALFORMED;
+            char first = raw.charAt(i);
+            if (first == 'P' || first == 'p') return parseIso(raw, i + 1, end);
+
+            long value = 0;
+            int digitsStart = i;
+            for (; i < end; i++) {
+                int d = raw.charAt(i) - '0';
+                if (d < 0 || d > 9) break;
+                if (value > (Long.MAX_VALUE - d) / 10) return OUT_OF_RANGE;
+                value = value * 10 + d;
+            }
+            if (i == digitsStart) return MALFORMED;
+            while (i < end && Character.isWhitespace(raw.charAt(i))) i++;
+            if (i == end) return value;
+            long perUnit = unitDays(raw, i, end);
+            if (perUnit < 0) return MALFORMED;
+            return value > Long.MAX_VALUE / perUnit ? OUT_OF_RANGE : value * perUnit;
+        }
+
+        private static long unitDays(String raw, int from, int to) {
+            char c = Character.toLowerCase(raw.charAt(from));
+            if (c < 'a' || c > 'z' || UNITS[c - 'a'] == null) return MALFORMED;
+            for (Unit u : UNITS[c - 'a']) {
+                if (u.name.length() == to - from && raw.regionMatches(true, from, u.name, 0, to - from)) return u.days;
+            }
+            return MALFORMED;
+        }
+
+        // PnYnMnWnD, date part only; Y and M are calendar-free approximations (365 / 30 days)
+        private static long parseIso(String raw, int i, int end) {
+            if (i == end) return MALFORMED;
+            long total = 0;
+            int lastRank = -1;
+            while (i < end) {
+                long value = 0;
+                int digitsStart = i;
+                for (; i < end; i++) {
+                    int d = raw.charAt(i) - '0';
+                    if (d < 0 || d > 9) break;
+                    if (value > (Long.MAX_VALUE - d) / 10) return OUT_OF_RANGE;
+                    value = value * 10 + d;
+                }
+                if (i == digitsStart || i == end) return MALFORMED;
+                int rank;
+                long perUnit;
+                switch (Character.toUpperCase(raw.charAt(i++))) {
+                    case 'Y': rank = 0; perUnit = DAYS_PER_YEAR; break;
+                    case 'M': rank = 1; perUnit = DAYS_PER_MONTH; break;
+                    case 'W': rank = 2; perUnit = 7; break;
+                    case 'D': rank = 3; perUnit = 1; break;
+                    default: return MALFORMED;
+                }
+                if (rank <= lastRank) return MALFORMED;
+                lastRank = rank;
+                if (value > (Long.MAX_VALUE - total) / perUnit) return OUT_OF_RANGE;
+                total += value * perUnit;
+            }
+            return total;
+        }
+    }
+
+    /* ---------------------------
+       Primitive Maps
+       --------------------------- */
+    /**
+     * Concurrent int -> V map with open addressing and linear probing: no boxed keys, no per-entry nodes.
+     * Reads are lock-free. Writers synchronize on the map and publish a fresh table when growing.
+     * Entries can be replaced but never removed, which is all the catalog needs.
+     */
+    static final class IntObjectMap<V> {
+        private static final class Table<V> {
+            final int[] keys;
+            final AtomicReferenceArray<V> values; // null = empty slot
+            final int mask;
+            Table(int capacity) { keys = new int[capacity]; values = new AtomicReferenceArray<>(capacity); mask = capacity - 1; }
+        }
+        private static final double MAX_LOAD = 0.6;
+
+        private volatile Table<V> table;
+        private int size; // guarded by this
+
+        IntObjectMap() { this(16); }
+        IntObjectMap(int expectedSize) { table = new Table<>(capacityFor(expectedSize)); }
+
+        private static int capacityFor(int expected) {
+            long needed = (long) Math.ceil(Math.max(expected, 8) / MAX_LOAD);
+            if (needed > 1 << 30) throw new IllegalArgumentException("too many entries: " + expected);
+            return Integer.highestOneBit((int) needed - 1) << 1;
+        }
+        private static int slot(int key, int mask) {
+            int h = key * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        V get(int key) {
+            Table<V> t = table;
+            for (int i = slot(key, t.mask); ; i = (i + 1) & t.mask) {
+                V v = t.values.get(i);  // volatile read: the key written before it is visible
+                if (v == null) return null;
+                if (t.keys[i] == key) return v;
+            }
+        }
+
+        synchronized V put(int key, V value) {
+            Objects.requireNonNull(value);
+            Table<V> t = table;
+            int i = slot(key, t.mask);
+            for (V v; (v = t.values.get(i)) != null; i = (i + 1) & t.mask) {
+                if (t.keys[i] == key) { t.values.set(i, value); return v; }
+            }
+            if (size + 1 > t.keys.length * MAX_LOAD) {
+                table = t = grow(t);
+                i = slot(key, t.mask);
+                while (t.values.get(i) != null) i = (i + 1) & t.mask;
+            }
+            t.keys[i] = key;
+            t.values.set(i, value);
+            size++;
+            return null;
+        }
+
+        V computeIfAbsent(int key, IntFunction<? extends V> factory) {
+            V v = get(key);
+            if (v != null) return v;
+            synchronized (this) {
+                v = get(key);
+                if (v == null) put(key, v = factory.apply(key));
+                return v;
+            }
+        }
+
+        private Table<V> grow(Table<V> old) {
+            Table<V> t = new Table<>(old.keys.length * 2);
+            for (int j = 0; j < old.keys.length; j++) {
+                V v = old.values.get(j);
+                if (v == null) continue;
+                int i = slot(old.keys[j], t.mask);
+                while (t.values.get(i) != null) i = (i + 1) & t.mask;
+                t.keys[i] = old.keys[j];
+                t.values.lazySet(i, v); // published by the volatile write of 'table'
+            }
+            return t;
+        }
+
+        synchronized int size() { return size; }
+
+        /** Pre-sizes the table for {@code expected} entries, e.g. before a bulk load. */
+        synchronized void ensureCapacity(int expected) {
+            int capacity = capacityFor(expected);
+            Table<V> t = table;
+            if (capacity <= t.keys.length) return;
+            Table<V> bigger = new Table<>(capacity);
+            for (int j = 0; j < t.keys.length; j++) {
+                V v = t.values.get(j);
+                if (v == null) continue;
+                int i = slot(t.keys[j], bigger.mask);
+                while (bigger.values.get(i) != null) i = (i + 1) & bigger.mask;
+                bigger.keys[i] = t.keys[j];
+                bigger.values.lazySet(i, v);
+            }
+            table = bigger;
+        }
+
+        interface EntryConsumer<V> { void accept(int key, V value); }
+
+        /** Weakly consistent, like {@link #forEachValue}. */
+        void forEach(EntryConsumer<? super V> action) {
+            Table<V> t = table;
+            for (int i = 0; i < t.keys.length; i++) {
+                V v = t.values.get(i);
+                if (v != null) action.accept(t.keys[i], v);
+            }
+        }
+
+        /** Weakly consistent: sees every entry present when the call starts and maybe some added during it. */
+        void forEachValue(Consumer<? super V> action) {
+            Table<V> t = table;
+            for (int i = 0; i < t.keys.length; i++) {
+                V v = t.values.get(i);
+                if (v != null) action.accept(v);
+            }
+        }
+
+        /** Approximate bytes held by the table itself (keys + reference slots), excluding the values. */
+        long footprintBytes() {
+            Table<V> t = table;
+            return 16L + 4L * t.keys.length + 16L + (long) REFERENCE_BYTES * t.keys.length;
+        }
+        static final int REFERENCE_BYTES = Runtime.getRuntime().maxMemory() < 32L << 30 ? 4 : 8; // compressed oops guess
+    }
+
+    /* ---------------------------
+       Fine Ledger
+       --------------------------- */
+    /**
+     * Accumulated fines per user, in paise (Rs.0.01). Each user has a LongAdder, so accruals for a hot user
+     * spread over striped cells instead of contending on one value, and nothing is allocated after a user's
+     * first fine. Amounts become BigDecimal only at the API edge.
+     */
+    public static class FineLedger {
+        private final IntObjectMap<LongAdder> byUser = new IntObjectMap<>();
+
+        public void accrue(int userId, long paise) {
+            if (paise < 0) throw new IllegalArgumentException("negative fine: " + paise);
+            if (paise == 0) return;
+            byUser.computeIfAbsent(userId, id -> new LongAdder()).add(paise);
+        }
+
+        public long getTotalPaise(int userId) {
+            LongAdder a = byUser.get(userId);
+            return a == null ? 0 : a.sum();
+        }
+
+        public BigDecimal getTotal(int userId) { return toRupees(getTotalPaise(userId)); }
+
+        /** Visits every user with a non-zero total (weakly consistent). */
+        public void forEach(IntObjectMap.EntryConsumer<Long> action) {
+            byUser.forEach((userId, adder) -> {
+                long paise = adder.sum();
+                if (paise != 0) action.accept(userId, paise);
+            });
+        }
+
+        /** Always scale 2, so equal amounts are also {@code equals}. */
+        public static BigDecimal toRupees(long paise) { return BigDecimal.valueOf(paise, 2); }
+
+        /** For display: whole rupees without decimals ("30"), otherwise both places ("30.50"). */
+        public static String format(BigDecimal rupees) {
+            BigDecimal whole = rupees.setScale(0, RoundingMode.DOWN);
+            return whole.compareTo(rupees) == 0 ? whole.toPlainString() : rupees.setScale(2, RoundingMode.HALF_UP).toPlainString();
+        }
+
+        public static long toPaise(BigDecimal rupees) {
+            return rupees.setScale(2, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+        }
+    }
+
+    /* ---------------------------
+       Due Date Index
+       --------------------------- */
+    /**
+     * Open loans bucketed by due epoch day. Finding what is overdue walks only the past-due buckets, so it
+     * costs O(overdue + days spanned), not O(catalog). Updated by the catalog under the item's lock.
+     */
+    static class DueDateIndex {
+        static final class Bucket {
+            final Set<BorrowRecord> loans = ConcurrentHashMap.newKeySet();
+            // loans added and not yet removed, counted before they go in; -1 once pruned, and then never reused
+            final AtomicInteger open = new AtomicInteger();
+        }
+        private final ConcurrentSkipListMap<Integer, Bucket> byDueDay = new ConcurrentSkipListMap<>();
+
+        void add(BorrowRecord r) {
+            Integer day = r.getDueEpochDay();
+            for (;;) {
+                Bucket bucket = byDueDay.computeIfAbsent(day, d -> new Bucket());
+                int n = bucket.open.get();
+                if (n < 0) { // pruned under us (a loan due in the past, e.g. "0 days" across midnight)
+                    byDueDay.remove(day, bucket);
+                    continue;
+                }
+                if (bucket.open.compareAndSet(n, n + 1)) {
+                    bucket.loans.add(r);
+                    return;
+                }
+            }
+        }
+        void remove(BorrowRecord r) {
+            Bucket bucket = byDueDay.get(r.getDueEpochDay());
+            if (bucket != null && bucket.loans.remove(r)) bucket.open.decrementAndGet();
+        }
+
+        /** Loans due strictly before {@code epochDay}, earliest due first. */
+        void forEachDueBefore(int epochDay, Consumer<BorrowRecord> action) {
+            for (Bucket bucket : byDueDay.headMap(epochDay, false).values()) bucket.loans.forEach(action);
+        }
+
+        int countDueBefore(int epochDay) {
+            int n = 0;
+            for (Bucket bucket : byDueDay.headMap(epochDay, false).values()) n += bucket.loans.size();
+            return n;
+        }
+
+        /**
+         * Drops empty buckets for days before {@code epochDay}. A loan can still be due on such a day (a short
+         * loan whose borrow read the date just before midnight), so a bucket is only dropped once its count is
+         * sealed at zero; an add that finds it sealed starts a new bucket for that day.
+         */
+        void pruneBefore(int epochDay) {
+            for (Map.Entry<Integer, Bucket> e : byDueDay.headMap(epochDay, false).entrySet()) {
+                if (e.getValue().open.compareAndSet(0, -1)) byDueDay.remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Periodically publishes an OVERDUE event, with the fine accrued so far, for every loan past its due date.
+     * Each sweep costs O(overdue loans). Events go to the catalog's LibraryEventSink. Scheduled sweeps also
+     * expire stale holds ({@link LibraryCatalog#expireHolds}).
+     */
+    public static class OverdueSweeper implements AutoCloseable {
+        private final LibraryCatalog catalog;
+        private final ScheduledExecutorService scheduler;
+
+        public OverdueSweeper(LibraryCatalog catalog, long period, TimeUnit unit) {
+            this.catalog = Objects.requireNonNull(catalog);
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "libranet-overdue-sweeper");
+                t.setDaemon(true);
+                return t;
+            });
+            scheduler.scheduleAtFixedRate(() -> {
+                try { sweepNow(); catalog.expireHolds(); }
+                catch (RuntimeException ex) { ex.printStackTrace(); } // keep the schedule alive
+            }, 0, period, unit);
+        }
+
+        /** Runs one sweep on the calling thread and returns the number of overdue loans reported. */
+        public int sweepNow() {
+            int today = catalog.days.today();
+            int[] count = new int[1];
+            catalog.dueDates.forEachDueBefore(today, r -> {
+                long overdueDays = r.overdueDaysOn(today);
+                BigDecimal projected = FineLedger.toRupees(Math.multiplyExact(r.getFinePerDayPaiseAtBorrow(), overdueDays));
+                catalog.eventSink.publish(new LibraryEvent(LibraryEvent.Kind.OVERDUE, catalog.items.get(r.getItemId()), r, overdueDays, projected));
+                count[0]++;
+            });
+            catalog.dueDates.pruneBefore(today);
+            return count[0];
+        }
+
+        @Override public void close() { scheduler.shutdownNow(); }
+    }
+
+    /* ---------------------------
+       User Loan Index
+       --------------------------- */
+    /**
+     * Open loans per user. A loan slot is reserved with a CAS on the user's counter before the loan is attached,
+     * so a borrow limit holds even when one user borrows different items at the same time.
+     */
+    static class UserLoanIndex {
+        static final class Loans {
+            final AtomicInteger count = new AtomicInteger();
+            final Set<BorrowRecord> records = ConcurrentHashMap.newKeySet();
+        }
+        private final IntObjectMap<Loans> byUser = new IntObjectMap<>();
+
+        /** Claims one loan slot for the user unless that would exceed {@code limit} (0 = no limit). */
+        boolean tryReserve(int userId, int limit) {
+            AtomicInteger count = byUser.computeIfAbsent(userId, id -> new Loans()).count;
+            if (limit <= 0) { count.incrementAndGet(); return true; }
+            for (int c; (c = count.get()) < limit; ) {
+                if (count.compareAndSet(c, c + 1)) return true;
+            }
+            return false;
+        }
+        /** Gives back a slot taken with {@link #tryReserve} that was never used. */
+        void release(int userId) { byUser.get(userId).count.decrementAndGet(); }
+        /** Records the loan for a slot taken with {@link #tryReserve}. */
+        void add(BorrowRecord r) { byUser.get(r.getUserId()).records.add(r); }
+        void remove(BorrowRecord r) {
+            Loans loans = byUser.get(r.getUserId());
+            if (loans.records.remove(r)) loans.count.decrementAndGet();
+        }
+
+        int count(int userId) {
+            Loans loans = byUser.get(userId);
+            return loans == null ? 0 : loans.count.get();
+        }
+        List<BorrowRecord> get(int userId) {
+            Loans loans = byUser.get(userId);
+            return loans == null ? Collections.emptyList() : new ArrayList<>(loans.records);
+        }
+    }
+
+    /* ---------------------------
+       Hold Queues
+       --------------------------- */
+    /** A user's place in line for an item. The loan terms are fixed when the hold is placed. */
+    public static final class Hold {
+        public enum State { WAITING, FILLED, EXPIRED, CANCELLED }
+
+        private final int itemId, userId;
+        private final int loanDays, placedEpochDay, expiresEpochDay;
+        private volatile State state = State.WAITING;
+        int slot = -1; // position in the item's HoldQueue while WAITING; guarded by the queue
+
+        Hold(int itemId, int userId, int loanDays, int placedEpochDay, int expiresEpochDay) {
+            this.itemId = itemId; this.userId = userId; this.loanDays = loanDays;
+            this.placedEpochDay = placedEpochDay; this.expiresEpochDay = expiresEpochDay;
+        }
+        public int getItemId() { return itemId; }
+        public int getUserId() { return userId; }
+        /** Length of the loan the holder gets when the hold is filled. */
+        public int getLoanDays() { return loanDays; }
+        public LocalDate getPlacedDate() { return LocalDate.ofEpochDay(placedEpochDay); }
+        /** The last day the hold can be filled. */
+        public LocalDate getExpiryDate() { return LocalDate.ofEpochDay(expiresEpochDay); }
+        int getExpiresEpochDay() { return expiresEpochDay; }
+        public State getState() { return state; }
+
+        @Override public String toString() {
+            return String.format("Hold(User %d on Item %d, %s)", userId, itemId, state);
+        }
+    }
+
+    /**
+     * The holds on one item in placement order, guarded by the queue's monitor. Holds sit in an array by
+     * arrival with removed ones left as gaps, and a Fenwick tree over the array counts the live holds ahead of
+     * any slot, so a position is O(log n) however long the line is. The array is compacted when it fills up.
+     */
+    static final class HoldQueue {
+        final LibraryItem item;
+        private Hold[] slots = new Hold[16];
+        private int[] tree = new int[17]; // 1-based Fenwick tree over slots: 1 per live hold
+        private int head, end;            // live holds are in [head, end)
+        private volatile int size;        // read without the lock by returns: see LibraryCatalog.settleReturn
+        private final Map<Integer, Hold> byUser = new HashMap<>();
+
+        HoldQueue(LibraryItem item) { this.item = item; }
+
+        int size() { return size; }
+        Hold find(int userId) { return byUser.get(userId); }
+
+        void add(Hold h) {
+            if (end == slots.length) compact();
+            h.slot = end;
+            slots[end++] = h;
+            update(h.slot, 1);
+            byUser.put(h.getUserId(), h);
+            size++;
+        }
+
+        void remove(Hold h, Hold.State state) {
+            slots[h.slot] = null;
+            update(h.slot, -1);
+            h.slot = -1;
+            byUser.remove(h.getUserId());
+            size--;
+            h.state = state;
+        }
+
+        /** The oldest live hold, or null. */
+        Hold first() {
+            while (head < end && slots[head] == null) head++;
+            return head < end ? slots[head] : null;
+        }
+
+        /** 1-based place in line of a live hold. */
+        int position(Hold h) {
+            int n = 0;
+            for (int x = h.slot + 1; x > 0; x -= x & -x) n += tree[x];
+            return n;
+        }
+
+        private void update(int slot, int delta) {
+            for (int x = slot + 1; x < tree.length; x += x & -x) tree[x] += delta;
+        }
+
+        // at least half of the new array is free, so compaction is amortized O(1) per hold
+        private void compact() {
+            int live = size;
+            Hold[] s = new Hold[Math.max(16, Integer.highestOneBit(Math.max(live, 1)) * 4)];
+            int n = 0;
+            for (int i = head; i < end; i++) {
+                if (slots[i] == null) continue;
+                s[n] = slots[i];
+                s[n].slot = n;
+                n++;
+            }
+            int[] t = new int[s.length + 1];
+            for (int x = 1; x <= n; x++) {
+                t[x] += 1;
+                int up = x + (x & -x);
+                if (up < t.length) t[up] += t[x];
+            }
+            slots = s; tree = t; head = 0; end = n;
+        }
+    }
+
+    /* ---------------------------
+       Type Index
+       --------------------------- */
+    /**
+     * Items grouped by concrete class. A query for a type only visits the buckets whose class is
+     * assignable to it, so Book/Audiobook/EMagazine and any future subclass cost O(result size).
+     * Writers are serialized by the catalog; readers never lock.
+     */
+    static class TypeIndex {
+        static final class Bucket {
+            final Class<?> type;
+            private volatile AtomicReferenceArray<LibraryItem> slots = new AtomicReferenceArray<>(16);
+            private volatile int size;   // slots in use, including tombstones
+            private volatile int live;   // non-null slots
+
+            Bucket(Class<?> type) { this.type = type; }
+
+            int append(LibraryItem item) {
+                AtomicReferenceArray<LibraryItem> s = slots;
+                if (size == s.length()) {
+                    AtomicReferenceArray<LibraryItem> grown = new AtomicReferenceArray<>(s.length() * 2);
+                    for (int i = 0; i < size; i++) grown.lazySet(i, s.get(i));
+                    slots = s = grown;
+                }
+                s.set(size, item);
+                live++;
+                return size++;
+            }
+            void replace(int slot, LibraryItem item) { slots.set(slot, item); }
+            void clear(int slot) { slots.set(slot, null); live--; }
+
+            void collect(List<LibraryItem> out, int skip, int limit) {
+                int n = size, i = 0;
+                AtomicReferenceArray<LibraryItem> s = slots;
+                if (live == n) { i = skip; skip = 0; } // no tombstones: jump straight to the offset
+                for (; i < n && out.size() < limit; i++) {
+                    LibraryItem it = s.get(i);
+                    if (it == null) continue;
+                    if (skip > 0) { skip--; continue; }
+                    out.add(it);
+                }
+            }
+            Stream<LibraryItem> stream() {
+                int n = size;
+                AtomicReferenceArray<LibraryItem> s = slots;
+                return IntStream.range(0, n).mapToObj(s::get).filter(Objects::nonNull);
+            }
+        }
+
+        private final Map<Class<?>, Bucket> byClass = new ConcurrentHashMap<>();
+        private final List<Bucket> buckets = new CopyOnWriteArrayList<>(); // registration order
+
+        /** Indexes {@code item}, which replaced {@code previous} (or null) under the same id. */
+        void add(LibraryItem item, LibraryItem previous) {
+            if (previous == item) return;
+            if (previous != null && previous.getClass() == item.getClass()) {
+                byClass.get(item.getClass()).replace(previous.typeSlot, item);
+                item.typeSlot = previous.typeSlot;
+                return;
+            }
+            if (previous != null) byClass.get(previous.getClass()).clear(previous.typeSlot);
+            Bucket b = byClass.get(item.getClass());
+            if (b == null) {
+                b = new Bucket(item.getClass());
+                byClass.put(item.getClass(), b);
+                buckets.add(b);
+            }
+            item.typeSlot = b.append(item);
+        }
+
+        int count(Class<? extends LibraryItem> type) {
+            int n = 0;
+            for (Bucket b : buckets) if (type.isAssignableFrom(b.type)) n += b.live;
+            return n;
+        }
+
+        List<LibraryItem> search(Class<? extends LibraryItem> type, int offset, int limit) {
+            List<LibraryItem> out = new ArrayList<>(Math.min(limit, count(type)));
+            int skip = offset;
+            for (Bucket b : buckets) {
+                if (!type.isAssignableFrom(b.type)) continue;
+                if (out.size() >= limit) break;
+                int live = b.live;
+                if (skip >= live) { skip -= live; continue; }
+                b.collect(out, skip, limit);
+                skip = 0;
+            }
+            return out;
+        }
+
+        Stream<LibraryItem> stream(Class<? extends LibraryItem> type) {
+            return buckets.stream().filter(b -> type.isAssignableFrom(b.type)).flatMap(Bucket::stream);
+        }
+    }
+
+    /* ---------------------------
+       Status Index
+       --------------------------- */
+    /**
+     * Live item counts per AvailabilityStatus, moved by every settled transition, so "how many are available"
+     * is a LongAdder sum. Optionally also keeps the items of each status in a set; those sets may briefly hold
+     * an item that has just moved on, so enumeration re-checks each item's status.
+     */
+    static class StatusIndex {
+        private static final AvailabilityStatus[] STATUSES = AvailabilityStatus.values();
+
+        private final LongAdder[] counts = new LongAdder[STATUSES.length];
+        private volatile Set<LibraryItem>[] members; // null until enabled
+        {
+            for (int i = 0; i < counts.length; i++) counts[i] = new LongAdder();
+        }
+
+        void add(LibraryItem item, AvailabilityStatus status) {
+            counts[status.ordinal()].increment();
+            Set<LibraryItem>[] m = members;
+            if (m != null) m[status.ordinal()].add(item);
+        }
+        void remove(LibraryItem item, AvailabilityStatus status) {
+            counts[status.ordinal()].decrement();
+            Set<LibraryItem>[] m = members;
+            if (m != null) m[status.ordinal()].remove(item);
+        }
+        void moved(LibraryItem item, AvailabilityStatus from, AvailabilityStatus to) {
+            if (from == to) return;
+            remove(item, from);
+            add(item, to);
+        }
+
+        long count(AvailabilityStatus status) { return counts[status.ordinal()].sum(); }
+
+        boolean hasMembers() { return members != null; }
+
+        // caller serializes item additions and passes every item already indexed
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        void enableMembers(IntObjectMap<LibraryItem> existing) {
+            if (members != null) return;
+            Set<LibraryItem>[] m = new Set[STATUSES.length];
+            for (int i = 0; i < m.length; i++) m[i] = ConcurrentHashMap.newKeySet();
+            members = m; // transitions from here on keep the sets current; the scan below fills in the rest
+            existing.forEachValue(item -> m[item.settledState().status.ordinal()].add(item));
+        }
+
+        Stream<LibraryItem> stream(AvailabilityStatus status) {
+            Set<LibraryItem>[] m = members;
+            if (m == null) throw new IllegalStateException("Status sets are not enabled");
+            return m[status.ordinal()].stream().filter(it -> it.getStatus() == status);
+        }
+    }
+
+    /* ---------------------------
+       Text Index
+       --------------------------- */
+    /**
+     * Inverted index over titles and authors. Text is split on anything that is not a letter or digit and
+     * lower-cased; terms live in a sorted map, so {@code har*} is a range scan. Each term keeps separate
+     * title and author postings, in indexing order, so any two lists can be intersected by leapfrogging.
+     * Like the type index, writers are serialized by the catalog and readers never lock.
+     * <p>
+     * Queries are AND of their terms; a term ending in {@code *} is a prefix. An item scores the sum over the
+     * terms of idf x 2 for a title match or idf x 1 for an author-only match; ties keep indexing order. For up
+     * to {@link #MAX_TIERED_TERMS} terms every title/author combination is one intersection, visited from the
+     * best score down, so a query stops as soon as it has {@code limit} hits. Longer queries intersect once
+     * and keep the best {@code limit}.
+     * <p>
+     * A prefix is walked as a lazy union of its terms' postings. A prefix with more than
+     * {@link #MAX_UNION_TERMS} terms (a very short one) instead has its postings merged into one list per field
+     * before the query runs: that costs O(postings) up front, but every matching item is still ranked.
+     */
+    static class TextIndex {
+        static final int MAX_UNION_TERMS = 1024;
+        static final int MAX_TIERED_TERMS = 4;
+
+        static final class Postings {
+            static final class Block {
+                final int[] docs;
+                final LibraryItem[] items;
+                volatile int size; // written last: entries below it are complete
+                Block(int capacity) { docs = new int[capacity]; items = new LibraryItem[capacity]; }
+            }
+            private volatile Block block; // readers take one block and keep it
+
+            Postings() { this(new Block(2)); }
+            private Postings(Block block) { this.block = block; }
+
+            void add(int doc, LibraryItem item) {
+                Block b = block;
+                int n = b.size;
+                if (n == b.docs.length) b = copy(b, n * 2, -1);
+                b.docs[n] = doc;
+                b.items[n] = item;
+                b.size = n + 1;
+            }
+            /** Drops {@code doc} by publishing a copy without it; O(list length). */
+            void remove(int doc) {
+                Block b = block;
+                int at = Arrays.binarySearch(b.docs, 0, b.size, doc);
+                if (at >= 0) copy(b, b.docs.length, at);
+            }
+            private Block copy(Block b, int capacity, int skip) {
+                Block c = new Block(capacity);
+                int n = 0;
+                for (int i = 0; i < b.size; i++) {
+                    if (i == skip) continue;
+                    c.docs[n] = b.docs[i];
+                    c.items[n++] = b.items[i];
+                }
+                c.size = n;
+                block = c;
+                return c;
+            }
+            Block block() { return block; }
+            int size() { return block.size; }
+        }
+        static final class Term {
+            final Postings title = new Postings(), author = new Postings();
+        }
+
+        /** One read-only list with the docs of all {@code lists}, each once: a k-way merge, O(postings x log lists). */
+        static Postings merge(List<Postings> lists) {
+            PriorityQueue<ListCursor> heap = new PriorityQueue<>(Comparator.comparingInt(ListCursor::doc));
+            int total = 0;
+            for (Postings p : lists) {
+                ListCursor c = new ListCursor(p);
+                total += c.size;
+                if (c.doc() != Cursor.END) heap.add(c);
+            }
+            Postings.Block merged = new Postings.Block(Math.max(total, 1));
+            int n = 0;
+            while (!heap.isEmpty()) {
+                ListCursor c = heap.poll();
+                int doc = c.doc();
+                if (n == 0 || merged.docs[n - 1] != doc) { // a doc can match several of the terms
+                    merged.docs[n] = doc;
+                    merged.items[n++] = c.item();
+                }
+                c.advance(doc + 1);
+                if (c.doc() != Cursor.END) heap.add(c);
+            }
+            merged.size = n;
+            return new Postings(merged);
+        }
+
+        private final ConcurrentSkipListMap<String, Term> terms = new ConcurrentSkipListMap<>();
+        private volatile int documents;
+
+        /** Lower-cased letter/digit runs of {@code text}, without repeats. */
+        static List<String> tokenize(String text) {
+            List<String> out = new ArrayList<>(4);
+            int i = 0, n = text.length();
+            while (i < n) {
+                while (i < n && !Character.isLetterOrDigit(text.codePointAt(i))) i += Character.charCount(text.codePointAt(i));
+                int start = i;
+                while (i < n && Character.isLetterOrDigit(text.codePointAt(i))) i += Character.charCount(text.codePointAt(i));
+                if (i > start) {
+                    String t = text.substring(start, i).toLowerCase(Locale.ROOT);
+                    if (!out.contains(t)) out.add(t);
+                }
+            }
+            return out;
+        }
+
+        void add(LibraryItem item) {
+            int doc = documents;
+            item.textDoc = doc;
+            for (String t : tokenize(item.getTitle())) terms.computeIfAbsent(t, k -> new Term()).title.add(doc, item);
+            for (String t : tokenize(item.getAuthor())) terms.computeIfAbsent(t, k -> new Term()).author.add(doc, item);
+            documents = doc + 1;
+        }
+
+        /** Removes a replaced item's postings. A query already running may still see them; it skips them. */
+        void remove(LibraryItem item) {
+            for (String t : tokenize(item.getTitle())) remove(t, item.textDoc, true);
+            for (String t : tokenize(item.getAuthor())) remove(t, item.textDoc, false);
+        }
+        private void remove(String text, int doc, boolean title) {
+            Term term = terms.get(text);
+            if (term == null) return;
+            (title ? term.title : term.author).remove(doc);
+            if (term.title.size() == 0 && term.author.size() == 0) terms.remove(text, term);
+        }
+
+        /* ----- cursors: one postings list, or the union of several, walked in doc order ----- */
+
+        interface Cursor {
+            int END = Integer.MAX_VALUE;
+            int doc();
+            LibraryItem item();
+            /** Moves to the first doc >= target. */
+            void advance(int target);
+        }
+
+        static final class ListCursor implements Cursor {
+            private final int[] docs;
+            private final LibraryItem[] items;
+            private final int size;
+            private int pos;
+            ListCursor(Postings p) {
+                Postings.Block b = p.block();
+                size = b.size; docs = b.docs; items = b.items;
+            }
+            @Override public int doc() { return pos < size ? docs[pos] : END; }
+            @Override public LibraryItem item() { return items[pos]; }
+            @Override public void advance(int target) {
+                if (pos >= size || docs[pos] >= target) return;
+                int step = 1, lo = pos, hi = pos + 1; // gallop, then binary search
+                while (hi < size && docs[hi] < target) { lo = hi; step <<= 1; hi = pos + step; }
+                if (hi > size) hi = size;
+                while (lo + 1 < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if (docs[mid] < target) lo = mid; else hi = mid;
+                }
+                pos = hi;
+            }
+        }
+
+        static final class UnionCursor implements Cursor {
+            private final Cursor[] parts;
+            private Cursor current;
+            UnionCursor(List<Cursor> parts) { this.parts = parts.toArray(new Cursor[0]); pick(); }
+            private void pick() {
+                current = null;
+                for (Cursor c : parts) if (current == null || c.doc() < current.doc()) current = c;
+            }
+            @Override public int doc() { return current == null ? END : current.doc(); }
+            @Override public LibraryItem item() { return current.item(); }
+            @Override public void advance(int target) {
+                for (Cursor c : parts) c.advance(target);
+                pick();
+            }
+        }
+
+        /** Moves all cursors to their next common doc at or after {@code target}; END if there is none. */
+        static int intersect(Cursor[] cursors, int target) {
+            while (true) {
+                int max = target;
+                for (Cursor c : cursors) {
+                    c.advance(max);
+                    if (c.doc() == Cursor.END) return Cursor.END;
+                    max = Math.max(max, c.doc());
+                }
+                boolean aligned = true;
+                for (Cursor c : cursors) aligned &= c.doc() == max;
+                if (aligned) return max;
+                target = max;
+            }
+        }
+
+        /* ----- queries ----- */
+
+        private static final class QueryTerm {
+            final List<Postings> title = new ArrayList<>(), author = new ArrayList<>();
+            double idf;
+
+            Cursor cursor(int field) {
+                List<Cursor> parts = new ArrayList<>();
+                if ((field & TITLE) != 0) for (Postings p : title) parts.add(new ListCursor(p));
+                if ((field & AUTHOR) != 0) for (Postings p : author) parts.add(new ListCursor(p));
+                return parts.size() == 1 ? parts.get(0) : new UnionCursor(parts);
+            }
+        }
+        private static final int AUTHOR = 1, TITLE = 2; // also the per-field weights
+
+        List<LibraryItem> search(String query, Class<? extends LibraryItem> type, int limit, IntFunction<LibraryItem> live) {
+            if (limit <= 0) return Collections.emptyList();
+            List<QueryTerm> q = new ArrayList<>();
+            int n = Math.max(documents, 1);
+            for (String word : query.trim().split("\\s+")) {
+                List<String> tokens = tokenize(word);
+                for (int i = 0; i < tokens.size(); i++) {
+                    String text = tokens.get(i);
+                    Collection<Term> expansions = word.endsWith("*") && i == tokens.size() - 1
+                            ? terms.subMap(text, text + Character.MAX_VALUE).values()
+                            : Optional.ofNullable(terms.get(text)).map(Collections::singletonList).orElse(Collections.emptyList());
+                    QueryTerm t = new QueryTerm();
+                    long df = 0;
+                    for (Term term : expansions) {
+                        t.title.add(term.title);
+                        t.author.add(term.author);
+                        df += term.title.size() + term.author.size();
+                    }
+                    if (df == 0) return Collections.emptyList(); // AND: one unknown word empties the result
+                    if (t.title.size() > MAX_UNION_TERMS) { // a union cursor pays per part on every step
+                        Postings title = merge(t.title), author = merge(t.author);
+                        t.title.clear();
+                        t.title.add(title);
+                        t.author.clear();
+                        t.author.add(author);
+                    }
+                    t.idf = Math.log(1 + (double) n / df);
+                    q.add(t);
+                }
+            }
+            if (q.isEmpty()) return Collections.emptyList();
+            return q.size() <= MAX_TIERED_TERMS ? tiered(q, type, limit, live) : ranked(q, type, limit, live);
+        }
+
+        // each tier fixes title-or-author per term; tiers run best score first and each yields docs in order
+        private static List<LibraryItem> tiered(List<QueryTerm> q, Class<? extends LibraryItem> type, int limit, IntFunction<LibraryItem> live) {
+            int m = q.size();
+            Integer[] tiers = new Integer[1 << m]; // bit i set: term i matches in the title
+            double[] score = new double[1 << m];
+            for (int mask = 0; mask < tiers.length; mask++) {
+                tiers[mask] = mask;
+                for (int i = 0; i < m; i++) score[mask] += q.get(i).idf * ((mask >> i & 1) != 0 ? TITLE : AUTHOR);
+            }
+            Arrays.sort(tiers, (a, b) -> Double.compare(score[b], score[a]));
+            List<LibraryItem> out = new ArrayList<>(Math.min(limit, 64));
+            Set<LibraryItem> seen = new HashSet<>(); // an item in a better tier also shows up in worse ones
+            for (int mask : tiers) {
+                Cursor[] cursors = new Cursor[m];
+                for (int i = 0; i < m; i++) cursors[i] = q.get(i).cursor((mask >> i & 1) != 0 ? TITLE : AUTHOR);
+                for (int doc = intersect(cursors, 0); doc != Cursor.END; doc = intersect(cursors, doc + 1)) {
+                    LibraryItem item = cursors[0].item();
+                    if (!type.isInstance(item) || live.apply(item.getId()) != item || !seen.add(item)) continue;
+                    out.add(item);
+                    if (out.size() == limit) return out;
+                }
+            }
+            return out;
+        }
+
+        // one pass over every match (title or author for each term), keeping the best `limit`
+        private static List<LibraryItem> ranked(List<QueryTerm> q, Class<? extends LibraryItem> type, int limit, IntFunction<LibraryItem> live) {
+            int m = q.size();
+            Cursor[] any = new Cursor[m], titles = new Cursor[m];
+            for (int i = 0; i < m; i++) {
+                any[i] = q.get(i).cursor(TITLE | AUTHOR);
+                titles[i] = q.get(i).cursor(TITLE);
+            }
+            // min-heap by score, then by doc descending, so the earliest of equal scores survive
+            PriorityQueue<Object[]> top = new PriorityQueue<>(Comparator.<Object[]>comparingDouble(e -> (Double) e[0])
+                    .thenComparing(e -> -(Integer) e[1]));
+            for (int doc = intersect(any, 0); doc != Cursor.END; doc = intersect(any, doc + 1)) {
+                LibraryItem item = any[0].item();
+                if (!type.isInstance(item) || live.apply(item.getId()) != item) continue;
+                double score = 0;
+                for (int i = 0; i < m; i++) {
+                    titles[i].advance(doc);
+                    score += q.get(i).idf * (titles[i].doc() == doc ? TITLE : AUTHOR);
+                }
+                top.add(new Object[] { score, doc, item });
+                if (top.size() > limit) top.poll();
+            }
+            LibraryItem[] out = new LibraryItem[top.size()];
+            for (int i = out.length - 1; i >= 0; i--) out[i] = (LibraryItem) top.poll()[2];
+            return Arrays.asList(out);
+        }
+    }
+
+    /* ---------------------------
+       Flight Recorder Events
+       --------------------------- */
+    // Off by default; libranet.jfc turns them on. With recording off, a call site costs an isEnabled() check
+    // on a per-type probe instance: no allocation and no clock reads. The probes are only created once JFR is
+    // running: the first event instance initializes JFR, which takes a few hundred milliseconds.
+
+    @Name("libranet.Borrow") @Label("Borrow") @Category({"LibraNet", "Circulation"})
+    @Description("A borrowItem / tryBorrow call") @Enabled(false) @StackTrace(false)
+    static final class BorrowEvent extends Event {
+        private static final class Probe { static final BorrowEvent EVENT = new BorrowEvent(); }
+        static boolean enabled() { return FlightRecorder.isInitialized() && Probe.EVENT.isEnabled(); }
+
+        @Label("Item Id") int itemId;
+        @Label("Item Type") String itemType;
+        @Label("User Id") int userId;
+        @Label("Outcome") String outcome;
+        @Label("Item Wait") @Description("Time to take the item: stripe lock plus claim, including back-off")
+        @Timespan(Timespan.NANOSECONDS) long itemWait;
+        @Label("Duration Parse Time") @Timespan(Timespan.NANOSECONDS) long parseTime;
+
+        void finish(int itemId, int userId, BorrowResult.Status outcome) {
+            end();
+            if (!shouldCommit()) return;
+            this.itemId = itemId;
+            this.userId = userId;
+            this.outcome = outcome.name();
+            commit();
+        }
+    }
+
+    @Name("libranet.Return") @Label("Return") @Category({"LibraNet", "Circulation"})
+    @Description("A returnItem / tryReturn call") @Enabled(false) @StackTrace(false)
+    static final class ReturnEvent extends Event {
+        private static final class Probe { static final ReturnEvent EVENT = new ReturnEvent(); }
+        static boolean enabled() { return FlightRecorder.isInitialized() && Probe.EVENT.isEnabled(); }
+
+        @Label("Item Id") int itemId;
+        @Label("Item Type") String itemType;
+        @Label("User Id") int userId;
+        @Label("Outcome") String outcome;
+        @Label("Overdue Days") long overdueDays;
+        @Label("Fine (paise)") long finePaise;
+        @Label("Item Wait") @Description("Time to take the item: stripe lock plus claim, including back-off")
+        @Timespan(Timespan.NANOSECONDS) long itemWait;
+
+        void returned(BorrowRecord record, long overdueDays) {
+            this.userId = record.getUserId();
+            this.overdueDays = Math.max(overdueDays, 0);
+            this.finePaise = overdueDays > 0 ? record.getFinePerDayPaiseAtBorrow() * overdueDays : 0;
+        }
+        void finish(int itemId, BorrowResult.Status outcome) {
+            end();
+            if (!shouldCommit()) return;
+            this.itemId = itemId;
+            this.outcome = outcome.name();
+            commit();
+        }
+    }
+
+    @Name("libranet.FineAccrual") @Label("Fine Accrual") @Category({"LibraNet", "Fines"})
+    @Description("A late return charged a fine") @Enabled(false) @StackTrace(false)
+    static final class FineAccrualEvent extends Event {
+        private static final class Probe { static final FineAccrualEvent EVENT = new FineAccrualEvent(); }
+        static boolean enabled() { return FlightRecorder.isInitialized() && Probe.EVENT.isEnabled(); }
+
+        @Label("User Id") int userId;
+        @Label("Item Id") int itemId;
+        @Label("Overdue Days") long overdueDays;
+        @Label("Fine (paise)") long finePaise;
+    }
+
+    @Name("libranet.ArchiveIssue") @Label("Archive Issue") @Category({"LibraNet", "Circulation"})
+    @Description("An e-magazine issue was archived") @Enabled(false) @StackTrace(false)
+    static final class ArchiveEvent extends Event {
+        private static final class Probe { static final ArchiveEvent EVENT = new ArchiveEvent(); }
+        static boolean enabled() { return FlightRecorder.isInitialized() && Probe.EVENT.isEnabled(); }
+
+        @Label("Item Id") int itemId;
+        @Label("Issue Number") int issueNumber;
+    }
+
+    @Name("libranet.ItemContention") @Label("Item Contention") @Category({"LibraNet", "Locking"})
+    @Description("A transition waited for another thread to finish with the same item") @Enabled(false) @StackTrace(false)
+    static final class ItemContentionEvent extends Event {
+        private static final class Probe { static final ItemContentionEvent EVENT = new ItemContentionEvent(); }
+        static boolean enabled() { return FlightRecorder.isInitialized() && Probe.EVENT.isEnabled(); }
+
+        @Label("Item Id") int itemId;
+        @Label("Transition") String transition;
+        @Label("Spins") int spins;
+        @Label("Claimed") boolean claimed;
+    }
+
+    /* ---------------------------
+       Metrics
+       --------------------------- */
+    /**
+     * Counters and latency histograms for one or more catalogs ({@link LibraryCatalog#setMetrics}). Recording
+     * is a LongAdder increment or two, so the hot path neither allocates nor contends; {@link #snapshot} reads
+     * everything on demand, and {@link PrometheusExporter} formats a snapshot as Prometheus text.
+     */
+    public static class CatalogMetrics {
+        final LongAdder borrows = new LongAdder(), returns = new LongAdder(), lateReturns = new LongAdder();
+        final LongAdder finePaise = new LongAdder();
+        final LongAdder[] failures = new LongAdder[BorrowResult.Status.values().length]; // by status; SUCCESS unused
+        final LatencyHistogram borrowLatency = new LatencyHistogram(), returnLatency = new LatencyHistogram();
+        final LatencyHistogram searchByTypeLatency = new LatencyHistogram(), searchLatency = new LatencyHistogram();
+        {
+            for (int i = 0; i < failures.length; i++) failures[i] = new LongAdder();
+        }
+
+        void failed(BorrowResult.Status status) {
+            if (status != BorrowResult.Status.SUCCESS) failures[status.ordinal()].increment();
+        }
+        // the BorrowResult status a throwing call would have returned instead
+        static BorrowResult.Status statusOf(LibraryException e) {
+            return e instanceof ItemNotFoundException ? BorrowResult.Status.NOT_FOUND
+                    : e instanceof ItemUnavailableException ? BorrowResult.Status.UNAVAILABLE
+                    : e instanceof ItemNotBorrowedException ? BorrowResult.Status.NOT_BORROWED
+                    : e instanceof BorrowLimitExceededException ? BorrowResult.Status.LIMIT_REACHED
+                    : BorrowResult.Status.BAD_DURATION;
+        }
+        void returned(long overdueDays, long paise) {
+            returns.increment();
+            if (overdueDays > 0) lateReturns.increment();
+            if (paise != 0) finePaise.add(paise);
+        }
+
+        public Snapshot snapshot() { return snapshot(Collections.emptyMap()); }
+
+        Snapshot snapshot(Map<AvailabilityStatus, Long> itemsByStatus) {
+            Map<BorrowResult.Status, Long> failed = new EnumMap<>(BorrowResult.Status.class);
+            for (BorrowResult.Status s : BorrowResult.Status.values()) {
+                if (s != BorrowResult.Status.SUCCESS) failed.put(s, failures[s.ordinal()].sum());
+            }
+            Map<String, LatencyHistogram.Snapshot> latencies = new LinkedHashMap<>();
+            latencies.put("borrow", borrowLatency.snapshot());
+            latencies.put("return", returnLatency.snapshot());
+            latencies.put("search_by_type", searchByTypeLatency.snapshot());
+            latencies.put("search", searchLatency.snapshot());
+            return new Snapshot(borrows.sum(), returns.sum(), lateReturns.sum(), finePaise.sum(), failed, latencies, itemsByStatus);
+        }
+
+        /** Point-in-time values; each number is exact, though they are not read atomically together. */
+        public static final class Snapshot {
+            public final long borrows, returns, lateReturns, finePaise;
+            public final Map<BorrowResult.Status, Long> failures;
+            public final Map<String, LatencyHistogram.Snapshot> latencies; // operation -> histogram
+            public final Map<AvailabilityStatus, Long> itemsByStatus;      // empty unless taken from a catalog
+
+            Snapshot(long borrows, long returns, long lateReturns, long finePaise, Map<BorrowResult.Status, Long> failures,
+                     Map<String, LatencyHistogram.Snapshot> latencies, Map<AvailabilityStatus, Long> itemsByStatus) {
+                this.borrows = borrows; this.returns = returns; this.lateReturns = lateReturns; this.finePaise = finePaise;
+                this.failures = Collections.unmodifiableMap(failures);
+                this.latencies = Collections.unmodifiableMap(latencies);
+                this.itemsByStatus = Collections.unmodifiableMap(itemsByStatus);
+            }
+            public BigDecimal getFineTotal() { return FineLedger.toRupees(finePaise); }
+        }
+    }
+
+    /**
+     * Latency histogram with power-of-two nanosecond buckets (the last one open-ended), each a LongAdder.
+     * Quantiles from a snapshot are bucket upper bounds, so within 2x of the true value.
+     */
+    public static class LatencyHistogram {
+        static final int BUCKETS = 36; // bucket i: < 2^i ns; 2^35 ns is about 34 s
+
+        private final LongAdder[] counts = new LongAdder[BUCKETS];
+        private final LongAdder totalNanos = new LongAdder();
+        {
+            for (int i = 0; i < BUCKETS; i++) counts[i] = new LongAdder();
+        }
+
+        public void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            counts[Math.min(64 - Long.numberOfLeadingZeros(nanos), BUCKETS - 1)].increment();
+            totalNanos.add(nanos);
+        }
+
+        public Snapshot snapshot() {
+            long[] c = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) c[i] = counts[i].sum();
+            return new Snapshot(c, totalNanos.sum());
+        }
+
+        public static final class Snapshot {
+            private final long[] counts;
+            public final long count, totalNanos;
+
+            Snapshot(long[] counts, long totalNanos) {
+                this.counts = counts;
+                this.totalNanos = totalNanos;
+                long n = 0;
+                for (long c : counts) n += c;
+                this.count = n;
+            }
+            /** Upper bound in nanoseconds of bucket {@code i}; the last bucket has none (Long.MAX_VALUE). */
+            public static long upperBoundNanos(int i) { return i == BUCKETS - 1 ? Long.MAX_VALUE : 1L << i; }
+            public long countInBucket(int i) { return counts[i]; }
+            /** Upper bound of the bucket holding quantile {@code q} (0..1); 0 if nothing was recorded. */
+            public long quantileNanos(double q) {
+                long rank = (long) Math.ceil(q * count), seen = 0;
+                for (int i = 0; i < BUCKETS; i++) {
+                    seen += counts[i];
+                    if (seen >= Math.max(rank, 1)) return upperBoundNanos(i);
+                }
+                return 0;
+            }
+        }
+    }
+
+    /** Formats metrics snapshots in the Prometheus text exposition format (version 0.0.4). */
+    public static final class PrometheusExporter {
+        public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+        private PrometheusExporter() {}
+
+        public static String format(CatalogMetrics.Snapshot s) {
+            StringBuilder out = new StringBuilder(4096);
+            counter(out, "libranet_borrows_total", "Successful borrows.", s.borrows);
+            counter(out, "libranet_returns_total", "Successful returns.", s.returns);
+            counter(out, "libranet_late_returns_total", "Returns after the due date.", s.lateReturns);
+            header(out, "libranet_fines_rupees_total", "Fines charged on returns, in rupees.", "counter");
+            out.append("libranet_fines_rupees_total ").append(s.getFineTotal().toPlainString()).append('\n');
+            header(out, "libranet_failures_total", "Failed borrows and returns by reason.", "counter");
+            for (Map.Entry<BorrowResult.Status, Long> e : s.failures.entrySet()) {
+                out.append("libranet_failures_total{reason=\"").append(e.getKey().name().toLowerCase(Locale.ROOT))
+                   .append("\"} ").append(e.getValue()).append('\n');
+            }
+            if (!s.itemsByStatus.isEmpty()) {
+                header(out, "libranet_items", "Items in the catalog by status.", "gauge");
+                for (Map.Entry<AvailabilityStatus, Long> e : s.itemsByStatus.entrySet()) {
+                    out.append("libranet_items{status=\"").append(e.getKey().name().toLowerCase(Locale.ROOT))
+                       .append("\"} ").append(e.getValue()).append('\n');
+                }
+            }
+            header(out, "libranet_operation_duration_seconds", "Latency of catalog operations.", "histogram");
+            for (Map.Entry<String, LatencyHistogram.Snapshot> e : s.latencies.entrySet()) {
+                LatencyHistogram.Snapshot h = e.getValue();
+                String name = "libranet_operation_duration_seconds";
+                long cumulative = 0;
+                for (int i = 0; i < LatencyHistogram.BUCKETS - 1; i++) {
+                    cumulative += h.countInBucket(i);
+                    if (i < 10) continue; // nothing useful below a microsecond; those counts stay cumulative
+                    out.append(name).append("_bucket{op=\"").append(e.getKey()).append("\",le=\"")
+                       .append(seconds(LatencyHistogram.Snapshot.upperBoundNanos(i))).append("\"} ").append(cumulative).append('\n');
+                }
+                out.append(name).append("_bucket{op=\"").append(e.getKey()).append("\",le=\"+Inf\"} ").append(h.count).append('\n');
+                out.append(name).append("_sum{op=\"").append(e.getKey()).append("\"} ").append(seconds(h.totalNanos)).append('\n');
+                out.append(name).append("_count{op=\"").append(e.getKey()).append("\"} ").append(h.count).append('\n');
+            }
+            return out.toString();
+        }
+
+        private static void header(StringBuilder out, String name, String help, String type) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+        private static void counter(StringBuilder out, String name, String help, long value) {
+            header(out, name, help, "counter");
+            out.append(name).append(' ').append(value).append('\n');
+        }
+        private static String seconds(long nanos) {
+            return BigDecimal.valueOf(nanos, 9).stripTrailingZeros().toPlainString();
+        }
+    }
+
+    /**
+     * Serves a catalog's metrics at {@code GET /metrics} in Prometheus text format from the JDK's built-in HTTP
+     * server. Bind it to a loopback address unless the network is trusted: there is no authentication.
+     */
+    public static final class MetricsEndpoint implements AutoCloseable {
+        private final HttpServer server;
+
+        private MetricsEndpoint(HttpServer server) { this.server = server; }
+
+        public static MetricsEndpoint start(LibraryCatalog catalog, InetSocketAddress address) throws IOException {
+            Objects.requireNonNull(catalog);
+            HttpServer server = HttpServer.create(address, 0);
+            server.createContext("/metrics", exchange -> {
+                try (exchange) {
+                    if (!"GET".equals(exchange.getRequestMethod())) {
+                        exchange.sendResponseHeaders(405, -1);
+                        return;
+                    }
+                    byte[] body = PrometheusExporter.format(catalog.snapshotMetrics()).getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", PrometheusExporter.CONTENT_TYPE);
+                    exchange.sendResponseHeaders(200, body.length);
+                    exchange.getResponseBody().write(body);
+                }
+            });
+            server.start(); // scrapes are rare: the server's own dispatch thread is enough
+            return new MetricsEndpoint(server);
+        }
+
+        /** The bound address (useful with port 0). */
+        public InetSocketAddress getAddress() { return server.getAddress(); }
+
+        @Override public void close() { server.stop(0); }
+    }
+
+    /* ---------------------------
+       Catalog
+       --------------------------- */
+    public static class LibraryCatalog implements AutoCloseable {
+        private final IntObjectMap<LibraryItem> items = new IntObjectMap<>();
+        private final FineLedger fines = new FineLedger();
+        private final DayCache days;
+        private final TypeIndex typeIndex = new TypeIndex(); // also the lock that serializes item additions
+        private final TextIndex textIndex = new TextIndex();
+        private final StatusIndex statusIndex = new StatusIndex();
+        private final DueDateIndex dueDates = new DueDateIndex();
+        private final UserLoanIndex userLoans = new UserLoanIndex();
+        private final IntObjectMap<HoldQueue> holds = new IntObjectMap<>();
+        private final Queue<HoldQueue> holdQueues = new ConcurrentLinkedQueue<>(); // every queue in holds, for expireHolds
+        private volatile int holdDays = 14;
+        private volatile int borrowLimit; // 0 = unlimited
+        private volatile boolean stacklessFailures;
+        private volatile LibraryEventSink eventSink = LibraryEventSink.STDOUT;
+        private volatile CatalogMetrics metrics; // null: not recorded
+        private volatile WriteAheadLog wal; // null: in-memory only
+        private final ReentrantReadWriteLock[] fineCut = new ReentrantReadWriteLock[32]; // see snapshotFines
+        private long replayFineCutLsn;       // during recovery: fines up to this LSN came from the snapshot
+        private volatile ItemLocking itemLocking = ItemLocking.CAS;
+        private final ReentrantLock[] stripes = new ReentrantLock[64];
+        {
+            for (int i = 0; i < fineCut.length; i++) fineCut[i] = new ReentrantReadWriteLock();
+            for (int i = 0; i < stripes.length; i++) stripes[i] = new ReentrantLock();
+        }
+
+        /**
+         * When enabled, the expected failures (item not found / unavailable / not borrowed) are thrown without
+         * capturing a stack trace. Their messages are always built lazily.
+         */
+        public void setStacklessFailures(boolean stackless) { this.stacklessFailures = stackless; }
+
+        /** Maximum open loans per user (0, the default, means no limit). */
+        public void setBorrowLimit(int limit) {
+            if (limit < 0) throw new IllegalArgumentException("limit must be >= 0");
+            this.borrowLimit = limit;
+        }
+        public int getBorrowLimit() { return borrowLimit; }
+
+        public LibraryCatalog() { this(Clock.systemDefaultZone()); }
+
+        /** {@code clock} decides borrow dates and "today"; pass a fixed clock for deterministic tests. */
+        public LibraryCatalog(Clock clock) { this.days = new DayCache(clock); }
+
+        public Clock getClock() { return days.getClock(); }
+
+        public LocalDate today() { return LocalDate.ofEpochDay(days.today()); }
+
+        /** Where return, fine and item events go; events are always published after the item lock is released. */
+        public void setEventSink(LibraryEventSink sink) { this.eventSink = Objects.requireNonNull(sink); }
+        public LibraryEventSink getEventSink() { return eventSink; }
+
+        /** Starts recording counters and latencies into {@code metrics} (which catalogs may share); null stops. */
+        public void setMetrics(CatalogMetrics metrics) { this.metrics = metrics; }
+        public CatalogMetrics getMetrics() { return metrics; }
+
+        /** The metrics snapshot plus live item counts by status; empty counters if no metrics are set. */
+        public CatalogMetrics.Snapshot snapshotMetrics() {
+            CatalogMetrics m = metrics;
+            Map<AvailabilityStatus, Long> byStatus = new EnumMap<>(AvailabilityStatus.class);
+            for (AvailabilityStatus s : AvailabilityStatus.values()) byStatus.put(s, countByStatus(s));
+            return (m != null ? m : new CatalogMetrics()).snapshot(byStatus);
+        }
+
+        /**
+         * CAS (default) claims an item for borrow / return with one compare-and-set on its state; STRIPED also
+         * serializes changes through a small table of locks by item id. Either way, a borrow of an item that
+         * is out, or a return of one that is in, fails on a plain read without locking once the state is settled;
+         * a change still in flight is waited for, since it may be aborted. Safe to switch live.
+         */
+        public void setItemLocking(ItemLocking mode) { this.itemLocking = Objects.requireNonNull(mode); }
+        public ItemLocking getItemLocking() { return itemLocking; }
+
+        /**
+         * Rebuilds a catalog from the newest snapshot and the write-ahead log in {@code walDir} (an empty
+         * catalog if there is neither yet) and keeps logging every change to it. Close the catalog to flush the log.
+         */
+        public static LibraryCatalog recover(Path walDir, WriteAheadLog.SyncPolicy policy) throws IOException {
+            return recover(walDir, policy, Clock.systemDefaultZone());
+        }
+
+        public static LibraryCatalog recover(Path walDir, WriteAheadLog.SyncPolicy policy, Clock clock) throws IOException {
+            LibraryCatalog catalog = new LibraryCatalog(clock);
+            catalog.eventSink = LibraryEventSink.NO_OP; // replay is not news
+            Path snapshot = CatalogSnapshot.latest(walDir);
+            long snapshotLsn = 0;
+            if (snapshot != null) {
+                CatalogSnapshot.Header h = CatalogSnapshot.load(snapshot, catalog);
+                catalog.replayFineCutLsn = h.fineCutLsn;
+                snapshotLsn = h.endLsn;
+            }
+            catalog.wal = WriteAheadLog.open(walDir, policy, 10, 64L << 20, snapshotLsn, catalog.replayer());
+            catalog.eventSink = LibraryEventSink.STDOUT;
+            return catalog;
+        }
+
+        /** Loads the newest snapshot in {@code dir} into a new, in-memory catalog (no log is attached). */
+        public static LibraryCatalog loadSnapshot(Path dir, Clock clock) throws IOException {
+            Path snapshot = CatalogSnapshot.latest(dir);
+            if (snapshot == null) throw new IOException("No snapshot in " + dir);
+            LibraryCatalog catalog = new LibraryCatalog(clock);
+            catalog.eventSink = LibraryEventSink.NO_OP;
+            CatalogSnapshot.load(snapshot, catalog);
+            catalog.eventSink = LibraryEventSink.STDOUT;
+            return catalog;
+        }
+
+        public WriteAheadLog getWriteAheadLog() { return wal; }
+
+        /** Flushes and closes the write-ahead log, if any. */
+        @Override public void close() throws IOException {
+            WriteAheadLog w = wal;
+            if (w != null) w.close();
+        }
+
+        // caller holds the typeIndex lock and has already pointed item.catalog here. Replacing an item that is
+        // on loan ends the loan without a fine (the new item starts on the shelf); returns true if it did
+        private boolean indexItem(LibraryItem item) {
+            LibraryItem previous = items.get(item.getId()); // additions are serialized: the put below replaces it
+            if (previous == item) return false;
+            // both pinned, so no transition settles while the put moves the counting from one to the other
+            // (statusMoved counts only the item in the map)
+            ItemState pinned = item.pin(), pinnedPrevious = previous == null ? null : previous.pin();
+            try {
+                items.put(item.getId(), item);
+                typeIndex.add(item, previous);
+                if (previous != null) textIndex.remove(previous);
+                textIndex.add(item);
+                statusIndex.add(item, pinned.status);
+                if (previous != null) statusIndex.remove(previous, pinnedPrevious.status);
+                BorrowRecord loan = previous == null ? null : pinnedPrevious.record;
+                if (loan != null) unindex(loan);
+                return loan != null;
+            } finally {
+                if (previous != null) previous.abort(pinnedPrevious);
+                item.abort(pinned);
+            }
+        }
+
+        // every settled status change; items that are not (or no longer) in the catalog are not counted
+        void statusMoved(LibraryItem item, AvailabilityStatus from, AvailabilityStatus to) {
+            if (from != to && items.get(item.getId()) == item) statusIndex.moved(item, from, to);
+        }
+
+        /**
+         * Adds the item, replacing any item with the same id. If the replaced item is on loan, that loan ends
+         * without a fine (the user's loan slot is freed and it leaves the overdue index), and the new item goes
+         * to the first holder waiting for it, if any.
+         *
+         * @throws IllegalArgumentException if the item already belongs to another catalog
+         */
+        public void addItem(LibraryItem item) {
+            Objects.requireNonNull(item);
+            checkLog();
+            if (!item.adopt(this)) throw new IllegalArgumentException("Item " + item.getId() + " belongs to another catalog");
+            long lsn = 0;
+            boolean endedLoan;
+            synchronized (typeIndex) {
+                WriteAheadLog w = wal;
+                if (w != null) lsn = w.logAddItem(item);
+                item.walLsn = lsn; // before the item is visible, so a concurrent snapshot never sees it unlogged
+                endedLoan = indexItem(item);
+            }
+            awaitLog(lsn);
+            if (endedLoan) fillHolds(item);
+        }
+
+        /**
+         * Adds many items under one index lock, with a single durability wait at the end. If any item belongs to
+         * another catalog, none is added.
+         *
+         * @throws IllegalArgumentException if an item already belongs to another catalog
+         */
+        public void addItems(Collection<? extends LibraryItem> batch) {
+            if (batch.isEmpty()) return;
+            checkLog();
+            List<LibraryItem> adopted = new ArrayList<>();
+            for (LibraryItem item : batch) {
+                if (Objects.requireNonNull(item).catalog == this) continue;
+                if (!item.adopt(this)) {
+                    for (LibraryItem a : adopted) a.catalog = null;
+                    throw new IllegalArgumentException("Item " + item.getId() + " belongs to another catalog");
+                }
+                adopted.add(item);
+            }
+            long lsn = 0;
+            List<LibraryItem> endedLoans = new ArrayList<>(0);
+            synchronized (typeIndex) {
+                items.ensureCapacity(items.size() + batch.size());
+                WriteAheadLog w = wal;
+                for (LibraryItem item : batch) {
+                    if (w != null) lsn = w.logAddItem(item);
+                    item.walLsn = lsn;
+                    if (indexItem(item)) endedLoans.add(item);
+                }
+            }
+            awaitLog(lsn);
+            for (LibraryItem item : endedLoans) fillHolds(item);
+        }
+
+        // a replacement took the place of an item on loan: the holders waiting for that loan can have it now
+        private void fillHolds(LibraryItem item) {
+            HoldQueue q = holds.get(item.getId());
+            if (q != null && q.size() > 0 && items.get(item.getId()) == item) fillFromShelf(item, q);
+        }
+
+        public LibraryItem getItem(int id) throws ItemNotFoundException {
+            LibraryItem it = items.get(id);
+            if (it == null) throw new ItemNotFoundException(id, !stacklessFailures);
+            return it;
+        }
+
+        public BorrowRecord borrowItem(int itemId, User user, String durationStr) throws LibraryException {
+            CatalogMetrics m = metrics;
+            if (m == null && !BorrowEvent.enabled()) return doBorrow(itemId, user, durationStr, null);
+            BorrowEvent event = BorrowEvent.enabled() ? new BorrowEvent() : null;
+            if (event != null) event.begin();
+            long start = System.nanoTime();
+            BorrowResult.Status outcome = BorrowResult.Status.SUCCESS;
+            try {
+                return doBorrow(itemId, user, durationStr, event);
+            } catch (LibraryException e) {
+                outcome = CatalogMetrics.statusOf(e);
+                throw e;
+            } finally {
+                if (m != null) {
+                    m.borrowLatency.record(System.nanoTime() - start);
+                    m.failed(outcome);
+                }
+                if (event != null) event.finish(itemId, user.getId(), outcome);
+            }
+        }
+
+        private BorrowRecord doBorrow(int itemId, User user, String durationStr, BorrowEvent event) throws LibraryException {
+            checkLog();
+            LibraryItem item = getItem(itemId);
+            if (event != null) event.itemType = item.getClass().getSimpleName();
+            if (!item.mayBorrow()) throw new ItemUnavailableException(item, item.getStatus(), !stacklessFailures);
+            long parseStart = event != null ? System.nanoTime() : 0;
+            long loanDays = DurationParser.parseToDays(durationStr);
+            if (event != null) event.parseTime = System.nanoTime() - parseStart;
+            int today = days.today();
+            if (loanDays > Integer.MAX_VALUE - today) throw new InvalidDurationFormatException("Duration out of range: '" + durationStr + "'");
+            BorrowRecord record = new BorrowRecord(user.getId(), itemId, today, (int) (today + loanDays), item.getFinePerDay());
+            long lsn;
+            long waitStart = event != null ? System.nanoTime() : 0;
+            Lock stripe = stripeFor(item);
+            if (stripe != null) stripe.lock();
+            try {
+                ItemState next = item.claim(LibraryItem.BORROW, record);
+                if (event != null) event.itemWait = System.nanoTime() - waitStart;
+                if (next == null) throw new ItemUnavailableException(item, item.getStatus(), !stacklessFailures);
+                int limit = borrowLimit;
+                if (!userLoans.tryReserve(user.getId(), limit)) {
+                    item.abort(next);
+                    throw new BorrowLimitExceededException(user.getId(), limit, !stacklessFailures);
+                }
+                lsn = checkout(item, next);
+            } finally {
+                if (stripe != null) stripe.unlock();
+            }
+            awaitLog(lsn);
+            return record;
+        }
+
+        /** Same as {@link #borrowItem} but reports failures as a {@link BorrowResult} instead of throwing. */
+        public BorrowResult tryBorrow(int itemId, User user, String durationStr) {
+            CatalogMetrics m = metrics;
+            if (m == null && !BorrowEvent.enabled()) return doTryBorrow(itemId, user, durationStr, null);
+            BorrowEvent event = BorrowEvent.enabled() ? new BorrowEvent() : null;
+            if (event != null) event.begin();
+            long start = System.nanoTime();
+            BorrowResult r = doTryBorrow(itemId, user, durationStr, event);
+            if (m != null) {
+                m.borrowLatency.record(System.nanoTime() - start);
+                m.failed(r.getStatus());
+            }
+            if (event != null) event.finish(itemId, user.getId(), r.getStatus());
+            return r;
+        }
+
+        private BorrowResult doTryBorrow(int itemId, User user, String durationStr, BorrowEvent event) {
+            checkLog();
+            LibraryItem item = items.get(itemId);
+            if (item == null) return BorrowResult.NOT_FOUND;
+            if (event != null) event.itemType = item.getClass().getSimpleName();
+            if (!item.mayBorrow()) return BorrowResult.UNAVAILABLE;
+            long parseStart = event != null ? System.nanoTime() : 0;
+            long loanDays = DurationParser.tryParseToDays(durationStr);
+            if (event != null) event.parseTime = System.nanoTime() - parseStart;
+            int today = days.today();
+            if (loanDays < 0 || loanDays > Integer.MAX_VALUE - today) return BorrowResult.BAD_DURATION;
+            BorrowRecord record = new BorrowRecord(user.getId(), itemId, today, (int) (today + loanDays), item.getFinePerDay());
+            long lsn;
+            long waitStart = event != null ? System.nanoTime() : 0;
+            Lock stripe = stripeFor(item);
+            if (stripe != null) stripe.lock();
+            try {
+                ItemState next = item.claim(LibraryItem.BORROW, record);
+                if (event != null) event.itemWait = System.nanoTime() - waitStart;
+                if (next == null) return BorrowResult.UNAVAILABLE;
+                if (!userLoans.tryReserve(user.getId(), borrowLimit)) {
+                    item.abort(next);
+                    return BorrowResult.LIMIT_REACHED;
+                }
+                lsn = checkout(item, next);
+            } finally {
+                if (stripe != null) stripe.unlock();
+            }
+            awaitLog(lsn);
+            return BorrowResult.borrowed(record);
+        }
+
+        public BigDecimal returnItem(int itemId, LocalDate returnDate) throws LibraryException {
+            CatalogMetrics m = metrics;
+            if (m == null && !ReturnEvent.enabled()) return doReturn(itemId, returnDate, null);
+            ReturnEvent event = ReturnEvent.enabled() ? new ReturnEvent() : null;
+            if (event != null) event.begin();
+            long start = System.nanoTime();
+            BorrowResult.Status outcome = BorrowResult.Status.SUCCESS;
+            try {
+                return doReturn(itemId, returnDate, event);
+            } catch (LibraryException e) {
+                outcome = CatalogMetrics.statusOf(e);
+                throw e;
+            } finally {
+                if (m != null) {
+                    m.returnLatency.record(System.nanoTime() - start);
+                    m.failed(outcome);
+                }
+                if (event != null) event.finish(itemId, outcome);
+            }
+        }
+
+        private BigDecimal doReturn(int itemId, LocalDate returnDate, ReturnEvent event) throws LibraryException {
+            checkLog();
+            LibraryItem item = getItem(itemId);
+            if (event != null) event.itemType = item.getClass().getSimpleName();
+            BorrowRecord record;
+            long overdueDays, lsn;
+            BigDecimal fine;
+            List<LibraryEvent> notices = new ArrayList<>(0);
+            long waitStart = event != null ? System.nanoTime() : 0;
+            Lock stripe = stripeFor(item);
+            if (stripe != null) stripe.lock();
+            try {
+                ItemState next = item.claim(LibraryItem.RETURN, null);
+                if (event != null) event.itemWait = System.nanoTime() - waitStart;
+                if (next == null) throw new ItemNotBorrowedException(item, item.getStatus(), !stacklessFailures);
+                record = next.previous.record;
+                overdueDays = record.overdueDaysOn(returnDate.toEpochDay());
+                fine = checkin(item, record, overdueDays);
+                if (event != null) event.returned(record, overdueDays);
+                lsn = settleReturn(item, next, notices);
+            } finally {
+                if (stripe != null) stripe.unlock();
+            }
+            awaitLog(lsn);
+            publishReturn(item, record, overdueDays, fine);
+            publishAll(notices);
+            return fine;
+        }
+
+        /** Returns the item as of the catalog clock's today. */
+        public BigDecimal returnItem(int itemId) throws LibraryException { return returnItem(itemId, today()); }
+
+        /** Same as {@link #returnItem} but reports failures as a {@link BorrowResult} instead of throwing. */
+        public BorrowResult tryReturn(int itemId, LocalDate returnDate) {
+            CatalogMetrics m = metrics;
+            if (m == null && !ReturnEvent.enabled()) return doTryReturn(itemId, returnDate, null);
+            ReturnEvent event = ReturnEvent.enabled() ? new ReturnEvent() : null;
+            if (event != null) event.begin();
+            long start = System.nanoTime();
+            BorrowResult r = doTryReturn(itemId, returnDate, event);
+            if (m != null) {
+                m.returnLatency.record(System.nanoTime() - start);
+                m.failed(r.getStatus());
+            }
+            if (event != null) event.finish(itemId, r.getStatus());
+            return r;
+        }
+
+        private BorrowResult doTryReturn(int itemId, LocalDate returnDate, ReturnEvent event) {
+            checkLog();
+            LibraryItem item = items.get(itemId);
+            if (item == null) return BorrowResult.NOT_FOUND;
+            if (event != null) event.itemType = item.getClass().getSimpleName();
+            if (!item.mayReturn()) return BorrowResult.NOT_BORROWED;
+            BorrowRecord record;
+            long overdueDays, lsn;
+            BigDecimal fine;
+            List<LibraryEvent> notices = new ArrayList<>(0);
+            long waitStart = event != null ? System.nanoTime() : 0;
+            Lock stripe = stripeFor(item);
+            if (stripe != null) stripe.lock();
+            try {
+                ItemState next = item.claim(LibraryItem.RETURN, null);
+                if (event != null) event.itemWait = System.nanoTime() - waitStart;
+                if (next == null) return BorrowResult.NOT_BORROWED;
+                record = next.previous.record;
+                overdueDays = record.overdueDaysOn(returnDate.toEpochDay());
+                fine = checkin(item, record, overdueDays);
+                if (event != null) event.returned(record, overdueDays);
+                lsn = settleReturn(item, next, notices);
+            } finally {
+                if (stripe != null) stripe.unlock();
+            }
+            awaitLog(lsn);
+            publishReturn(item, record, overdueDays, fine);
+            publishAll(notices);
+            return BorrowResult.returned(record, fine);
+        }
+
+        public BorrowResult tryReturn(int itemId) { return tryReturn(itemId, today()); }
+
+        /* ----- batches ----- */
+
+        /**
+         * Borrows a cart of items for one user: the duration is parsed and today's date read once. Results come
+         * back in the order of {@code itemIds} (a repeated id is UNAVAILABLE the second time). With
+         * {@link BatchMode#ALL_OR_NOTHING} the items are claimed in ascending id order, so concurrent batches
+         * cannot deadlock. Nothing is applied unless all of them can be; the others then report ABORTED. The
+         * batch is atomic in memory. After a crash, the log may hold only a prefix of it.
+         */
+        public List<BorrowResult> borrowAll(int[] itemIds, User user, String durationStr, BatchMode mode) {
+            checkLog();
+            BorrowResult[] results = new BorrowResult[itemIds.length];
+            long loanDays = DurationParser.tryParseToDays(durationStr);
+            int today = days.today();
+            if (loanDays < 0 || loanDays > Integer.MAX_VALUE - today) {
+                Arrays.fill(results, BorrowResult.BAD_DURATION);
+                countFailures(results);
+                return Arrays.asList(results);
+            }
+            int[] order = ascending(itemIds);
+            LibraryItem[] batch = new LibraryItem[itemIds.length];
+            ItemState[] claimed = new ItemState[itemIds.length];
+            int limit = borrowLimit;
+            long lsn = 0;
+            boolean all = mode == BatchMode.ALL_OR_NOTHING;
+            Lock[] locks = all ? lockStripes(itemIds) : null;
+            boolean failed = false; // all-or-nothing: once set, the remaining items are only checked, not claimed
+            try {
+                for (int k = 0; k < order.length; k++) {
+                    int i = order[k];
+                    LibraryItem item = batch[i] = items.get(itemIds[i]);
+                    if (item == null) { results[i] = BorrowResult.NOT_FOUND; failed = all; continue; }
+                    if (failed) {
+                        if (!item.mayBorrow()) results[i] = BorrowResult.UNAVAILABLE;
+                        continue;
+                    }
+                    Lock stripe = all ? null : stripeFor(item);
+                    if (stripe != null) stripe.lock();
+                    try {
+                        BorrowRecord record = new BorrowRecord(user.getId(), item.getId(), today, (int) (today + loanDays), item.getFinePerDay());
+                        ItemState next = item.claim(LibraryItem.BORROW, record);
+                        if (next == null) { results[i] = BorrowResult.UNAVAILABLE; failed = all; continue; }
+                        if (!userLoans.tryReserve(user.getId(), limit)) {
+                            item.abort(next);
+                            results[i] = BorrowResult.LIMIT_REACHED;
+                            failed = all;
+                            continue;
+                        }
+                        if (all) {
+                            claimed[i] = next;
+                        } else {
+                            lsn = Math.max(lsn, checkout(item, next));
+                            results[i] = BorrowResult.borrowed(record);
+                        }
+                    } finally {
+                        if (stripe != null) stripe.unlock();
+                    }
+                }
+                if (all) {
+                    for (int i = 0; i < itemIds.length; i++) {
+                        if (claimed[i] == null) continue;
+                        if (failed) {
+                            batch[i].abort(claimed[i]);
+                            userLoans.release(user.getId());
+                        } else {
+                            lsn = Math.max(lsn, checkout(batch[i], claimed[i]));
+                            results[i] = BorrowResult.borrowed(claimed[i].record);
+                        }
+                    }
+                    if (failed) for (int i = 0; i < results.length; i++) if (results[i] == null) results[i] = BorrowResult.ABORTED;
+                }
+            } finally {
+                unlock(locks);
+            }
+            awaitLog(lsn);
+            countFailures(results);
+            return Arrays.asList(results);
+        }
+
+        /** Returns a cart of items as of {@code returnDate}; same ordering and modes as {@link #borrowAll}. */
+        public List<BorrowResult> returnAll(int[] itemIds, LocalDate returnDate, BatchMode mode) {
+            checkLog();
+            BorrowResult[] results = new BorrowResult[itemIds.length];
+            long returnDay = returnDate.toEpochDay();
+            int[] order = ascending(itemIds);
+            LibraryItem[] batch = new LibraryItem[itemIds.length];
+            ItemState[] claimed = new ItemState[itemIds.length];
+            long[] overdue = new long[itemIds.length];
+            List<LibraryEvent> notices = new ArrayList<>(0);
+            long lsn = 0;
+            boolean all = mode == BatchMode.ALL_OR_NOTHING;
+            Lock[] locks = all ? lockStripes(itemIds) : null;
+            boolean failed = false;
+            try {
+                for (int k = 0; k < order.length; k++) {
+                    int i = order[k];
+                    LibraryItem item = batch[i] = items.get(itemIds[i]);
+                    if (item == null) { results[i] = BorrowResult.NOT_FOUND; failed = all; continue; }
+                    if (failed) {
+                        if (!item.mayReturn()) results[i] = BorrowResult.NOT_BORROWED;
+                        continue;
+                    }
+                    // a repeat must not return the loan a hold handed the item to
+                    if (k > 0 && itemIds[order[k - 1]] == itemIds[i]) { results[i] = BorrowResult.NOT_BORROWED; failed = all; continue; }
+                    Lock stripe = all ? null : stripeFor(item);
+                    if (stripe != null) stripe.lock();
+                    try {
+                        ItemState next = item.claim(LibraryItem.RETURN, null);
+                        if (next == null) { results[i] = BorrowResult.NOT_BORROWED; failed = all; continue; }
+                        claimed[i] = next;
+                        if (!all) lsn = Math.max(lsn, finishReturn(item, next, returnDay, results, overdue, i, notices));
+                    } finally {
+                        if (stripe != null) stripe.unlock();
+                    }
+                }
+                if (all) {
+                    for (int i = 0; i < itemIds.length; i++) {
+                        if (claimed[i] == null) continue;
+                        if (failed) batch[i].abort(claimed[i]);
+                        else lsn = Math.max(lsn, finishReturn(batch[i], claimed[i], returnDay, results, overdue, i, notices));
+                    }
+                    if (failed) {
+                        for (int i = 0; i < results.length; i++) if (results[i] == null) results[i] = BorrowResult.ABORTED;
+                        Arrays.fill(claimed, null);
+                    }
+                }
+            } finally {
+                unlock(locks);
+            }
+            awaitLog(lsn);
+            countFailures(results);
+            for (int i = 0; i < itemIds.length; i++) {
+                if (claimed[i] != null) publishReturn(batch[i], results[i].getRecord(), overdue[i], results[i].getFine());
+            }
+            publishAll(notices);
+            return Arrays.asList(results);
+        }
+
+        private void countFailures(BorrowResult[] results) {
+            CatalogMetrics m = metrics;
+            if (m != null) for (BorrowResult r : results) m.failed(r.getStatus());
+        }
+
+        private long finishReturn(LibraryItem item, ItemState next, long returnDay, BorrowResult[] results, long[] overdue, int i,
+                                  List<LibraryEvent> notices) {
+            BorrowRecord record = next.previous.record;
+            overdue[i] = record.overdueDaysOn(returnDay);
+            BigDecimal fine = checkin(item, record, overdue[i]);
+            long lsn = settleReturn(item, next, notices);
+            results[i] = BorrowResult.returned(record, fine);
+            return lsn;
+        }
+
+        // positions of ids, sorted by id (stable, so a repeated id is claimed in input order)
+        private static int[] ascending(int[] ids) {
+            Integer[] order = new Integer[ids.length];
+            for (int i = 0; i < ids.length; i++) order[i] = i;
+            Arrays.sort(order, Comparator.comparingInt(i -> ids[i]));
+            int[] out = new int[ids.length];
+            for (int i = 0; i < ids.length; i++) out[i] = order[i];
+            return out;
+        }
+
+        // STRIPED mode: every stripe the batch touches, taken in ascending stripe order; null in CAS mode
+        private Lock[] lockStripes(int[] ids) {
+            if (itemLocking != ItemLocking.STRIPED) return null;
+            boolean[] needed = new boolean[stripes.length];
+            for (int id : ids) needed[id & (stripes.length - 1)] = true;
+            List<Lock> taken = new ArrayList<>();
+            for (int s = 0; s < stripes.length; s++) {
+                if (!needed[s]) continue;
+                stripes[s].lock();
+                taken.add(stripes[s]);
+            }
+            return taken.toArray(new Lock[0]);
+        }
+        private static void unlock(Lock[] locks) {
+            if (locks != null) for (Lock l : locks) l.unlock();
+        }
+
+        private Lock stripeFor(LibraryItem item) {
+            return itemLocking == ItemLocking.STRIPED ? stripes[item.getId() & (stripes.length - 1)] : null;
+        }
+
+        /* ----- holds ----- */
+
+        /** Days a hold waits to be filled before it expires (default 14); applies to holds placed afterwards. */
+        public void setHoldDays(int days) {
+            if (days < 0) throw new IllegalArgumentException("days must be >= 0");
+            this.holdDays = days;
+        }
+        public int getHoldDays() { return holdDays; }
+
+        /**
+         * Puts the user in line for the item. A returned copy goes straight to the first holder as a loan of
+         * {@code durationStr}, without ever showing as AVAILABLE; an item on the shelf is lent at once. A user
+         * has at most one hold per item: placing another returns the existing one. Holds live in memory only.
+         */
+        public Hold placeHold(int itemId, User user, String durationStr) throws LibraryException {
+            checkLog();
+            LibraryItem item = getItem(itemId);
+            long loanDays = DurationParser.parseToDays(durationStr);
+            int today = days.today();
+            if (loanDays > Integer.MAX_VALUE - today) throw new InvalidDurationFormatException("Duration out of range: '" + durationStr + "'");
+            HoldQueue q = holds.computeIfAbsent(itemId, id -> {
+                HoldQueue created = new HoldQueue(item);
+                holdQueues.add(created);
+                return created;
+            });
+            Hold hold;
+            synchronized (q) {
+                hold = q.find(user.getId());
+                if (hold == null) {
+                    q.add(hold = new Hold(itemId, user.getId(), (int) loanDays, today, (int) Math.min(Integer.MAX_VALUE, (long) today + holdDays)));
+                }
+            }
+            // after the add: a return that missed this hold has already claimed the item (see settleReturn). Look
+            // at the settled state: a borrow claim in flight may still be aborted and leave the item on the shelf
+            if (item.settledState().status == AvailabilityStatus.AVAILABLE) fillFromShelf(item, q);
+            return hold;
+        }
+
+        /** Withdraws the user's hold on the item; false if there was none. */
+        public boolean cancelHold(int itemId, int userId) {
+            HoldQueue q = holds.get(itemId);
+            if (q == null) return false;
+            synchronized (q) {
+                Hold h = q.find(userId);
+                if (h == null) return false;
+                q.remove(h, Hold.State.CANCELLED);
+                return true;
+            }
+        }
+
+        /** The user's 1-based place in line for the item, or 0 if they have no hold on it. O(log holds). */
+        public int holdPosition(int itemId, int userId) {
+            HoldQueue q = holds.get(itemId);
+            if (q == null) return 0;
+            List<LibraryEvent> notices = new ArrayList<>(0);
+            int position;
+            synchronized (q) {
+                expireFront(q, days.today(), notices);
+                Hold h = q.find(userId);
+                position = h == null ? 0 : q.position(h);
+            }
+            publishAll(notices);
+            return position;
+        }
+
+        /** Holds waiting on the item, including expired ones not yet dropped. */
+        public int countHolds(int itemId) {
+            HoldQueue q = holds.get(itemId);
+            return q == null ? 0 : q.size();
+        }
+
+        /** Drops the expired holds on every item, publishing HOLD_EXPIRED for each; returns how many. */
+        public int expireHolds() {
+            int today = days.today();
+            List<LibraryEvent> notices = new ArrayList<>();
+            for (HoldQueue q : holdQueues) {
+                if (q.size() == 0) continue;
+                synchronized (q) { expireFront(q, today, notices); }
+            }
+            publishAll(notices);
+            return notices.size();
+        }
+
+        // expiry follows placement order (unless holdDays is lowered), so the expired holds are at the front
+        private static void expireFront(HoldQueue q, int today, List<LibraryEvent> notices) {
+            for (Hold h; (h = q.first()) != null && h.getExpiresEpochDay() < today; ) {
+                q.remove(h, Hold.State.EXPIRED);
+                notices.add(new LibraryEvent(LibraryEvent.Kind.HOLD_EXPIRED, q.item, null, 0, null, h));
+            }
+        }
+
+        // under q's monitor: the first holder who can take the item now, with a loan slot reserved for them.
+        // Expired holds and holders at the borrow limit are dropped on the way.
+        private Hold nextHolder(HoldQueue q, int today, List<LibraryEvent> notices) {
+            for (Hold h; (h = q.first()) != null; ) {
+                if (h.getExpiresEpochDay() < today) {
+                    q.remove(h, Hold.State.EXPIRED);
+                    notices.add(new LibraryEvent(LibraryEvent.Kind.HOLD_EXPIRED, q.item, null, 0, null, h));
+                } else if (userLoans.tryReserve(h.getUserId(), borrowLimit)) {
+                    return h;
+                } else {
+                    q.remove(h, Hold.State.CANCELLED);
+                    notices.add(new LibraryEvent(LibraryEvent.Kind.HOLD_CANCELLED, q.item, null, 0, null, h));
+                }
+            }
+            return null;
+        }
+
+        private static BorrowRecord holdLoan(Hold h, LibraryItem item, int today) {
+            int due = (int) Math.min(Integer.MAX_VALUE, (long) today + h.getLoanDays());
+            return new BorrowRecord(h.getUserId(), item.getId(), today, due, item.getFinePerDay());
+        }
+
+        /**
+         * Ends a claimed return. With holders waiting, the unsettled AVAILABLE state is swapped for the first
+         * holder's loan before it ever settles, so no other borrower can get in between; otherwise the item
+         * settles as AVAILABLE. Returns the LSN to await; the caller publishes {@code notices} once it has
+         * released the item.
+         */
+        private long settleReturn(LibraryItem item, ItemState next, List<LibraryEvent> notices) {
+            // the claim is a volatile write before this read, and placeHold adds before it reads the state:
+            // either the hold is seen here or placeHold sees the item available and fills it itself
+            HoldQueue q = holds.get(item.getId());
+            if (q != null && q.size() > 0) {
+                synchronized (q) {
+                    int today = days.today();
+                    Hold h = nextHolder(q, today, notices);
+                    if (h != null) {
+                        BorrowRecord record = holdLoan(h, item, today);
+                        ItemState handed = new ItemState(AvailabilityStatus.BORROWED, record, next.archived, next.previous);
+                        item.replaceClaim(handed);
+                        q.remove(h, Hold.State.FILLED);
+                        notices.add(new LibraryEvent(LibraryEvent.Kind.HOLD_READY, item, record, 0, null, h));
+                        return checkout(item, handed);
+                    }
+                }
+            }
+            long lsn = item.walLsn;
+            item.settle(next);
+            return lsn;
+        }
+
+        // lends an item found on the shelf to its first holder
+        private void fillFromShelf(LibraryItem item, HoldQueue q) {
+            List<LibraryEvent> notices = new ArrayList<>(1);
+            long lsn = 0;
+            Lock stripe = stripeFor(item);
+            if (stripe != null) stripe.lock();
+            try {
+                // never wait for the item while holding q: a returner owns the item when it takes q
+                while (item.settledState().status == AvailabilityStatus.AVAILABLE) {
+                    synchronized (q) {
+                        int today = days.today();
+                        Hold h = nextHolder(q, today, notices);
+                        if (h == null) break;
+                        BorrowRecord record = holdLoan(h, item, today);
+                        ItemState next = item.tryClaimBorrow(record);
+                        if (next == null) { // changed since we looked: look again
+                            userLoans.release(h.getUserId());
+                            continue;
+                        }
+                        q.remove(h, Hold.State.FILLED);
+                        notices.add(new LibraryEvent(LibraryEvent.Kind.HOLD_READY, item, record, 0, null, h));
+                        lsn = checkout(item, next);
+                        break;
+                    }
+                }
+            } finally {
+                if (stripe != null) stripe.unlock();
+            }
+            awaitLog(lsn);
+            publishAll(notices);
+        }
+
+        private void publishAll(List<LibraryEvent> events) {
+            for (LibraryEvent e : events) eventSink.publish(e);
+        }
+
+        // caller has claimed the item for this borrow and reserved the user's loan slot; returns the log LSN
+        private long checkout(LibraryItem item, ItemState next) {
+            BorrowRecord record = next.record;
+            WriteAheadLog w = wal;
+            if (w != null) item.walLsn = w.logBorrow(record);
+            long lsn = item.walLsn;
+            index(record);
+            item.settle(next);
+            CatalogMetrics m = metrics;
+            if (m != null) m.borrows.increment();
+            return lsn;
+        }
+
+        // caller has claimed the item for the return of record
+        private BigDecimal checkin(LibraryItem item, BorrowRecord record, long overdueDays) {
+            long finePaise = overdueDays > 0 ? Math.multiplyExact(record.getFinePerDayPaiseAtBorrow(), overdueDays) : 0;
+            WriteAheadLog w = wal;
+            if (w != null) {
+                // logging and accruing under the stripe's read lock lets a snapshot cut the ledger at an exact LSN
+                Lock cut = fineCut[item.getId() & (fineCut.length - 1)].readLock();
+                cut.lock();
+                try {
+                    item.walLsn = w.logReturn(item.getId(), record.getUserId(), (int) (record.getDueEpochDay() + overdueDays), finePaise);
+                    fines.accrue(record.getUserId(), finePaise);
+                } finally {
+                    cut.unlock();
+                }
+            } else {
+                fines.accrue(record.getUserId(), finePaise);
+            }
+            unindex(record);
+            CatalogMetrics m = metrics;
+            if (m != null) m.returned(overdueDays, finePaise);
+            if (finePaise > 0 && FineAccrualEvent.enabled()) {
+                FineAccrualEvent e = new FineAccrualEvent();
+                e.userId = record.getUserId();
+                e.itemId = item.getId();
+                e.overdueDays = overdueDays;
+                e.finePaise = finePaise;
+                e.commit();
+            }
+            return FineLedger.toRupees(finePaise);
+        }
+
+        // the index side of a borrow / return, shared with log replay and snapshot loading
+        private void index(BorrowRecord record) {
+            dueDates.add(record);
+            userLoans.add(record);
+        }
+        private void unindex(BorrowRecord record) {
+            dueDates.remove(record);
+            userLoans.remove(record);
+        }
+
+        // called by EMagazine.archiveIssue while it owns the item
+        long logArchive(LibraryItem item) {
+            WriteAheadLog w = wal;
+            return w == null ? 0 : (item.walLsn = w.logArchive(item.getId()));
+        }
+
+        /**
+         * Fails once the log has failed: changes are rejected before anything is claimed, rather than applied in
+         * memory with no record behind them.
+         */
+        private void checkLog() {
+            WriteAheadLog w = wal;
+            if (w != null) w.checkUsable();
+        }
+
+        /** With SyncPolicy.COMMIT, waits (after the item is settled) until the change at {@code lsn} is on disk. */
+        void awaitLog(long lsn) {
+            WriteAheadLog w = wal;
+            if (w != null && lsn > 0) w.awaitDurable(lsn);
+        }
+
+        // Records already reflected in a loaded snapshot are skipped: per item by the item's LSN, and for
+        // fines by the LSN at which the snapshot copied the ledger.
+        private WriteAheadLog.Replayer replayer() {
+            return new WriteAheadLog.Replayer() {
+                @Override public void addItem(long lsn, LibraryItem item) {
+                    LibraryItem existing = items.get(item.getId());
+                    if (existing != null && existing.walLsn >= lsn) return;
+                    LibraryCatalog.this.addItem(item);
+                    item.walLsn = lsn;
+                }
+                @Override public void borrow(long lsn, BorrowRecord record) {
+                    LibraryItem item = items.get(record.getItemId());
+                    if (item == null) return;
+                    ItemState s = item.state();
+                    if (item.walLsn >= lsn || s.record != null) return;
+                    userLoans.tryReserve(record.getUserId(), 0); // limits applied when the loan was made
+                    item.setState(AvailabilityStatus.BORROWED, record, s.archived);
+                    index(record);
+                    item.walLsn = lsn;
+                }
+                @Override public void returned(long lsn, int itemId, int userId, int returnEpochDay, long finePaise) {
+                    if (lsn > replayFineCutLsn) fines.accrue(userId, finePaise);
+                    LibraryItem item = items.get(itemId);
+                    if (item == null) return;
+                    ItemState s = item.state();
+                    if (item.walLsn >= lsn || s.record == null) return;
+                    item.setState(AvailabilityStatus.AVAILABLE, null, s.archived);
+                    unindex(s.record);
+                    item.walLsn = lsn;
+                }
+                @Override public void archived(long lsn, int itemId) {
+                    LibraryItem item = items.get(itemId);
+                    if (!(item instanceof EMagazine) || item.walLsn >= lsn) return;
+                    ((EMagazine) item).archiveIssue();
+                    item.walLsn = lsn;
+                }
+            };
+        }
+
+        /* ----- snapshots ----- */
+
+        /**
+         * Writes a snapshot of the catalog into {@code dir} while it keeps serving: items are copied one at a
+         * time under their own lock, and only returns pause, briefly, while the fine ledger is copied. With a
+         * write-ahead log, log segments fully covered by the snapshot are deleted afterwards.
+         */
+        public Path writeSnapshot(Path dir) throws IOException {
+            WriteAheadLog w = wal;
+            long startLsn;
+            synchronized (typeIndex) { // every ADD_ITEM up to startLsn is then in items, so forEachValue sees it
+                startLsn = w == null ? 0 : w.getLastLsn();
+            }
+            Path file = CatalogSnapshot.write(this, dir, startLsn);
+            if (w != null) w.deleteSegmentsUpTo(startLsn);
+            return file;
+        }
+
+        // every change up to the returned LSN is in the copied totals and nothing after it is
+        long snapshotFines(IntObjectMap.EntryConsumer<Long> out) {
+            for (ReentrantReadWriteLock l : fineCut) l.writeLock().lock();
+            try {
+                WriteAheadLog w = wal;
+                fines.forEach(out);
+                return w == null ? 0 : w.getLastLsn();
+            } finally {
+                for (ReentrantReadWriteLock l : fineCut) l.writeLock().unlock();
+            }
+        }
+
+        // loader side: installs items (from one snapshot block) with their state
+        void restoreItems(List<LibraryItem> batch) {
+            synchronized (typeIndex) {
+                for (LibraryItem item : batch) {
+                    item.catalog = this; // freshly decoded
+                    indexItem(item);
+                }
+            }
+        }
+        void restoreLoan(BorrowRecord record) { // the item already carries the record
+            userLoans.tryReserve(record.getUserId(), 0);
+            index(record);
+        }
+
+        private void publishReturn(LibraryItem item, BorrowRecord record, long overdueDays, BigDecimal fine) {
+            LibraryEvent.Kind kind = overdueDays > 0 ? LibraryEvent.Kind.RETURNED_LATE : LibraryEvent.Kind.RETURNED_ON_TIME;
+            eventSink.publish(new LibraryEvent(kind, item, record, overdueDays, fine));
+        }
+
+        public List<LibraryItem> searchByType(Class<? extends LibraryItem> type) {
+            return searchByType(type, 0, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Ranked full-text search over titles and authors, e.g. {@code "tolkien ring*"}: every word must match,
+         * a trailing {@code *} makes it a prefix, and case and punctuation are ignored. Title matches rank above
+         * author matches and rarer words weigh more. A prefix matches every word that starts with it; a very short
+         * one, matching over 1024 words, costs time in proportion to all their occurrences.
+         */
+        public List<LibraryItem> search(String query, int limit) { return search(query, LibraryItem.class, limit); }
+
+        /** {@link #search(String, int)} restricted to one type (and its subclasses). */
+        public List<LibraryItem> search(String query, Class<? extends LibraryItem> type, int limit) {
+            CatalogMetrics m = metrics;
+            if (m == null) return textIndex.search(Objects.requireNonNull(query), type, limit, items::get);
+            long start = System.nanoTime();
+            List<LibraryItem> out = textIndex.search(Objects.requireNonNull(query), type, limit, items::get);
+            m.searchLatency.record(System.nanoTime() - start);
+            return out;
+        }
+
+        /** One page of {@link #searchByType(Class)}: items of the type in insertion order, grouped by concrete class. */
+        public List<LibraryItem> searchByType(Class<? extends LibraryItem> type, int offset, int limit) {
+            if (offset < 0 || limit < 0) throw new IllegalArgumentException("offset and limit must be >= 0");
+            CatalogMetrics m = metrics;
+            if (m == null) return typeIndex.search(type, offset, limit);
+            long start = System.nanoTime();
+            List<LibraryItem> out = typeIndex.search(type, offset, limit);
+            m.searchByTypeLatency.record(System.nanoTime() - start);
+            return out;
+        }
+
+        public Stream<LibraryItem> streamByType(Class<? extends LibraryItem> type) { return typeIndex.stream(type); }
+
+        public int countByType(Class<? extends LibraryItem> type) { return typeIndex.count(type); }
+
+        /** Number of items currently in {@code status}; O(1), from counters kept by every transition. */
+        public long countByStatus(AvailabilityStatus status) { return statusIndex.count(Objects.requireNonNull(status)); }
+
+        /**
+         * Starts keeping the items of each status in a set, so {@link #streamByStatus} costs O(result) rather than
+         * O(catalog). Costs one scan now and a set update per status change from then on. Safe to call live.
+         */
+        public void enableStatusSets() {
+            synchronized (typeIndex) {
+                statusIndex.enableMembers(items);
+            }
+        }
+        public boolean hasStatusSets() { return statusIndex.hasMembers(); }
+
+        /** Items currently in {@code status}, in no particular order; requires {@link #enableStatusSets()}. */
+        public Stream<LibraryItem> streamByStatus(AvailabilityStatus status) {
+            return statusIndex.stream(Objects.requireNonNull(status));
+        }
+
+        public int size() { return items.size(); }
+
+        /** Approximate heap used by the id -> item table, not counting the items themselves. */
+        public long itemTableFootprintBytes() { return items.footprintBytes(); }
+
+        /** The user's open loans (a snapshot, in no particular order). */
+        public List<BorrowRecord> getActiveLoans(int userId) { return userLoans.get(userId); }
+
+        public int countActiveLoans(int userId) { return userLoans.count(userId); }
+
+        /** Open loans whose due date is before today, earliest due first; O(overdue), not O(catalog). */
+        public List<BorrowRecord> getOverdueLoans() {
+            List<BorrowRecord> out = new ArrayList<>();
+            dueDates.forEachDueBefore(days.today(), out::add);
+            return out;
+        }
+
+        public int countOverdueLoans() { return dueDates.countDueBefore(days.today()); }
+
+        public long getAccumulatedFinePaiseForUser(int userId) { return fines.getTotalPaise(userId); }
+
+        public BigDecimal getAccumulatedFineForUser(int userId) {
+            return fines.getTotal(userId);
+        }
+    }
+
+    /* ---------------------------
+       Persistence
+       --------------------------- */
+    /** Binary form of the built-in item types, shared by the write-ahead log and snapshots. */
+    static final class ItemCodec {
+        static final byte BOOK = 0, AUDIOBOOK = 1, EMAGAZINE = 2;
+
+        static byte kindOf(LibraryItem item) {
+            if (item.getClass() == Book.class) return BOOK;
+            if (item.getClass() == Audiobook.class) return AUDIOBOOK;
+            if (item.getClass() == EMagazine.class) return EMAGAZINE;
+            throw new IllegalArgumentException("Cannot persist item type: " + item.getClass().getName());
+        }
+        /** pageCount, playbackSeconds or issueNumber, depending on the kind. */
+        static long extraOf(LibraryItem item) {
+            if (item instanceof Book) return ((Book) item).getPageCount();
+            if (item instanceof Audiobook) return ((Audiobook) item).getPlaybackSeconds();
+            return ((EMagazine) item).getIssueNumber();
+        }
+        static LibraryItem create(byte kind, int id, String title, String author, long extra) throws IOException {
+            switch (kind) {
+                case BOOK: return new Book(id, title, author, (int) extra);
+                case AUDIOBOOK: return new Audiobook(id, title, author, extra);
+                case EMAGAZINE: return new EMagazine(id, title, author, (int) extra);
+                default: throw new IOException("Unknown item kind: " + kind);
+            }
+        }
+
+        static void putString(ByteBuffer buf, String s) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            buf.putInt(b.length).put(b);
+        }
+        static String getString(ByteBuffer buf) {
+            byte[] b = new byte[buf.getInt()];
+            buf.get(b);
+            return new String(b, StandardCharsets.UTF_8);
+        }
+        static int stringSize(String s) { return 4 + 3 * s.length(); } // upper bound for UTF-8
+    }
+
+    /**
+     * Append-only, checksummed log of catalog changes, split into segment files named after their first LSN.
+     * <p>
+     * Record layout: {@code int length | int crc32c | long lsn | byte type | payload}, where the CRC covers
+     * everything after itself. Appends only copy the record into a memory buffer (callers do that under the
+     * item lock, so per-item order in the log is the order of the changes); a flush writes the buffer with one
+     * channel write. With {@link SyncPolicy#COMMIT}, {@link #awaitDurable} makes the caller wait for an fsync
+     * covering its record and all committers waiting at the same time share that one fsync (group commit).
+     */
+    public static class WriteAheadLog implements AutoCloseable {
+        public enum SyncPolicy {
+            /** Written out every interval, never fsynced: the OS decides when it reaches disk. */
+            NONE,
+            /** Written and fsynced every interval; callers never wait (bounded loss window). */
+            INTERVAL,
+            /** Callers wait until their record is fsynced; concurrent committers share fsyncs. */
+            COMMIT
+        }
+
+        static final byte ADD_ITEM = 1, BORROW = 2, RETURN = 3, ARCHIVE = 4;
+        private static final int SEGMENT_MAGIC = 0x4C4E574C; // "LNWL"
+        private static final int SEGMENT_VERSION = 1;
+        private static final int HEADER = 8, RECORD_HEADER = 4 + 4 + 8 + 1;
+
+        /** Receives the records of an existing log, in LSN order, while it is opened. */
+        interface Replayer {
+            void addItem(long lsn, LibraryItem item);
+            void borrow(long lsn, BorrowRecord record);
+            void returned(long lsn, int itemId, int userId, int returnEpochDay, long finePaise);
+            void archived(long lsn, int itemId);
+        }
+
+        private final Path dir;
+        private final SyncPolicy policy;
+        private final long maxSegmentBytes;
+        private final ReentrantLock appendLock = new ReentrantLock();
+        private final Object flushLock = new Object();
+        private final Thread flusher;
+        private ByteBuffer pending;            // guarded by appendLock
+        private int recordStart;               // guarded by appendLock
+        private final CRC32C crc = new CRC32C(); // guarded by appendLock
+        private long lastLsn;                  // guarded by appendLock
+        private FileChannel segment;           // guarded by flushLock
+        private long segmentBytes;             // guarded by flushLock
+        private ByteBuffer writing;            // guarded by flushLock
+        private volatile long writtenLsn, durableLsn;
+        private volatile boolean closed;
+        private volatile IOException failure; // the first failed write / fsync; nothing is written after it
+        private long discardedBytes;          // damaged tail cut off by open
+
+        // appends to the newest segment if its records end at lastLsn, else starts a segment at lastLsn + 1
+        private WriteAheadLog(Path dir, SyncPolicy policy, long intervalMillis, long maxSegmentBytes, long lastLsn, boolean append) throws IOException {
+            this.dir = dir;
+            this.policy = policy;
+            this.maxSegmentBytes = maxSegmentBytes;
+            this.lastLsn = lastLsn;
+            this.writtenLsn = this.durableLsn = lastLsn;
+            this.pending = ByteBuffer.allocate(1 << 16);
+            this.writing = ByteBuffer.allocate(1 << 16);
+            List<Path> segments = segments(dir);
+            if (segments.isEmpty() || !append) {
+                newSegment(lastLsn + 1);
+            } else {
+                this.segment = FileChannel.open(segments.get(segments.size() - 1), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                this.segmentBytes = segment.size();
+            }
+            // parks rather than sleeps: an interrupt landing inside force() would close the channel
+            this.flusher = new Thread(() -> {
+                while (!closed) {
+                    LockSupport.parkNanos(this, intervalMillis * 1_000_000L);
+                    try { flush(policy != SyncPolicy.NONE, Long.MAX_VALUE); }
+                    catch (IOException ex) { return; } // kept in failure, for checkUsable and awaitDurable to report
+                }
+            }, "libranet-wal-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+
+        /**
+         * Opens (or creates) the log in {@code dir}, feeding every intact record to {@code replayer}. A torn or
+         * corrupt tail, e.g. from a crash mid-write, is cut off so new records follow the last good one.
+         * New LSNs also stay above {@code minLastLsn}, the newest LSN a loaded snapshot has seen, in case the
+         * segments holding it were already deleted or its newest records never reached disk. Those LSNs then
+         * continue in a new segment named after the first of them; a later replay accepts the jump because
+         * it falls on a segment boundary.
+         */
+        static WriteAheadLog open(Path dir, SyncPolicy policy, long intervalMillis, long maxSegmentBytes, long minLastLsn, Replayer replayer) throws IOException {
+            Files.createDirectories(dir);
+            long lastLsn = 0, discarded = 0;
+            List<Path> segments = segments(dir);
+            for (int i = 0; i < segments.size(); i++) {
+                long[] last = { lastLsn };
+                long goodEnd = replaySegment(segments.get(i), replayer, last);
+                lastLsn = last[0];
+                if (goodEnd >= 0) { // damage: keep the good prefix, drop everything after it
+                    if (goodEnd < HEADER) goodEnd = 0;
+                    discarded += Files.size(segments.get(i)) - goodEnd;
+                    if (goodEnd == 0) Files.delete(segments.get(i));
+                    else try (FileChannel ch = FileChannel.open(segments.get(i), StandardOpenOption.WRITE)) { ch.truncate(goodEnd); }
+                    for (int j = i + 1; j < segments.size(); j++) {
+                        discarded += Files.size(segments.get(j));
+                        Files.delete(segments.get(j));
+                    }
+                    break;
+                }
+            }
+            WriteAheadLog log = new WriteAheadLog(dir, policy, intervalMillis, maxSegmentBytes, Math.max(lastLsn, minLastLsn), minLastLsn <= lastLsn);
+            log.discardedBytes = discarded;
+            return log;
+        }
+
+        /** Returns -1 if the segment is intact, else the offset where the damage starts. */
+        private static long replaySegment(Path file, Replayer replayer, long[] lastLsn) throws IOException {
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                if (ch.size() < HEADER) return 0;
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                if (buf.getInt() != SEGMENT_MAGIC || buf.getInt() != SEGMENT_VERSION) throw new IOException("Not a LibraNet WAL segment: " + file);
+                CRC32C crc = new CRC32C();
+                long firstLsn = firstLsnOf(file);
+                while (buf.hasRemaining()) {
+                    int start = buf.position();
+                    if (buf.remaining() < RECORD_HEADER) return start;
+                    int length = buf.getInt(), checksum = buf.getInt();
+                    if (length < 0 || buf.remaining() < 9 + length) return start;
+                    crc.reset();
+                    crc.update(buf.slice(buf.position(), 9 + length));
+                    if ((int) crc.getValue() != checksum) return start;
+                    long lsn = buf.getLong();
+                    byte type = buf.get();
+                    ByteBuffer payload = buf.slice(buf.position(), length);
+                    buf.position(buf.position() + length);
+                    // LSNs are consecutive, except that a segment may start past the end of the previous one
+                    boolean boundary = start == HEADER && lsn == firstLsn && lsn > lastLsn[0];
+                    if (lsn != lastLsn[0] + 1 && lastLsn[0] != 0 && !boundary) return start;
+                    apply(type, lsn, payload, replayer);
+                    lastLsn[0] = lsn;
+                }
+                return -1;
+            }
+        }
+
+        private static void apply(byte type, long lsn, ByteBuffer p, Replayer r) throws IOException {
+            switch (type) {
+                case ADD_ITEM: {
+                    byte kind = p.get();
+                    int id = p.getInt();
+                    String title = ItemCodec.getString(p), author = ItemCodec.getString(p);
+                    r.addItem(lsn, ItemCodec.create(kind, id, title, author, p.getLong()));
+                    break;
+                }
+                case BORROW: {
+                    int itemId = p.getInt(), userId = p.getInt(), borrowDay = p.getInt(), dueDay = p.getInt();
+                    r.borrow(lsn, new BorrowRecord(userId, itemId, borrowDay, dueDay, FineLedger.toRupees(p.getLong())));
+                    break;
+                }
+                case RETURN: r.returned(lsn, p.getInt(), p.getInt(), p.getInt(), p.getLong()); break;
+                case ARCHIVE: r.archived(lsn, p.getInt()); break;
+                default: throw new IOException("Unknown WAL record type " + type + " at LSN " + lsn);
+            }
+        }
+
+        /* ----- appends: cheap, called under the item lock ----- */
+
+        long logAddItem(LibraryItem item) {
+            byte kind = ItemCodec.kindOf(item);
+            appendLock.lock();
+            try {
+                ByteBuffer b = begin(ADD_ITEM, 1 + 4 + ItemCodec.stringSize(item.getTitle()) + ItemCodec.stringSize(item.getAuthor()) + 8);
+                b.put(kind).putInt(item.getId());
+                ItemCodec.putString(b, item.getTitle());
+                ItemCodec.putString(b, item.getAuthor());
+                b.putLong(ItemCodec.extraOf(item));
+                return end();
+            } finally {
+                appendLock.unlock();
+            }
+        }
+        long logBorrow(BorrowRecord r) {
+            appendLock.lock();
+            try {
+                begin(BORROW, 4 * 4 + 8).putInt(r.getItemId()).putInt(r.getUserId()).putInt(r.getBorrowEpochDay())
+                        .putInt(r.getDueEpochDay()).putLong(r.getFinePerDayPaiseAtBorrow());
+                return end();
+            } finally {
+                appendLock.unlock();
+            }
+        }
+        long logReturn(int itemId, int userId, int returnEpochDay, long finePaise) {
+            appendLock.lock();
+            try {
+                begin(RETURN, 4 + 4 + 4 + 8).putInt(itemId).putInt(userId).putInt(returnEpochDay).putLong(finePaise);
+                return end();
+            } finally {
+                appendLock.unlock();
+            }
+        }
+        long logArchive(int itemId) {
+            appendLock.lock();
+            try {
+                begin(ARCHIVE, 4).putInt(itemId);
+                return end();
+            } finally {
+                appendLock.unlock();
+            }
+        }
+
+        // begin() reserves the header and returns 'pending' positioned at the payload; end() seals the record
+        private ByteBuffer begin(byte type, int maxPayload) {
+            if (closed) throw new IllegalStateException("WAL is closed");
+            if (pending.remaining() < RECORD_HEADER + maxPayload) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + RECORD_HEADER + maxPayload));
+                pending.flip();
+                grown.put(pending);
+                pending = grown;
+            }
+            recordStart = pending.position();
+            pending.position(recordStart + 8);
+            return pending.putLong(lastLsn + 1).put(type);
+        }
+        private long end() {
+            int length = pending.position() - recordStart - RECORD_HEADER;
+            crc.reset();
+            crc.update(pending.array(), recordStart + 8, 9 + length);
+            pending.putInt(recordStart, length).putInt(recordStart + 4, (int) crc.getValue());
+            return ++lastLsn;
+        }
+
+        /* ----- flushing ----- */
+
+        /**
+         * Blocks until {@code lsn} is durable if the policy is COMMIT; returns at once otherwise. Throws if the
+         * log has failed before {@code lsn} was written (or, for COMMIT, fsynced), whatever the policy.
+         */
+        void awaitDurable(long lsn) {
+            if (failure != null && lsn > (policy == SyncPolicy.COMMIT ? durableLsn : writtenLsn)) checkUsable();
+            if (policy != SyncPolicy.COMMIT || lsn <= durableLsn) return;
+            try { flush(true, lsn); }
+            catch (IOException ex) { throw new UncheckedIOException("WAL fsync failed", ex); }
+        }
+
+        /**
+         * Throws if a write or fsync has failed. After a failure the log takes no more changes: a retry could
+         * write the records of a partial write a second time, and replay would stop at the repeated LSN.
+         */
+        void checkUsable() {
+            IOException f = failure;
+            if (f != null) throw new UncheckedIOException("WAL failed, no further changes are logged: " + f.getMessage(), f);
+        }
+
+        /** Writes everything appended so far (and fsyncs if {@code force}) unless {@code upTo} is already covered. */
+        void flush(boolean force, long upTo) throws IOException {
+            synchronized (flushLock) {
+                if (failure != null) throw new IOException("WAL failed earlier", failure);
+                if (closed && !segment.isOpen()) return;
+                long last;
+                appendLock.lock();
+                try {
+                    last = lastLsn;
+                    long covered = force ? durableLsn : writtenLsn;
+                    if (upTo <= covered || last == covered) return; // a concurrent committer got here first
+                    ByteBuffer full = pending;
+                    pending = writing;
+                    writing = full;
+                } finally {
+                    appendLock.unlock();
+                }
+                try {
+                    writing.flip();
+                    segmentBytes += writing.remaining();
+                    while (writing.hasRemaining()) segment.write(writing);
+                    writing.clear();
+                    writtenLsn = last;
+                    if (force) { segment.force(false); durableLsn = last; }
+                    if (segmentBytes >= maxSegmentBytes) {
+                        if (!force && policy != SyncPolicy.NONE) { segment.force(false); durableLsn = last; }
+                        segment.close();
+                        newSegment(last + 1);
+                    }
+                } catch (IOException ex) {
+                    failure = ex;
+                    throw ex;
+                }
+            }
+        }
+
+        // caller holds flushLock (or is the constructor)
+        private void newSegment(long firstLsn) throws IOException {
+            Path file = dir.resolve(String.format("wal-%020d.log", firstLsn));
+            segment = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            segment.write(ByteBuffer.allocate(HEADER).putInt(SEGMENT_MAGIC).putInt(SEGMENT_VERSION).flip());
+            segmentBytes = HEADER;
+        }
+
+        static List<Path> segments(Path dir) throws IOException {
+            List<Path> out = new ArrayList<>();
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "wal-*.log")) { ds.forEach(out::add); }
+            Collections.sort(out); // zero-padded LSNs sort lexically
+            return out;
+        }
+
+        /** Deletes whole segments whose records all have LSN <= {@code lsn}; the segment being written is kept. */
+        void deleteSegmentsUpTo(long lsn) throws IOException {
+            synchronized (flushLock) {
+                List<Path> segments = segments(dir);
+                for (int i = 0; i + 1 < segments.size(); i++) {
+                    if (firstLsnOf(segments.get(i + 1)) - 1 > lsn) break;
+                    Files.delete(segments.get(i));
+                }
+            }
+        }
+        private static long firstLsnOf(Path segment) {
+            String name = segment.getFileName().toString();
+            return Long.parseLong(name.substring("wal-".length(), name.length() - ".log".length()));
+        }
+
+        public long getLastLsn() {
+            appendLock.lock();
+            try { return lastLsn; } finally { appendLock.unlock(); }
+        }
+        public long getDurableLsn() { return durableLsn; }
+        public SyncPolicy getPolicy() { return policy; }
+        /** The write or fsync error that stopped the log, or null while it is healthy. */
+        public IOException getFailure() { return failure; }
+        /** Bytes of damaged tail (a torn or corrupt record and everything after it) that opening the log cut off. */
+        public long getDiscardedBytes() { return discardedBytes; }
+
+        /** Rejects further appends, flushes and fsyncs everything appended so far and closes the segment. */
+        @Override public void close() throws IOException {
+            appendLock.lock();
+            try {
+                if (closed) return;
+                closed = true;
+            } finally {
+                appendLock.unlock();
+            }
+            LockSupport.unpark(flusher);
+            try {
+                flusher.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (flushLock) {
+                try {
+                    flush(true, Long.MAX_VALUE);
+                } finally {
+                    segment.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Point-in-time image of a catalog, so a restart only replays the log written after it.
+     * <p>
+     * Layout: a fixed header, then items in blocks of up to {@link #BLOCK_ITEMS}, then the fine totals, then an
+     * index of the blocks ({@code long offset | int length | int count | int crc32c}). Blocks are mapped and
+     * decoded in parallel on load. Items are copied one at a time under their own lock, so each carries the
+     * LSN of its last change and recovery skips log records the snapshot already reflects.
+     */
+    static final class CatalogSnapshot {
+        private static final int MAGIC = 0x4C4E5353; // "LNSS"
+        private static final int VERSION = 1;
+        // magic, version, startLsn, fineCutLsn, endLsn, itemCount, blockCount, finesOffset, indexOffset
+        private static final int HEADER = 4 + 4 + 8 + 8 + 8 + 4 + 4 + 8 + 8;
+        private static final int INDEX_ENTRY = 8 + 4 + 4 + 4;
+        static final int BLOCK_ITEMS = 1 << 16;
+
+        static final class Header {
+            final long startLsn, fineCutLsn, endLsn;
+            final int itemCount, blockCount;
+            final long finesOffset, indexOffset;
+            Header(ByteBuffer b) throws IOException {
+                if (b.getInt() != MAGIC || b.getInt() != VERSION) throw new IOException("Not a LibraNet snapshot");
+                startLsn = b.getLong(); fineCutLsn = b.getLong(); endLsn = b.getLong();
+                itemCount = b.getInt(); blockCount = b.getInt();
+                finesOffset = b.getLong(); indexOffset = b.getLong();
+            }
+        }
+
+        /** Newest snapshot in {@code dir}, or null. */
+        static Path latest(Path dir) throws IOException {
+            if (!Files.isDirectory(dir)) return null;
+            List<Path> all = list(dir);
+            return all.isEmpty() ? null : all.get(all.size() - 1);
+        }
+        private static List<Path> list(Path dir) throws IOException {
+            List<Path> out = new ArrayList<>();
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "snapshot-*.bin")) { ds.forEach(out::add); }
+            Collections.sort(out);
+            return out;
+        }
+
+        /* ----- writing ----- */
+
+        static Path write(LibraryCatalog catalog, Path dir, long startLsn) throws IOException {
+            Files.createDirectories(dir);
+            Path file = dir.resolve(String.format("snapshot-%020d.bin", startLsn));
+            Path tmp = dir.resolve(file.getFileName() + ".tmp");
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                Writer w = new Writer(ch);
+                try {
+                    catalog.items.forEachValue(w::item);
+                } catch (UncheckedIOException ex) {
+                    throw ex.getCause();
+                }
+                w.endBlock();
+
+                long finesOffset = w.position();
+                List<long[]> fines = new ArrayList<>();
+                long fineCutLsn = catalog.snapshotFines((userId, paise) -> fines.add(new long[] { userId, paise }));
+                w.ensure(4).putInt(fines.size());
+                for (long[] f : fines) w.ensure(12).putInt((int) f[0]).putLong(f[1]);
+
+                long indexOffset = w.position();
+                for (long[] b : w.blocks) w.ensure(INDEX_ENTRY).putLong(b[0]).putInt((int) b[1]).putInt((int) b[2]).putInt((int) b[3]);
+                w.drain();
+
+                WriteAheadLog wal = catalog.wal;
+                long endLsn = Math.max(fineCutLsn, wal == null ? 0 : wal.getLastLsn());
+                ByteBuffer h = ByteBuffer.allocate(HEADER).putInt(MAGIC).putInt(VERSION)
+                        .putLong(startLsn).putLong(fineCutLsn).putLong(endLsn)
+                        .putInt(w.itemCount).putInt(w.blocks.size()).putLong(finesOffset).putLong(indexOffset).flip();
+                while (h.hasRemaining()) ch.write(h, h.position());
+                ch.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            for (Path older : list(dir)) if (older.compareTo(file) < 0) Files.delete(older);
+            return file;
+        }
+
+        // streams blocks through one buffer; each block's offset, length, count and CRC go to the index
+        private static final class Writer {
+            final FileChannel ch;
+            final List<long[]> blocks = new ArrayList<>();
+            final CRC32C crc = new CRC32C();
+            ByteBuffer buf = ByteBuffer.allocate(1 << 20);
+            long flushed = HEADER;
+            long blockStart = HEADER;
+            int blockCount, itemCount;
+
+            Writer(FileChannel ch) { this.ch = ch; }
+
+            long position() { return flushed + buf.position(); }
+
+            ByteBuffer ensure(int bytes) throws IOException {
+                if (buf.remaining() < bytes) drain();
+                if (buf.remaining() < bytes) buf = ByteBuffer.allocate(Math.max(bytes, buf.capacity() * 2));
+                return buf;
+            }
+            void drain() throws IOException {
+                buf.flip();
+                crc.update(buf.duplicate());
+                while (buf.hasRemaining()) flushed += ch.write(buf, flushed);
+                buf.clear();
+            }
+
+            void item(LibraryItem item) {
+                ItemState s;
+                long lsn;
+                do { // walLsn belongs to the settled state s only if no transition started meanwhile
+                    s = item.settledState();
+                    lsn = item.walLsn;
+                } while (item.state() != s);
+                AvailabilityStatus status = s.status;
+                BorrowRecord record = s.record;
+                boolean archived = s.archived;
+                try {
+                    ByteBuffer b = ensure(1 + 4 + ItemCodec.stringSize(item.getTitle()) + ItemCodec.stringSize(item.getAuthor())
+                            + 8 + 1 + 1 + 8 + 1 + 4 + 4 + 4 + 8);
+                    b.put(ItemCodec.kindOf(item)).putInt(item.getId());
+                    ItemCodec.putString(b, item.getTitle());
+                    ItemCodec.putString(b, item.getAuthor());
+                    b.putLong(ItemCodec.extraOf(item)).put((byte) status.ordinal()).put((byte) (archived ? 1 : 0)).putLong(lsn);
+                    if (record == null) {
+                        b.put((byte) 0);
+                    } else {
+                        b.put((byte) 1).putInt(record.getUserId()).putInt(record.getBorrowEpochDay())
+                                .putInt(record.getDueEpochDay()).putLong(record.getFinePerDayPaiseAtBorrow());
+                    }
+                    itemCount++;
+                    if (++blockCount == BLOCK_ITEMS) endBlock();
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+            void endBlock() throws IOException {
+                if (blockCount == 0) return;
+                drain(); // blocks start on a buffer boundary, so the running CRC is exactly this block's
+                blocks.add(new long[] { blockStart, flushed - blockStart, blockCount, (int) crc.getValue() });
+                crc.reset();
+                blockStart = flushed;
+                blockCount = 0;
+            }
+        }
+
+        /* ----- loading ----- */
+
+        /** Loads {@code file} into an empty {@code catalog}; blocks are decoded in parallel, installed in order. */
+        static Header load(Path file, LibraryCatalog catalog) throws IOException {
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                Header h = new Header(ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER));
+                ByteBuffer index = ch.map(FileChannel.MapMode.READ_ONLY, h.indexOffset, (long) h.blockCount * INDEX_ENTRY);
+                MappedByteBuffer[] blocks = new MappedByteBuffer[h.blockCount];
+                int[] counts = new int[h.blockCount], checksums = new int[h.blockCount];
+                for (int i = 0; i < h.blockCount; i++) {
+                    long offset = index.getLong();
+                    int length = index.getInt();
+                    counts[i] = index.getInt();
+                    checksums[i] = index.getInt();
+                    blocks[i] = ch.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                }
+
+                List<List<LibraryItem>> decoded = new ArrayList<>(Collections.nCopies(h.blockCount, null));
+                List<List<BorrowRecord>> loans = new ArrayList<>(Collections.nCopies(h.blockCount, null));
+                try {
+                    IntStream.range(0, h.blockCount).parallel().forEach(i -> {
+                        try {
+                            List<BorrowRecord> blockLoans = new ArrayList<>();
+                            decoded.set(i, decodeBlock(blocks[i], counts[i], checksums[i], blockLoans));
+                            loans.set(i, blockLoans);
+                        } catch (IOException ex) {
+                            throw new UncheckedIOException(file + ", block " + i + ": " + ex.getMessage(), ex);
+                        }
+                    });
+                } catch (UncheckedIOException ex) {
+                    throw new IOException(ex.getMessage(), ex.getCause());
+                }
+
+                catalog.items.ensureCapacity(h.itemCount);
+                for (int i = 0; i < h.blockCount; i++) {
+                    catalog.restoreItems(decoded.get(i));
+                    for (BorrowRecord r : loans.get(i)) catalog.restoreLoan(r);
+                }
+
+                ByteBuffer fines = ch.map(FileChannel.MapMode.READ_ONLY, h.finesOffset, h.indexOffset - h.finesOffset);
+                for (int n = fines.getInt(); n > 0; n--) catalog.fines.accrue(fines.getInt(), fines.getLong());
+                return h;
+            }
+        }
+
+        private static List<LibraryItem> decodeBlock(ByteBuffer b, int count, int checksum, List<BorrowRecord> loans) throws IOException {
+            CRC32C crc = new CRC32C();
+            crc.update(b.duplicate());
+            if ((int) crc.getValue() != checksum) throw new IOException("checksum mismatch");
+            AvailabilityStatus[] statuses = AvailabilityStatus.values();
+            List<LibraryItem> out = new ArrayList<>(count);
+            for (int n = 0; n < count; n++) {
+                byte kind = b.get();
+                int id = b.getInt();
+                String title = ItemCodec.getString(b), author = ItemCodec.getString(b);
+                LibraryItem item = ItemCodec.create(kind, id, title, author, b.getLong());
+                AvailabilityStatus status = statuses[b.get()];
+                boolean archived = b.get() != 0;
+                item.walLsn = b.getLong();
+                BorrowRecord r = null;
+                if (b.get() != 0) {
+                    int userId = b.getInt(), borrowDay = b.getInt(), dueDay = b.getInt();
+                    r = new BorrowRecord(userId, id, borrowDay, dueDay, FineLedger.toRupees(b.getLong()));
+                    loans.add(r);
+                }
+                item.setState(status, r, archived);
+                out.add(item);
+            }
+            return out;
+        }
+    }
+
+    /** Writes a snapshot of a catalog on a fixed schedule; see {@link LibraryCatalog#writeSnapshot}. */
+    public static class PeriodicSnapshotter implements AutoCloseable {
+        private final LibraryCatalog catalog;
+        private final Path dir;
+        private final ScheduledExecutorService scheduler;
+
+        public PeriodicSnapshotter(LibraryCatalog catalog, Path dir, long period, TimeUnit unit) {
+            this.catalog = Objects.requireNonNull(catalog);
+            this.dir = Objects.requireNonNull(dir);
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "libranet-snapshotter");
+                t.setDaemon(true);
+                return t;
+            });
+            scheduler.scheduleWithFixedDelay(() -> {
+                try { snapshotNow(); }
+                catch (IOException | RuntimeException ex) { ex.printStackTrace(); } // keep the schedule alive
+            }, period, period, unit);
+        }
+
+        public Path snapshotNow() throws IOException { return catalog.writeSnapshot(dir); }
+
+        @Override public void close() { scheduler.shutdownNow(); }
+    }
+
+    /**
+     * Read-mostly item metadata (title, author, pageCount / playbackSeconds / issueNumber) kept off the heap in
+     * memory-mapped column files, one per field. Titles and authors are stored as ids into a shared string
+     * dictionary, so a repeated author costs four bytes per item. {@link #view} returns an ordinary Book,
+     * Audiobook or EMagazine whose getters read the columns, so the heap only carries the status and borrow state.
+     * <p>
+     * Rows are sorted by item id and looked up by binary search. Each column must stay under 2 GB (one mapping).
+     */
+    public static final class ColdItemStore {
+        private static final int MAGIC = 0x4C4E4353; // "LNCS"
+        private static final String IDS = "ids.col", KINDS = "kinds.col", TITLES = "titles.col", AUTHORS = "authors.col",
+                EXTRAS = "extras.col", DICT_INDEX = "dict.idx", DICT_DATA = "dict.dat";
+
+        private final int rows;
+        private final ByteBuffer ids, kinds, titles, authors, extras, dictIndex, dictData;
+
+        private ColdItemStore(Path dir) throws IOException {
+            ids = map(dir.resolve(IDS));
+            kinds = map(dir.resolve(KINDS));
+            titles = map(dir.resolve(TITLES));
+            authors = map(dir.resolve(AUTHORS));
+            extras = map(dir.resolve(EXTRAS));
+            dictIndex = map(dir.resolve(DICT_INDEX));
+            dictData = map(dir.resolve(DICT_DATA));
+            rows = ids.capacity() / 4;
+            if (kinds.capacity() != rows || titles.capacity() != 4 * rows || authors.capacity() != 4 * rows
+                    || extras.capacity() != 8 * rows) throw new IOException("Column lengths differ in " + dir);
+        }
+
+        /** Maps an existing store. */
+        public static ColdItemStore open(Path dir) throws IOException { return new ColdItemStore(dir); }
+
+        /** Writes the metadata of {@code items} as a new store in {@code dir} and maps it. */
+        public static ColdItemStore write(Path dir, Collection<? extends LibraryItem> items) throws IOException {
+            LibraryItem[] sorted = items.toArray(new LibraryItem[0]);
+            Arrays.sort(sorted, Comparator.comparingInt(LibraryItem::getId));
+            for (int i = 1; i < sorted.length; i++) {
+                if (sorted[i].getId() == sorted[i - 1].getId()) throw new IllegalArgumentException("Duplicate item id " + sorted[i].getId());
+            }
+            Files.createDirectories(dir);
+            int n = sorted.length;
+            ByteBuffer idCol = ByteBuffer.allocate(4 * n), kindCol = ByteBuffer.allocate(n),
+                    titleCol = ByteBuffer.allocate(4 * n), authorCol = ByteBuffer.allocate(4 * n), extraCol = ByteBuffer.allocate(8 * n);
+            Map<String, Integer> dict = new HashMap<>();
+            List<byte[]> strings = new ArrayList<>();
+            for (LibraryItem item : sorted) {
+                idCol.putInt(item.getId());
+                kindCol.put(ItemCodec.kindOf(item));
+                titleCol.putInt(intern(item.getTitle(), dict, strings));
+                authorCol.putInt(intern(item.getAuthor(), dict, strings));
+                extraCol.putLong(ItemCodec.extraOf(item));
+            }
+            ByteBuffer index = ByteBuffer.allocate(4 * (strings.size() + 1));
+            int offset = 0;
+            for (byte[] s : strings) { index.putInt(offset); offset += s.length; }
+            index.putInt(offset);
+            ByteBuffer data = ByteBuffer.allocate(offset);
+            for (byte[] s : strings) data.put(s);
+
+            writeColumn(dir.resolve(IDS), idCol);
+            writeColumn(dir.resolve(KINDS), kindCol);
+            writeColumn(dir.resolve(TITLES), titleCol);
+            writeColumn(dir.resolve(AUTHORS), authorCol);
+            writeColumn(dir.resolve(EXTRAS), extraCol);
+            writeColumn(dir.resolve(DICT_INDEX), index);
+            writeColumn(dir.resolve(DICT_DATA), data);
+            return open(dir);
+        }
+        private static int intern(String s, Map<String, Integer> dict, List<byte[]> strings) {
+            Integer code = dict.get(s);
+            if (code != null) return code;
+            dict.put(s, strings.size());
+            strings.add(s.getBytes(StandardCharsets.UTF_8));
+            return strings.size() - 1;
+        }
+
+        // every column file starts with a small header so a stray file is not mistaken for one
+        private static void writeColumn(Path file, ByteBuffer column) throws IOException {
+            column.flip();
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(8).putInt(MAGIC).putInt(column.remaining()).flip();
+                while (header.hasRemaining()) ch.write(header);
+                while (column.hasRemaining()) ch.write(column);
+            }
+        }
+        private static ByteBuffer map(Path file) throws IOException {
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                if (ch.size() < 8 || b.getInt() != MAGIC || b.getInt() != ch.size() - 8) throw new IOException("Not a LibraNet column file: " + file);
+                return b.slice();
+            }
+        }
+
+        public int size() { return rows; }
+
+        /** Row of {@code id}, or -1. Only absolute gets are used, so lookups are safe from any thread. */
+        int rowOf(int id) {
+            int lo = 0, hi = rows - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1, v = ids.getInt(4 * mid);
+                if (v < id) lo = mid + 1;
+                else if (v > id) hi = mid - 1;
+                else return mid;
+            }
+            return -1;
+        }
+        private int row(int id) {
+            int row = rowOf(id);
+            if (row < 0) throw new IllegalArgumentException("Item " + id + " is not in this store");
+            return row;
+        }
+
+        String title(int id) { return string(titles.getInt(4 * row(id))); }
+        String author(int id) { return string(authors.getInt(4 * row(id))); }
+        long extra(int id) { return extras.getLong(8 * row(id)); }
+
+        private String string(int code) {
+            int from = dictIndex.getInt(4 * code), to = dictIndex.getInt(4 * code + 4);
+            byte[] b = new byte[to - from];
+            dictData.get(from, b);
+            return new String(b, StandardCharsets.UTF_8);
+        }
+
+        /** A new, available view of item {@code id}, or null if the store does not have it. */
+        public LibraryItem view(int id) {
+            int row = rowOf(id);
+            return row < 0 ? null : viewAt(row);
+        }
+        private LibraryItem viewAt(int row) {
+            int id = ids.getInt(4 * row);
+            switch (kinds.get(row)) {
+                case ItemCodec.BOOK: return new Book(id, this);
+                case ItemCodec.AUDIOBOOK: return new Audiobook(id, this);
+                case ItemCodec.EMAGAZINE: return new EMagazine(id, this);
+                default: throw new IllegalStateException("Unknown item kind in row " + row);
+            }
+        }
+
+        /** Adds a view of every item in the store to {@code catalog}; returns how many were added. */
+        public int addAllTo(LibraryCatalog catalog) {
+            for (int row = 0; row < rows; row++) catalog.addItem(viewAt(row));
+            return rows;
+        }
+    }
+
+    /* ---------------------------
+       Bulk Import
+       --------------------------- */
+    /**
+     * Streams Book / Audiobook / EMagazine records from CSV or JSON Lines into a catalog.
+     * <p>
+     * The file is read with NIO in chunks cut at line ends. Chunks are parsed and validated on a worker pool,
+     * and results are inserted in file order, one {@link LibraryCatalog#addItems} batch per chunk. At most
+     * {@code maxInFlight} chunks are read ahead of the inserter, so memory stays bounded whatever the file size.
+     * A bad line is recorded in the {@link Report} with its line number and skipped.
+     * <p>
+     * CSV: {@code type,id,title,author,extra}, optionally with that header line. Fields may be quoted with
+     * {@code "} (a doubled quote inside is a literal quote). JSON Lines: one flat object per line with
+     * {@code type, id, title, author} and {@code pageCount}, {@code playbackSeconds} or {@code issueNumber}
+     * (or {@code extra}). {@code type} is Book, Audiobook or EMagazine, in any case.
+     */
+    public static class CatalogImporter {
+        public enum Format {
+            CSV, JSON_LINES;
+
+            /** By extension: .csv, otherwise JSON Lines (.jsonl, .ndjson, ...). */
+            public static Format of(Path file) {
+                return file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".csv") ? CSV : JSON_LINES;
+            }
+        }
+
+        public static final class LineError {
+            private final long line;
+            private final String message;
+            LineError(long line, String message) { this.line = line; this.message = message; }
+            public long getLine() { return line; }
+            public String getMessage() { return message; }
+            @Override public String toString() { return "line " + line + ": " + message; }
+        }
+
+        public static final class Report {
+            private long lines, imported, failed;
+            private final List<LineError> errors = new ArrayList<>();
+            public long getLines() { return lines; }
+            public long getImported() { return imported; }
+            /** All rejected lines; {@link #getErrors} holds only the first {@code maxReportedErrors} of them. */
+            public long getFailed() { return failed; }
+            public List<LineError> getErrors() { return Collections.unmodifiableList(errors); }
+            @Override public String toString() {
+                return "Imported " + imported + " of " + lines + " lines, " + failed + " rejected";
+            }
+        }
+
+        private final LibraryCatalog catalog;
+        private final int threads;
+        private int chunkBytes = 4 << 20;
+        private int maxInFlight;
+        private int maxReportedErrors = 1000;
+
+        public CatalogImporter(LibraryCatalog catalog, int threads) {
+            if (threads < 1) throw new IllegalArgumentException("threads must be >= 1");
+            this.catalog = Objects.requireNonNull(catalog);
+            this.threads = threads;
+            this.maxInFlight = 2 * threads;
+        }
+
+        /** Read size; a longer line still works, the buffer grows to fit it. */
+        public void setChunkBytes(int chunkBytes) { this.chunkBytes = Math.max(chunkBytes, 1 << 10); }
+        /** How many parsed-but-not-inserted chunks may exist at once (the backpressure bound). */
+        public void setMaxInFlight(int maxInFlight) { this.maxInFlight = Math.max(maxInFlight, 1); }
+        public void setMaxReportedErrors(int maxReportedErrors) { this.maxReportedErrors = maxReportedErrors; }
+
+        public Report importFile(Path file) throws IOException { return importFile(file, Format.of(file)); }
+
+        public Report importFile(Path file, Format format) throws IOException {
+            Report report = new Report();
+            ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "libranet-import");
+                t.setDaemon(true);
+                return t;
+            });
+            ArrayDeque<Future<Chunk>> inFlight = new ArrayDeque<>();
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                byte[] buf = new byte[chunkBytes];
+                int filled = 0;
+                boolean first = true, eof = false;
+                while (!eof) {
+                    int n = ch.read(ByteBuffer.wrap(buf, filled, buf.length - filled));
+                    if (n < 0) eof = true; else filled += n;
+                    int end = eof ? filled : lastLineEnd(buf, filled);
+                    if (end < 0) { // one line longer than the buffer
+                        if (filled == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+                        continue;
+                    }
+                    if (end > 0) {
+                        byte[] chunk = buf;
+                        int length = end;
+                        boolean skipHeader = first && format == Format.CSV;
+                        while (inFlight.size() >= maxInFlight) insert(inFlight.poll(), report);
+                        inFlight.add(pool.submit(() -> parse(chunk, length, format, skipHeader)));
+                        first = false;
+                        buf = new byte[Math.max(chunkBytes, filled - end)];
+                        System.arraycopy(chunk, end, buf, 0, filled - end);
+                        filled -= end;
+                    }
+                }
+                while (!inFlight.isEmpty()) insert(inFlight.poll(), report);
+            } finally {
+                for (Future<Chunk> f : inFlight) f.cancel(true);
+                pool.shutdownNow();
+            }
+            return report;
+        }
+
+        private static int lastLineEnd(byte[] buf, int filled) {
+            for (int i = filled - 1; i >= 0; i--) if (buf[i] == '\n') return i + 1;
+            return -1;
+        }
+
+        // runs on the calling thread, in file order
+        private void insert(Future<Chunk> future, Report report) throws IOException {
+            Chunk c;
+            try {
+                c = future.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Import interrupted");
+            } catch (ExecutionException ex) {
+                throw new IOException("Import failed", ex.getCause());
+            }
+            long base = report.lines;
+            List<LibraryItem> batch = new ArrayList<>(c.items.size());
+            Set<Integer> ids = new HashSet<>();
+            for (int i = 0; i < c.items.size(); i++) {
+                LibraryItem item = c.items.get(i);
+                if (catalog.items.get(item.getId()) != null || !ids.add(item.getId())) {
+                    c.errors.add(new LineError(c.itemLines.get(i), "Duplicate item id " + item.getId()));
+                } else {
+                    batch.add(item);
+                }
+            }
+            catalog.addItems(batch);
+            c.errors.sort(Comparator.comparingLong(LineError::getLine));
+            for (LineError e : c.errors) {
+                if (report.errors.size() < maxReportedErrors) report.errors.add(new LineError(base + e.line, e.message));
+            }
+            report.lines += c.lines;
+            report.imported += batch.size();
+            report.failed += c.errors.size();
+        }
+
+        /* ----- parsing (worker threads) ----- */
+
+        private static final class Chunk {
+            final List<LibraryItem> items = new ArrayList<>();
+            final List<Integer> itemLines = new ArrayList<>(); // chunk-relative, 1-based
+            final List<LineError> errors = new ArrayList<>();
+            int lines;
+        }
+
+        private static final class BadLine extends LibraryException {
+            private static final long serialVersionUID = 1L;
+            BadLine(String m) { super(m, false); }
+        }
+
+        private static Chunk parse(byte[] buf, int length, Format format, boolean skipHeader) {
+            Chunk c = new Chunk();
+            int start = 0;
+            while (start < length) {
+                int end = start;
+                while (end < length && buf[end] != '\n') end++;
+                int next = end + 1;
+                if (end > start && buf[end - 1] == '\r') end--;
+                c.lines++;
+                boolean header = skipHeader && c.lines == 1 && startsWithIgnoreCase(buf, start, end, "type,");
+                if (end > start && !header) {
+                    try {
+                        c.items.add(format == Format.CSV ? parseCsv(buf, start, end) : parseJson(buf, start, end));
+                        c.itemLines.add(c.lines);
+                    } catch (LibraryException ex) {
+                        c.errors.add(new LineError(c.lines, ex.getMessage()));
+                    }
+                }
+                start = next;
+            }
+            return c;
+        }
+
+        private static boolean startsWithIgnoreCase(byte[] buf, int start, int end, String prefix) {
+            if (end - start < prefix.length()) return false;
+            for (int i = 0; i < prefix.length(); i++) {
+                if (Character.toLowerCase((char) buf[start + i]) != prefix.charAt(i)) return false;
+            }
+            return true;
+        }
+
+        private static LibraryItem parseCsv(byte[] buf, int start, int end) throws LibraryException {
+            int[] bounds = new int[2];
+            int pos = start;
+            String type = null, title = null, author = null;
+            int id = 0;
+            long extra = 0;
+            for (int field = 0; field < 5; field++) {
+                if (pos > end) throw new BadLine("Expected 5 fields, found " + field);
+                pos = csvField(buf, pos, end, bounds);
+                boolean quoted = bounds[0] < 0;
+                int from = quoted ? ~bounds[0] : bounds[0], to = bounds[1];
+                switch (field) {
+                    case 0: type = utf8(buf, from, to, quoted); break;
+                    case 1: id = IdParser.parseId(buf, from, to - from); break;
+                    case 2: title = utf8(buf, from, to, quoted); break;
+                    case 3: author = utf8(buf, from, to, quoted); break;
+                    default: extra = parseNumber(buf, from, to, "extra");
+                }
+            }
+            if (pos <= end) throw new BadLine("Expected 5 fields, found more");
+            return create(type, id, title, author, extra);
+        }
+
+        // fills bounds with [from, to) (from complemented if the field was quoted) and returns the next field's start
+        private static int csvField(byte[] buf, int pos, int end, int[] bounds) throws BadLine {
+            if (pos < end && buf[pos] == '"') {
+                int i = pos + 1;
+                while (true) {
+                    if (i >= end) throw new BadLine("Unterminated quoted field");
+                    if (buf[i] == '"') {
+                        if (i + 1 < end && buf[i + 1] == '"') { i += 2; continue; }
+                        break;
+                    }
+                    i++;
+                }
+                bounds[0] = ~(pos + 1);
+                bounds[1] = i;
+                if (i + 1 < end && buf[i + 1] != ',') throw new BadLine("Unexpected text after quoted field");
+                return i + 2;
+            }
+            int i = pos;
+            while (i < end && buf[i] != ',') i++;
+            bounds[0] = pos;
+            bounds[1] = i;
+            return i + 1;
+        }
+
+        private static String utf8(byte[] buf, int from, int to, boolean quoted) {
+            String s = new String(buf, from, to - from, StandardCharsets.UTF_8);
+            return quoted ? s.replace("\"\"", "\"") : s.trim();
+        }
+
+        private static LibraryItem parseJson(byte[] buf, int start, int end) throws LibraryException {
+            String type = null, title = null, author = null;
+            int id = -1;
+            long extra = -1;
+            int pos = skipWs(buf, start, end);
+            if (pos >= end || buf[pos] != '{') throw new BadLine("Expected a JSON object");
+            pos = skipWs(buf, pos + 1, end);
+            if (pos < end && buf[pos] == '}') pos++;
+            else while (true) {
+                if (pos >= end || buf[pos] != '"') throw new BadLine("Expected a field name at column " + (pos - start + 1));
+                StringBuilder key = new StringBuilder();
+                pos = jsonString(buf, pos, end, key);
+                pos = skipWs(buf, pos, end);
+                if (pos >= end || buf[pos] != ':') throw new BadLine("Expected ':' after \"" + key + "\"");
+                pos = skipWs(buf, pos + 1, end);
+                int valueStart = pos;
+                StringBuilder text = null;
+                if (pos < end && buf[pos] == '"') {
+                    text = new StringBuilder();
+                    pos = jsonString(buf, pos, end, text);
+                } else {
+                    while (pos < end && buf[pos] != ',' && buf[pos] != '}' && !isWs(buf[pos])) pos++;
+                }
+                int valueEnd = pos;
+                switch (key.toString()) {
+                    case "type": type = requireText(text, "type"); break;
+                    case "title": title = requireText(text, "title"); break;
+                    case "author": author = requireText(text, "author"); break;
+                    case "id":
+                        id = text != null ? IdParser.parseId(text) : IdParser.parseId(buf, valueStart, valueEnd - valueStart);
+                        break;
+                    case "pageCount": case "playbackSeconds": case "issueNumber": case "extra":
+                        if (text != null) throw new BadLine("\"" + key + "\" must be a number");
+                        extra = parseNumber(buf, valueStart, valueEnd, key.toString());
+                        break;
+                    default: // unknown fields are ignored
+                }
+                pos = skipWs(buf, pos, end);
+                if (pos < end && buf[pos] == ',') { pos = skipWs(buf, pos + 1, end); continue; }
+                if (pos < end && buf[pos] == '}') { pos++; break; }
+                throw new BadLine("Expected ',' or '}' at column " + (pos - start + 1));
+            }
+            if (skipWs(buf, pos, end) != end) throw new BadLine("Unexpected text after the object");
+            if (id < 0) throw new BadLine("Missing \"id\"");
+            if (extra < 0) throw new BadLine("Missing pageCount / playbackSeconds / issueNumber");
+            return create(type, id, title, author, extra);
+        }
+
+        private static String requireText(StringBuilder text, String key) throws BadLine {
+            if (text == null) throw new BadLine("\"" + key + "\" must be a string");
+            return text.toString();
+        }
+
+        // appends the decoded string starting at the opening quote; returns the position after the closing one
+        private static int jsonString(byte[] buf, int pos, int end, StringBuilder out) throws BadLine {
+            int i = pos + 1, run = i;
+            while (i < end) {
+                byte b = buf[i];
+                if (b == '"') {
+                    out.append(new String(buf, run, i - run, StandardCharsets.UTF_8));
+                    return i + 1;
+                }
+                if (b != '\\') { i++; continue; }
+                out.append(new String(buf, run, i - run, StandardCharsets.UTF_8));
+                if (i + 1 >= end) break;
+                byte e = buf[i + 1];
+                switch (e) {
+                    case '"': case '\\': case '/': out.append((char) e); break;
+                    case 'b': out.append('\b'); break;
+                    case 'f': out.append('\f'); break;
+                    case 'n': out.append('\n'); break;
+                    case 'r': out.append('\r'); break;
+                    case 't': out.append('\t'); break;
+                    case 'u':
+                        if (i + 6 > end) throw new BadLine("Bad \\u escape");
+                        try { out.append((char) Integer.parseInt(new String(buf, i + 2, 4, StandardCharsets.ISO_8859_1), 16)); }
+                        catch (NumberFormatException ex) { throw new BadLine("Bad \\u escape"); }
+                        i += 4;
+                        break;
+                    default: throw new BadLine("Bad escape \\" + (char) e);
+                }
+                i += 2;
+                run = i;
+            }
+            throw new BadLine("Unterminated string");
+        }
+
+        private static boolean isWs(byte b) { return b == ' ' || b == '\t' || b == '\r' || b == '\n'; }
+        private static int skipWs(byte[] buf, int pos, int end) {
+            while (pos < end && isWs(buf[pos])) pos++;
+            return pos;
+        }
+
+        private static long parseNumber(byte[] buf, int from, int to, String field) throws BadLine {
+            while (from < to && buf[from] == ' ') from++;
+            while (to > from && buf[to - 1] == ' ') to--;
+            if (from == to) throw new BadLine("Missing " + field);
+            long value = 0;
+            for (int i = from; i < to; i++) {
+                int d = buf[i] - '0';
+                if (d < 0 || d > 9) throw new BadLine("Invalid " + field + ": '" + new String(buf, from, to - from, StandardCharsets.UTF_8) + "'");
+                if (value > (Long.MAX_VALUE - d) / 10) throw new BadLine(field + " out of range");
+                value = value * 10 + d;
+            }
+            return value;
+        }
+
+        private static LibraryItem create(String type, int id, String title, String author, long extra) throws BadLine {
+            if (type == null) throw new BadLine("Missing type");
+            if (title == null || title.isEmpty()) throw new BadLine("Missing title");
+            if (author == null || author.isEmpty()) throw new BadLine("Missing author");
+            switch (type.toLowerCase(Locale.ROOT)) {
+                case "book": return new Book(id, title, author, toInt(extra, "pageCount"));
+                case "audiobook": return new Audiobook(id, title, author, extra);
+                case "emagazine": return new EMagazine(id, title, author, toInt(extra, "issueNumber"));
+                default: throw new BadLine("Unknown type '" + type + "'");
+            }
+        }
+        private static int toInt(long v, String field) throws BadLine {
+            if (v > Integer.MAX_VALUE) throw new BadLine(field + " out of range: " + v);
+            return (int) v;
+        }
+    }
+
+    /* ---------------------------
+       Demo / main
+       --------------------------- */
+    public static void main(String[] args) {
+        try {
+            LibraryCatalog catalog = new LibraryCatalog();
+
+            // Create items
+            Book b1 = new Book(IdParser.parseId("101"), "Clean Code", "Robert C. Martin", 464);
+            Audiobook a1 = new Audiobook(IdParser.parseId("202"), "Effective Java (Audio)", "Joshua Bloch", 3600);
+            EMagazine m1 = new EMagazine(IdParser.parseId("303"), "Tech Monthly", "Editor Team", 42);
+
+            catalog.addItem(b1); catalog.addItem(a1); catalog.addItem(m1);
+
+            User u1 = new User(1, "Aisha");
+            User u2 = new User(2, "Vikram");
+
+            // Borrow book
+            System.out.println(catalog.borrowItem(101, u1, "14 days"));
+
+            // Attempting to borrow same book should fail
+            try {
+                catalog.borrowItem(101, u2, "7 days");
+            } catch (ItemUnavailableException ex) {
+                System.out.println("Failure: " + ex.getMessage());
+            }
+
+            // Borrow audiobook
+            System.out.println(catalog.borrowItem(202, u2, "7 days"));
+            a1.play();
+            a1.pause();
+
+            // Return book late by 3 days
+            LocalDate lateReturnDate = catalog.today().plusDays(17);
+            catalog.returnItem(101, lateReturnDate);
+
+            // Archive e-magazine
+            m1.archiveIssue();
+
+            // Search example
+            System.out.println("\nAudiobooks in catalog:");
+            for (LibraryItem it : catalog.searchByType(Audiobook.class)) {
+                System.out.println("   - " + it);
+            }
+
+            // Bad ID parsing
+            try { IdParser.parseId("12a"); } catch (InvalidIdFormatException ex) { System.out.println("Error: " + ex.getMessage()); }
+
+            // Bad duration parsing
+            try { DurationParser.parseToDays("3 eons"); } catch (InvalidDurationFormatException ex) { System.out.println("Error: " + ex.getMessage()); }
+
+            // Fine summary
+            System.out.println("\nUser fines summary:");
+            System.out.printf("- %s: Rs.%s%n", u1, FineLedger.format(catalog.getAccumulatedFineForUser(u1.getId())));
+            System.out.printf("- %s: Rs.%s%n", u2, FineLedger.format(catalog.getAccumulatedFineForUser(u2.getId())));
+
+        } catch (LibraryException ex) {
+            System.err.println("Library error: " + ex.getMessage());
+        }
+    }
+}
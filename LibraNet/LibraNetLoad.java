@@ -0,0 +1,439 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LibraNet Load – a reproducible circulation workload: builds a catalog, simulates users borrowing items with
+ * Zipf-distributed popularity and returning them on time or late, and reports throughput, latency and fines
+ *
+ * Usage: java LibraNetLoad [--items 1000000] [--mix 60,25,15] [--users 100000] [--zipf 1.0]
+ *                          [--threads 4] [--ops 1000000] [--seconds 0] [--seed 42]
+ *                          [--durations "7 days:3,14 days:5,1 month:2"] [--return-share 0.5]
+ *                          [--late-rate 0.1] [--max-late-days 30] [--borrow-limit 0]
+ *                          [--target inprocess|http] [--url http://host:8080]
+ * --mix is the Book / Audiobook / EMagazine split in percent. --target http drives the catalog over the
+ * LibraNetServer API: through a server started in-process on the built catalog, or through --url (a server
+ * started with the same --items; its catalog is not rebuilt). A fixed --ops with one thread is fully repeatable.
+ */
+public class LibraNetLoad {
+    /* ---------------------------
+       Workload
+       --------------------------- */
+
+    /**
+     * Zipf(n, s) ranks 1..n by rejection-inversion (Hörmann and Derflinger), so large catalogs need no CDF table.
+     * Rank 1 is the most popular.
+     */
+    static final class Zipf {
+        private final int n;
+        private final double s, hIntegralX1, hIntegralN, cutoff;
+
+        Zipf(int n, double s) {
+            if (n < 1 || s <= 0) throw new IllegalArgumentException("need n >= 1 and s > 0");
+            this.n = n;
+            this.s = s;
+            this.hIntegralX1 = hIntegral(1.5) - 1;
+            this.hIntegralN = hIntegral(n + 0.5);
+            this.cutoff = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+        }
+
+        int sample(SplittableRandom rnd) {
+            while (true) {
+                double u = hIntegralN + rnd.nextDouble() * (hIntegralX1 - hIntegralN);
+                double x = hIntegralInverse(u);
+                int k = (int) Math.max(1, Math.min(n, (long) (x + 0.5)));
+                if (k - x <= cutoff || u >= hIntegral(k + 0.5) - h(k)) return k;
+            }
+        }
+
+        private double h(double x) { return Math.exp(-s * Math.log(x)); }
+        private double hIntegral(double x) {
+            double logX = Math.log(x);
+            return helper2((1 - s) * logX) * logX;
+        }
+        private double hIntegralInverse(double x) {
+            double t = Math.max(-1, x * (1 - s));
+            return Math.exp(helper1(t) * x);
+        }
+        // log1p(x) / x and expm1(x) / x, with their series near 0
+        private static double helper1(double x) {
+            return Math.abs(x) > 1e-8 ? Math.log1p(x) / x : 1 - x * (0.5 - x * (1.0 / 3 - 0.25 * x));
+        }
+        private static double helper2(double x) {
+            return Math.abs(x) > 1e-8 ? Math.expm1(x) / x : 1 + x * 0.5 * (1 + x / 3 * (1 + 0.25 * x));
+        }
+    }
+
+    static final class Config {
+        int items, users, threads, borrowLimit, maxLateDays;
+        int[] mix;
+        double zipf, returnShare, lateRate;
+        long ops, seconds, seed;
+        String[] durations;
+        int[] durationWeights;
+        String target, url;
+        LocalDate start = LocalDate.of(2025, 1, 1); // the catalog's fixed "today"
+    }
+
+    /** Builds the catalog: ids 1..items, types by --mix, titles and authors from a small vocabulary. */
+    static List<LibraNetDemo.LibraryItem> buildItems(Config cfg) {
+        String[] words = { "river", "night", "ocean", "secret", "garden", "history", "light", "dragon", "science", "winter",
+                           "city", "stone", "empire", "silent", "code", "journey", "storm", "mirror", "forest", "atlas" };
+        SplittableRandom rnd = new SplittableRandom(cfg.seed);
+        List<LibraNetDemo.LibraryItem> items = new ArrayList<>(cfg.items);
+        for (int id = 1; id <= cfg.items; id++) {
+            String title = words[rnd.nextInt(words.length)] + " " + words[rnd.nextInt(words.length)] + " " + id;
+            String author = "Author " + (1 + rnd.nextInt(Math.max(1, cfg.items / 20)));
+            int pick = rnd.nextInt(100);
+            if (pick < cfg.mix[0]) items.add(new LibraNetDemo.Book(id, title, author, 80 + rnd.nextInt(900)));
+            else if (pick < cfg.mix[0] + cfg.mix[1]) items.add(new LibraNetDemo.Audiobook(id, title, author, 1800 + rnd.nextInt(72000)));
+            else items.add(new LibraNetDemo.EMagazine(id, title, author, 1 + rnd.nextInt(52)));
+        }
+        return items;
+    }
+
+    /** Popularity rank -> item id: a seeded permutation, so hot titles are spread over ids and types. */
+    static int[] rankToId(Config cfg) {
+        int[] ids = new int[cfg.items];
+        for (int i = 0; i < ids.length; i++) ids[i] = i + 1;
+        SplittableRandom rnd = new SplittableRandom(cfg.seed ^ 0x5DEECE66DL);
+        for (int i = ids.length - 1; i > 0; i--) {
+            int j = rnd.nextInt(i + 1), t = ids[i];
+            ids[i] = ids[j];
+            ids[j] = t;
+        }
+        return ids;
+    }
+
+    /* ---------------------------
+       Targets
+       --------------------------- */
+
+    /** Borrow / return against some catalog; status plus, on success, the due day or the fine. */
+    interface Target extends AutoCloseable {
+        /** Due date as epoch day on success, or -(status ordinal) - 1 on failure. */
+        long borrow(int itemId, int userId, String duration) throws IOException;
+        /** Fine in paise on success, or -(status ordinal) - 1 on failure. */
+        long giveBack(int itemId, LocalDate date) throws IOException;
+        @Override default void close() throws IOException {}
+    }
+
+    static long failure(LibraNetDemo.BorrowResult.Status status) { return -status.ordinal() - 1; }
+    static LibraNetDemo.BorrowResult.Status statusOf(long code) {
+        return code >= 0 ? LibraNetDemo.BorrowResult.Status.SUCCESS : LibraNetDemo.BorrowResult.Status.values()[(int) (-code - 1)];
+    }
+
+    static final class InProcess implements Target {
+        private final LibraNetDemo.LibraryCatalog catalog;
+        private final Map<Integer, LibraNetDemo.User> users = new HashMap<>(); // per thread, so no sharing
+        InProcess(LibraNetDemo.LibraryCatalog catalog) { this.catalog = catalog; }
+
+        @Override public long borrow(int itemId, int userId, String duration) {
+            LibraNetDemo.User user = users.computeIfAbsent(userId, id -> new LibraNetDemo.User(id, "user-" + id));
+            LibraNetDemo.BorrowResult r = catalog.tryBorrow(itemId, user, duration);
+            return r.isSuccess() ? r.getRecord().getDueEpochDay() : failure(r.getStatus());
+        }
+        @Override public long giveBack(int itemId, LocalDate date) {
+            LibraNetDemo.BorrowResult r = catalog.tryReturn(itemId, date);
+            return r.isSuccess() ? r.getFine().movePointRight(2).longValueExact() : failure(r.getStatus());
+        }
+    }
+
+    /** One keep-alive HTTP/1.1 connection to a LibraNetServer; blocking, one request at a time. */
+    static final class Http implements Target {
+        private final Socket socket;
+        private final OutputStream out;
+        private final InputStream in;
+        private final String host;
+        private byte[] body = new byte[4096];
+
+        Http(InetSocketAddress address) throws IOException {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(address);
+            out = socket.getOutputStream();
+            in = new BufferedInputStream(socket.getInputStream(), 8192);
+            host = address.getHostString() + ":" + address.getPort();
+        }
+
+        @Override public long borrow(int itemId, int userId, String duration) throws IOException {
+            String json = post("/items/" + itemId + "/borrow?user=" + userId + "&duration=" + URLEncoder.encode(duration, StandardCharsets.UTF_8));
+            LibraNetDemo.BorrowResult.Status status = status(json);
+            if (status != LibraNetDemo.BorrowResult.Status.SUCCESS) return failure(status);
+            return LocalDate.parse(field(json, "dueDate")).toEpochDay();
+        }
+        @Override public long giveBack(int itemId, LocalDate date) throws IOException {
+            String json = post("/items/" + itemId + "/return?date=" + date);
+            LibraNetDemo.BorrowResult.Status status = status(json);
+            if (status != LibraNetDemo.BorrowResult.Status.SUCCESS) return failure(status);
+            return new BigDecimal(field(json, "fine")).movePointRight(2).longValueExact();
+        }
+
+        private String post(String path) throws IOException {
+            out.write(("POST " + path + " HTTP/1.1\r\nHost: " + host + "\r\nContent-Length: 0\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            int length = -1;
+            for (String line; !(line = readLine()).isEmpty(); ) {
+                if (line.regionMatches(true, 0, "content-length:", 0, 15)) length = Integer.parseInt(line.substring(15).trim());
+            }
+            if (length < 0) throw new IOException("Response without Content-Length");
+            if (length > body.length) body = new byte[length];
+            for (int n = 0; n < length; ) {
+                int r = in.read(body, n, length - n);
+                if (r < 0) throw new IOException("Connection closed mid-response");
+                n += r;
+            }
+            return new String(body, 0, length, StandardCharsets.UTF_8);
+        }
+        private String readLine() throws IOException {
+            StringBuilder sb = new StringBuilder(64);
+            for (int c; (c = in.read()) != '\n'; ) {
+                if (c < 0) throw new IOException("Connection closed by server");
+                if (c != '\r') sb.append((char) c);
+            }
+            return sb.toString();
+        }
+        private static LibraNetDemo.BorrowResult.Status status(String json) {
+            return LibraNetDemo.BorrowResult.Status.valueOf(field(json, "status"));
+        }
+        // value of a top-level or nested string field in the server's flat JSON
+        private static String field(String json, String name) {
+            int at = json.indexOf("\"" + name + "\":\"");
+            if (at < 0) throw new IllegalStateException("No " + name + " in " + json);
+            int start = at + name.length() + 4;
+            return json.substring(start, json.indexOf('"', start));
+        }
+
+        @Override public void close() throws IOException { socket.close(); }
+    }
+
+    /* ---------------------------
+       Simulation
+       --------------------------- */
+    static final class Loan {
+        final int itemId, userId;
+        final long dueDay;
+        Loan(int itemId, int userId, long dueDay) { this.itemId = itemId; this.userId = userId; this.dueDay = dueDay; }
+    }
+
+    static final class Stats {
+        final LibraNetDemo.LatencyHistogram borrowLatency = new LibraNetDemo.LatencyHistogram();
+        final LibraNetDemo.LatencyHistogram returnLatency = new LibraNetDemo.LatencyHistogram();
+        final LongAdder[] borrows = adders(), returns = adders();
+        final LongAdder lateReturns = new LongAdder(), finePaise = new LongAdder();
+
+        private static LongAdder[] adders() {
+            LongAdder[] a = new LongAdder[LibraNetDemo.BorrowResult.Status.values().length];
+            for (int i = 0; i < a.length; i++) a[i] = new LongAdder();
+            return a;
+        }
+        static long total(LongAdder[] a) {
+            long n = 0;
+            for (LongAdder x : a) n += x.sum();
+            return n;
+        }
+    }
+
+    /**
+     * One simulated desk: serves users u with u % threads == worker, so each user's open loans live on one
+     * thread. Each step returns the oldest open loan (with probability --return-share) or borrows a
+     * Zipf-popular item for a random user. Returns land before the due date, or 1..--max-late-days after it
+     * with probability --late-rate.
+     */
+    static void worker(Config cfg, int worker, Target target, int[] rankToId, Zipf zipf, long ops, long deadline, Stats stats)
+            throws IOException {
+        SplittableRandom rnd = new SplittableRandom(cfg.seed * 31 + worker);
+        int usersHere = (cfg.users - worker + cfg.threads - 1) / cfg.threads;
+        if (usersHere <= 0) return;
+        int totalWeight = Arrays.stream(cfg.durationWeights).sum();
+        ArrayDeque<Loan> open = new ArrayDeque<>();
+        long today = cfg.start.toEpochDay();
+        for (long op = 0; op < ops && (deadline == 0 || (op & 63) != 0 || System.nanoTime() < deadline); op++) {
+            if (!open.isEmpty() && rnd.nextDouble() < cfg.returnShare) {
+                Loan loan = open.poll();
+                boolean late = rnd.nextDouble() < cfg.lateRate;
+                long day = late ? loan.dueDay + 1 + rnd.nextInt(cfg.maxLateDays)
+                                : today + rnd.nextLong(Math.max(1, loan.dueDay - today + 1));
+                long start = System.nanoTime();
+                long r = target.giveBack(loan.itemId, LocalDate.ofEpochDay(day));
+                stats.returnLatency.record(System.nanoTime() - start);
+                stats.returns[statusOf(r).ordinal()].increment();
+                if (r > 0) {
+                    stats.lateReturns.increment();
+                    stats.finePaise.add(r);
+                }
+            } else {
+                int userId = 1 + worker + cfg.threads * rnd.nextInt(usersHere);
+                int itemId = rankToId[zipf.sample(rnd) - 1];
+                String duration = pick(cfg.durations, cfg.durationWeights, totalWeight, rnd);
+                long start = System.nanoTime();
+                long r = target.borrow(itemId, userId, duration);
+                stats.borrowLatency.record(System.nanoTime() - start);
+                stats.borrows[statusOf(r).ordinal()].increment();
+                if (r >= 0) open.add(new Loan(itemId, userId, r));
+            }
+        }
+    }
+
+    static String pick(String[] values, int[] weights, int total, SplittableRandom rnd) {
+        int x = rnd.nextInt(total);
+        for (int i = 0; i < values.length; i++) if ((x -= weights[i]) < 0) return values[i];
+        return values[values.length - 1];
+    }
+
+    /* ---------------------------
+       Main
+       --------------------------- */
+    public static void main(String[] args) throws Exception {
+        LibraNetServer.useServerDefaults(); // --target http may start a server in-process
+        Map<String, String> params = new LinkedHashMap<>();
+        params.put("items", "1000000");
+        params.put("mix", "60,25,15");
+        params.put("users", "100000");
+        params.put("zipf", "1.0");
+        params.put("threads", String.valueOf(Math.max(2, Runtime.getRuntime().availableProcessors())));
+        params.put("ops", "1000000");
+        params.put("seconds", "0");
+        params.put("seed", "42");
+        params.put("durations", "7 days:3,14 days:5,1 month:2");
+        params.put("return-share", "0.5");
+        params.put("late-rate", "0.1");
+        params.put("max-late-days", "30");
+        params.put("borrow-limit", "0");
+        params.put("target", "inprocess");
+        params.put("url", "");
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--") || !params.containsKey(args[i].substring(2))) {
+                System.err.println("Unknown option: " + args[i]);
+                return;
+            }
+            params.put(args[i].substring(2), args[i + 1]);
+        }
+        Config cfg = new Config();
+        cfg.items = Integer.parseInt(params.get("items"));
+        cfg.mix = Arrays.stream(params.get("mix").split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+        cfg.users = Integer.parseInt(params.get("users"));
+        cfg.zipf = Double.parseDouble(params.get("zipf"));
+        cfg.threads = Integer.parseInt(params.get("threads"));
+        cfg.ops = Long.parseLong(params.get("ops"));
+        cfg.seconds = Long.parseLong(params.get("seconds"));
+        cfg.seed = Long.parseLong(params.get("seed"));
+        String[] durations = params.get("durations").split(",");
+        cfg.durations = new String[durations.length];
+        cfg.durationWeights = new int[durations.length];
+        for (int i = 0; i < durations.length; i++) {
+            String[] parts = durations[i].split(":");
+            cfg.durations[i] = parts[0].trim();
+            cfg.durationWeights[i] = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+            LibraNetDemo.DurationParser.parseToDays(cfg.durations[i]); // fail fast on a typo
+        }
+        cfg.returnShare = Double.parseDouble(params.get("return-share"));
+        cfg.lateRate = Double.parseDouble(params.get("late-rate"));
+        cfg.maxLateDays = Integer.parseInt(params.get("max-late-days"));
+        cfg.borrowLimit = Integer.parseInt(params.get("borrow-limit"));
+        cfg.target = params.get("target");
+        cfg.url = params.get("url");
+        if (cfg.mix.length != 3 || cfg.mix[0] + cfg.mix[1] + cfg.mix[2] != 100) throw new IllegalArgumentException("--mix must be three percentages adding up to 100");
+        if (!cfg.target.equals("inprocess") && !cfg.target.equals("http")) throw new IllegalArgumentException("--target must be inprocess or http");
+
+        System.out.printf("LibraNet load: %,d items (mix %s), %,d users, zipf s=%.2f, %d threads, target=%s%n",
+                cfg.items, params.get("mix"), cfg.users, cfg.zipf, cfg.threads, cfg.target + (cfg.url.isEmpty() ? "" : " " + cfg.url));
+        LibraNetDemo.LibraryCatalog catalog = null;
+        LibraNetServer server = null;
+        InetSocketAddress address = null;
+        if (cfg.url.isEmpty()) {
+            long t0 = System.nanoTime();
+            catalog = new LibraNetDemo.LibraryCatalog(Clock.fixed(cfg.start.atStartOfDay(ZoneOffset.UTC).toInstant(), ZoneOffset.UTC));
+            catalog.setEventSink(LibraNetDemo.LibraryEventSink.NO_OP);
+            catalog.setBorrowLimit(cfg.borrowLimit);
+            catalog.addItems(buildItems(cfg));
+            System.out.printf("catalog built in %d ms%n", (System.nanoTime() - t0) / 1_000_000);
+            if (cfg.target.equals("http")) {
+                server = new LibraNetServer(catalog, new InetSocketAddress("127.0.0.1", 0), 0);
+                address = server.getAddress();
+            }
+        } else {
+            URI uri = URI.create(cfg.url);
+            address = new InetSocketAddress(uri.getHost(), uri.getPort() < 0 ? 80 : uri.getPort());
+        }
+
+        int[] rankToId = rankToId(cfg);
+        Zipf zipf = new Zipf(cfg.items, cfg.zipf);
+        Stats stats = new Stats();
+        long opsPerThread = cfg.seconds > 0 ? Long.MAX_VALUE : (cfg.ops + cfg.threads - 1) / cfg.threads;
+        Throwable[] failure = new Throwable[1];
+        CountDownLatch ready = new CountDownLatch(cfg.threads), go = new CountDownLatch(1), finished = new CountDownLatch(cfg.threads);
+        long[] deadline = new long[1];
+        for (int t = 0; t < cfg.threads; t++) {
+            final int worker = t;
+            final LibraNetDemo.LibraryCatalog c = catalog;
+            final InetSocketAddress a = address;
+            Thread thread = new Thread(() -> {
+                try (Target target = a == null ? new InProcess(c) : new Http(a)) {
+                    ready.countDown();
+                    go.await();
+                    worker(cfg, worker, target, rankToId, zipf, opsPerThread, deadline[0], stats);
+                } catch (Throwable e) {
+                    synchronized (failure) { if (failure[0] == null) failure[0] = e; }
+                } finally {
+                    finished.countDown();
+                }
+            }, "desk-" + t);
+            thread.start();
+        }
+        ready.await();
+        long start = System.nanoTime();
+        deadline[0] = cfg.seconds > 0 ? start + cfg.seconds * 1_000_000_000L : 0; // published by go.countDown()
+        go.countDown();
+        finished.await();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        if (server != null) server.close();
+        if (failure[0] != null) throw new IllegalStateException("worker failed", failure[0]);
+
+        long borrows = Stats.total(stats.borrows), returns = Stats.total(stats.returns);
+        System.out.printf("ops=%,d in %.2f s: %.1f ops/s%n", borrows + returns, elapsed, (borrows + returns) / elapsed);
+        System.out.printf("borrows=%,d %s%n", borrows, outcomes(stats.borrows));
+        System.out.printf("returns=%,d %s, late=%,d%n", returns, outcomes(stats.returns), stats.lateReturns.sum());
+        report("borrow", stats.borrowLatency.snapshot());
+        report("return", stats.returnLatency.snapshot());
+        BigDecimal fines = BigDecimal.valueOf(stats.finePaise.sum(), 2);
+        System.out.printf("fines charged: Rs.%s%n", fines.toPlainString());
+        if (catalog != null) {
+            BigDecimal ledger = BigDecimal.ZERO;
+            for (int u = 1; u <= cfg.users; u++) ledger = ledger.add(catalog.getAccumulatedFineForUser(u));
+            System.out.printf("fine ledger total: Rs.%s (%s), open loans: %,d%n", ledger.setScale(2).toPlainString(),
+                    ledger.compareTo(fines) == 0 ? "matches" : "MISMATCH", catalog.countByStatus(LibraNetDemo.AvailabilityStatus.BORROWED));
+            catalog.close();
+        }
+    }
+
+    static String outcomes(LongAdder[] counts) {
+        StringJoiner j = new StringJoiner(", ", "(", ")");
+        for (LibraNetDemo.BorrowResult.Status s : LibraNetDemo.BorrowResult.Status.values()) {
+            long n = counts[s.ordinal()].sum();
+            if (n > 0) j.add(s + "=" + String.format("%,d", n));
+        }
+        return j.toString();
+    }
+
+    static void report(String name, LibraNetDemo.LatencyHistogram.Snapshot h) {
+        if (h.count == 0) return;
+        System.out.printf("%-6s latency: p50<=%s p90<=%s p99<=%s p99.9<=%s mean=%.1fus%n", name,
+                micros(h.quantileNanos(0.50)), micros(h.quantileNanos(0.90)), micros(h.quantileNanos(0.99)),
+                micros(h.quantileNanos(0.999)), h.totalNanos / 1e3 / h.count);
+    }
+    static String micros(long nanos) { return nanos >= 1_000_000 ? nanos / 1_000_000 + "ms" : String.format("%.1fus", nanos / 1e3); }
+}
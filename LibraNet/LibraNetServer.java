@@ -0,0 +1,553 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.StandardSocketOptions;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LibraNet HTTP server – the catalog as a small JSON API on the JDK's built-in HTTP server
+ *
+ *   GET  /items/{id}                              one item
+ *   GET  /items?type=book|audiobook|emagazine&offset=0&limit=100
+ *   GET  /search?q=tolkien+ring*&limit=10
+ *   POST /items/{id}/borrow?user=7&duration=14+days
+ *   POST /items/{id}/return[?date=2025-01-20]
+ *   GET  /users/{id}/fines, GET /users/{id}/loans
+ *   GET  /metrics                                 Prometheus text
+ *
+ * Each request runs on its own virtual thread when the JVM has them (Java 21+), otherwise on a fixed pool.
+ *
+ * Usage: java LibraNetServer [--port 8080] [--items 100000] [--wal-dir dir] [--threads 0]
+ *        java LibraNetServer --load-test true [--url http://host:8080] [--connections 10000] [--seconds 10]
+ *                            [--client-threads N]
+ * Without --url the load test starts its own server in-process; with 10K connections give the client its own
+ * process (each side needs one file descriptor per connection).
+ */
+public class LibraNetServer implements AutoCloseable {
+    private final LibraNetDemo.LibraryCatalog catalog;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+
+    private static final Map<String, Class<? extends LibraNetDemo.LibraryItem>> TYPES = Map.of(
+            "item", LibraNetDemo.LibraryItem.class, "book", LibraNetDemo.Book.class,
+            "audiobook", LibraNetDemo.Audiobook.class, "emagazine", LibraNetDemo.EMagazine.class);
+
+    /** {@code threads} sizes the fallback pool when there are no virtual threads (0: 8 per CPU). */
+    public LibraNetServer(LibraNetDemo.LibraryCatalog catalog, InetSocketAddress address, int threads) throws IOException {
+        this.catalog = Objects.requireNonNull(catalog);
+        ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+        this.virtualThreads = virtual != null;
+        this.executor = virtual != null ? virtual
+                : Executors.newFixedThreadPool(threads > 0 ? threads : 8 * Runtime.getRuntime().availableProcessors());
+        this.server = HttpServer.create(address, 16384);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * Tunes the JDK's HTTP server for many keep-alive connections: up to 100000 idle ones are kept (default 200),
+     * and Nagle is off, since headers and body are separate writes and would wait on delayed ACKs. These are
+     * JVM-wide system properties that the JDK reads once, when the first HttpServer in the process is created
+     * (MetricsEndpoint's included), so call this at the top of main or pass them as -D flags. Values already set
+     * with -D are kept.
+     */
+    public static void useServerDefaults() {
+        if (System.getProperty("sun.net.httpserver.maxIdleConnections") == null) {
+            System.setProperty("sun.net.httpserver.maxIdleConnections", "100000");
+        }
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() if this JVM has it; null on older ones
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    public InetSocketAddress getAddress() { return server.getAddress(); }
+    public boolean usesVirtualThreads() { return virtualThreads; }
+
+    @Override public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /* ---------------------------
+       Routing
+       --------------------------- */
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String method = exchange.getRequestMethod();
+            String[] path = exchange.getRequestURI().getRawPath().split("/");
+            Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+            Response r;
+            try {
+                r = route(method, path, query);
+            } catch (BadRequest e) {
+                r = Response.error(400, e.getMessage());
+            }
+            if (r.contentType == null) exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            else exchange.getResponseHeaders().set("Content-Type", r.contentType);
+            byte[] body = r.body.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(r.status, body.length);
+            exchange.getResponseBody().write(body);
+        }
+    }
+
+    private Response route(String method, String[] path, Map<String, String> query) {
+        // path[0] is the empty segment before the leading '/'
+        String root = path.length > 1 ? path[1] : "";
+        boolean get = "GET".equals(method), post = "POST".equals(method);
+        switch (root) {
+            case "items":
+                if (path.length == 2 && get) return searchByType(query);
+                if (path.length == 3 && get) return getItem(id(path[2]));
+                if (path.length == 4 && post && "borrow".equals(path[3])) return borrow(id(path[2]), query);
+                if (path.length == 4 && post && "return".equals(path[3])) return giveBack(id(path[2]), query);
+                break;
+            case "search":
+                if (path.length == 2 && get) return search(query);
+                break;
+            case "users":
+                if (path.length == 4 && get && "fines".equals(path[3])) return fines(id(path[2]));
+                if (path.length == 4 && get && "loans".equals(path[3])) return loans(id(path[2]));
+                break;
+            case "metrics":
+                if (path.length == 2 && get) {
+                    return new Response(200, LibraNetDemo.PrometheusExporter.format(catalog.snapshotMetrics()),
+                            LibraNetDemo.PrometheusExporter.CONTENT_TYPE);
+                }
+                break;
+            default:
+        }
+        return Response.error(get || post ? 404 : 405, "No route for " + method + " " + String.join("/", path));
+    }
+
+    /* ---------------------------
+       Handlers
+       --------------------------- */
+    private Response getItem(int id) {
+        LibraNetDemo.LibraryItem item;
+        try {
+            item = catalog.getItem(id);
+        } catch (LibraNetDemo.ItemNotFoundException e) {
+            return Response.error(404, "Item not found: " + id);
+        }
+        return Response.ok(item(new StringBuilder(256), item).toString());
+    }
+
+    private Response searchByType(Map<String, String> query) {
+        Class<? extends LibraNetDemo.LibraryItem> type = TYPES.get(query.getOrDefault("type", "item").toLowerCase(Locale.ROOT));
+        if (type == null) throw new BadRequest("Unknown type: " + query.get("type"));
+        int offset = intParam(query, "offset", 0), limit = Math.min(intParam(query, "limit", 100), 1000);
+        List<LibraNetDemo.LibraryItem> page = catalog.searchByType(type, offset, limit);
+        StringBuilder sb = new StringBuilder(64 + page.size() * 160);
+        sb.append("{\"total\":").append(catalog.countByType(type)).append(",\"offset\":").append(offset).append(",\"items\":[");
+        for (int i = 0; i < page.size(); i++) item(i == 0 ? sb : sb.append(','), page.get(i));
+        return Response.ok(sb.append("]}").toString());
+    }
+
+    private Response search(Map<String, String> query) {
+        String q = query.get("q");
+        if (q == null || q.isBlank()) throw new BadRequest("Missing q");
+        List<LibraNetDemo.LibraryItem> hits = catalog.search(q, Math.min(intParam(query, "limit", 10), 1000));
+        StringBuilder sb = new StringBuilder(16 + hits.size() * 160).append("{\"items\":[");
+        for (int i = 0; i < hits.size(); i++) item(i == 0 ? sb : sb.append(','), hits.get(i));
+        return Response.ok(sb.append("]}").toString());
+    }
+
+    private Response borrow(int id, Map<String, String> query) {
+        int userId = intParam(query, "user", -1);
+        if (userId < 0) throw new BadRequest("Missing user");
+        String duration = query.getOrDefault("duration", "14 days");
+        LibraNetDemo.BorrowResult r = catalog.tryBorrow(id, new LibraNetDemo.User(userId, "user-" + userId), duration);
+        return result(r);
+    }
+
+    private Response giveBack(int id, Map<String, String> query) {
+        LocalDate date;
+        try {
+            date = query.containsKey("date") ? LocalDate.parse(query.get("date")) : catalog.today();
+        } catch (DateTimeParseException e) {
+            throw new BadRequest("Bad date: " + query.get("date"));
+        }
+        return result(catalog.tryReturn(id, date));
+    }
+
+    private Response fines(int userId) {
+        BigDecimal fine = catalog.getAccumulatedFineForUser(userId);
+        return Response.ok("{\"userId\":" + userId + ",\"fine\":\"" + fine.toPlainString() + "\"}");
+    }
+
+    private Response loans(int userId) {
+        List<LibraNetDemo.BorrowRecord> loans = catalog.getActiveLoans(userId);
+        StringBuilder sb = new StringBuilder(32 + loans.size() * 96).append("{\"userId\":").append(userId).append(",\"loans\":[");
+        for (int i = 0; i < loans.size(); i++) loan(i == 0 ? sb : sb.append(','), loans.get(i));
+        return Response.ok(sb.append("]}").toString());
+    }
+
+    private static Response result(LibraNetDemo.BorrowResult r) {
+        StringBuilder sb = new StringBuilder(160).append("{\"status\":\"").append(r.getStatus()).append('"');
+        if (r.getRecord() != null) loan(sb.append(",\"loan\":"), r.getRecord());
+        if (r.getFine() != null) sb.append(",\"fine\":\"").append(r.getFine().toPlainString()).append('"');
+        sb.append('}');
+        switch (r.getStatus()) {
+            case SUCCESS: return Response.ok(sb.toString());
+            case NOT_FOUND: return new Response(404, sb.toString(), null);
+            case BAD_DURATION: return new Response(400, sb.toString(), null);
+            default: return new Response(409, sb.toString(), null); // UNAVAILABLE, NOT_BORROWED, LIMIT_REACHED, ABORTED
+        }
+    }
+
+    /* ---------------------------
+       JSON and parameters
+       --------------------------- */
+    static final class Response {
+        final int status;
+        final String body, contentType; // null content type: JSON
+        Response(int status, String body, String contentType) { this.status = status; this.body = body; this.contentType = contentType; }
+        static Response ok(String json) { return new Response(200, json, null); }
+        static Response error(int status, String message) {
+            return new Response(status, string(new StringBuilder("{\"error\":"), message).append('}').toString(), null);
+        }
+    }
+
+    static final class BadRequest extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        BadRequest(String message) { super(message, null, false, false); }
+    }
+
+    static StringBuilder item(StringBuilder sb, LibraNetDemo.LibraryItem item) {
+        sb.append("{\"id\":").append(item.getId()).append(",\"type\":\"").append(item.getClass().getSimpleName()).append('"');
+        string(sb.append(",\"title\":"), item.getTitle());
+        string(sb.append(",\"author\":"), item.getAuthor());
+        sb.append(",\"status\":\"").append(item.getStatus()).append('"');
+        if (item instanceof LibraNetDemo.Book) sb.append(",\"pageCount\":").append(((LibraNetDemo.Book) item).getPageCount());
+        if (item instanceof LibraNetDemo.Audiobook) sb.append(",\"playbackSeconds\":").append(((LibraNetDemo.Audiobook) item).getPlaybackSeconds());
+        if (item instanceof LibraNetDemo.EMagazine) {
+            LibraNetDemo.EMagazine m = (LibraNetDemo.EMagazine) item;
+            sb.append(",\"issueNumber\":").append(m.getIssueNumber()).append(",\"archived\":").append(m.isArchived());
+        }
+        LibraNetDemo.BorrowRecord loan = item.getCurrentBorrowRecord();
+        if (loan != null) loan(sb.append(",\"loan\":"), loan);
+        return sb.append('}');
+    }
+
+    static StringBuilder loan(StringBuilder sb, LibraNetDemo.BorrowRecord r) {
+        return sb.append("{\"userId\":").append(r.getUserId()).append(",\"itemId\":").append(r.getItemId())
+                 .append(",\"borrowDate\":\"").append(r.getBorrowDate()).append("\",\"dueDate\":\"").append(r.getDueDate()).append("\"}");
+    }
+
+    static StringBuilder string(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                    else sb.append(c);
+            }
+        }
+        return sb.append('"');
+    }
+
+    private static Map<String, String> query(String raw) {
+        if (raw == null || raw.isEmpty()) return Collections.emptyMap();
+        Map<String, String> out = new HashMap<>();
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            String k = eq < 0 ? pair : pair.substring(0, eq), v = eq < 0 ? "" : pair.substring(eq + 1);
+            try {
+                out.put(URLDecoder.decode(k, StandardCharsets.UTF_8), URLDecoder.decode(v, StandardCharsets.UTF_8));
+            } catch (IllegalArgumentException e) {
+                throw new BadRequest("Bad query parameter: " + pair);
+            }
+        }
+        return out;
+    }
+
+    private static int id(String segment) {
+        try {
+            return LibraNetDemo.IdParser.parseId(segment);
+        } catch (LibraNetDemo.InvalidIdFormatException e) {
+            throw new BadRequest(e.getMessage());
+        }
+    }
+
+    private static int intParam(Map<String, String> query, String name, int dflt) {
+        String v = query.get(name);
+        if (v == null) return dflt;
+        try {
+            int n = Integer.parseInt(v.trim());
+            if (n < 0) throw new BadRequest(name + " must be >= 0");
+            return n;
+        } catch (NumberFormatException e) {
+            throw new BadRequest("Bad " + name + ": " + v);
+        }
+    }
+
+    /* ---------------------------
+       Load test
+       --------------------------- */
+    /**
+     * Closed loop: {@code connections} keep-alive connections each keep one request in flight (70% GET /items/{id},
+     * 10% type pages, 10% borrows, 10% returns over uniformly random items). The client is a plain NIO selector
+     * loop per thread, so it stays cheap next to the server even at 10K connections. Reports throughput, latency
+     * percentiles and errors (anything but 200 / 409, and dropped connections).
+     */
+    static void loadTest(InetSocketAddress server, int items, int connections, int seconds, int threads, PrintStream out)
+            throws Exception {
+        LibraNetDemo.LatencyHistogram latency = new LibraNetDemo.LatencyHistogram();
+        LoadClient[] clients = new LoadClient[Math.max(1, Math.min(threads, connections))];
+        for (int t = 0; t < clients.length; t++) {
+            int n = connections / clients.length + (t < connections % clients.length ? 1 : 0);
+            clients[t] = new LoadClient(server, items, n, latency);
+            Thread thread = new Thread(clients[t], "load-" + t);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        long warmupMs = Math.min(5000, seconds * 1000L / 3);
+        Thread.sleep(warmupMs);
+        for (LoadClient c : clients) c.measuring = true;
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        for (LoadClient c : clients) c.measuring = false;
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long done = 0, errors = 0, open = 0;
+        for (LoadClient c : clients) {
+            c.stop = true;
+            done += c.done.sum();
+            errors += c.errors.sum();
+            open += c.open;
+        }
+        LibraNetDemo.LatencyHistogram.Snapshot h = latency.snapshot();
+        out.printf("load-test connections=%d (open at end %d) seconds=%.1f requests=%d throughput=%.1f req/s errors=%d%n",
+                connections, open, elapsed, done, done / elapsed, errors);
+        out.printf("latency p50<=%.3fms p90<=%.3fms p99<=%.3fms p99.9<=%.3fms mean=%.3fms%n",
+                h.quantileNanos(0.50) / 1e6, h.quantileNanos(0.90) / 1e6, h.quantileNanos(0.99) / 1e6,
+                h.quantileNanos(0.999) / 1e6, h.count == 0 ? 0 : h.totalNanos / 1e6 / h.count);
+    }
+
+    /** One selector thread driving a share of the load test's connections. */
+    static final class LoadClient implements Runnable {
+        final InetSocketAddress server;
+        final int items;
+        final Conn[] conns;
+        final LibraNetDemo.LatencyHistogram latency;
+        final LongAdder done = new LongAdder(), errors = new LongAdder();
+        volatile boolean measuring, stop;
+        volatile int open;
+        private final byte[] host;
+
+        LoadClient(InetSocketAddress server, int items, int connections, LibraNetDemo.LatencyHistogram latency) {
+            this.server = server;
+            this.latency = latency;
+            this.items = items;
+            this.conns = new Conn[connections];
+            this.host = ("Host: " + server.getHostString() + ":" + server.getPort() + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+
+        static final class Conn {
+            SocketChannel channel;
+            ByteBuffer in = ByteBuffer.allocate(4096), out;
+            long sentAt;
+        }
+
+        @Override public void run() {
+            try (Selector selector = Selector.open()) {
+                for (int i = 0; i < conns.length; i++) connect(selector, i);
+                while (!stop) {
+                    selector.select(100);
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        int i = (Integer) key.attachment();
+                        try {
+                            if (key.isConnectable()) {
+                                conns[i].channel.finishConnect();
+                                open++;
+                                send(key, conns[i]);
+                            } else if (key.isWritable()) {
+                                flush(key, conns[i]);
+                            } else if (key.isReadable()) {
+                                receive(key, conns[i]);
+                            }
+                        } catch (IOException e) {
+                            if (measuring) errors.increment();
+                            if (conns[i].channel.isConnected()) open--;
+                            key.cancel();
+                            conns[i].channel.close();
+                            if (!stop) connect(selector, i);
+                        }
+                    }
+                }
+                for (Conn c : conns) if (c != null) c.channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void connect(Selector selector, int i) throws IOException {
+            Conn c = conns[i] != null ? conns[i] : (conns[i] = new Conn());
+            c.in.clear();
+            c.channel = SocketChannel.open();
+            c.channel.configureBlocking(false);
+            c.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            c.channel.connect(server);
+            c.channel.register(selector, SelectionKey.OP_CONNECT, i);
+        }
+
+        private void send(SelectionKey key, Conn c) throws IOException {
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            int id = 1 + rnd.nextInt(items), pick = rnd.nextInt(10);
+            String line;
+            if (pick < 7) line = "GET /items/" + id;
+            else if (pick == 7) line = "GET /items?type=audiobook&limit=20&offset=" + rnd.nextInt(1000);
+            else if (pick == 8) line = "POST /items/" + id + "/borrow?user=" + (1 + rnd.nextInt(1000)) + "&duration=14+days";
+            else line = "POST /items/" + id + "/return";
+            byte[] start = (line + " HTTP/1.1\r\n").getBytes(StandardCharsets.US_ASCII);
+            byte[] tail = line.startsWith("POST") ? "Content-Length: 0\r\n\r\n".getBytes(StandardCharsets.US_ASCII) : CRLF;
+            c.out = ByteBuffer.allocate(start.length + host.length + tail.length).put(start).put(host).put(tail).flip();
+            c.sentAt = System.nanoTime();
+            flush(key, c);
+        }
+        private static final byte[] CRLF = { '\r', '\n' };
+
+        private void flush(SelectionKey key, Conn c) throws IOException {
+            c.channel.write(c.out);
+            key.interestOps(c.out.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        private void receive(SelectionKey key, Conn c) throws IOException {
+            if (!c.in.hasRemaining()) c.in = ByteBuffer.allocate(c.in.capacity() * 2).put(c.in.flip());
+            if (c.channel.read(c.in) < 0) throw new IOException("Connection closed by server");
+            int status = complete(c.in);
+            if (status == 0) return;
+            c.in.clear();
+            if (measuring) {
+                latency.record(System.nanoTime() - c.sentAt);
+                done.increment();
+                if (status != 200 && status != 409) errors.increment();
+            }
+            send(key, c);
+        }
+
+        // status code once the buffer holds a whole response (headers + Content-Length body), else 0
+        private static int complete(ByteBuffer in) throws IOException {
+            byte[] b = in.array();
+            int n = in.position(), headerEnd = -1;
+            for (int i = 3; i < n; i++) {
+                if (b[i] == '\n' && b[i - 1] == '\r' && b[i - 2] == '\n' && b[i - 3] == '\r') { headerEnd = i + 1; break; }
+            }
+            if (headerEnd < 0) return 0;
+            String headers = new String(b, 0, headerEnd, StandardCharsets.US_ASCII);
+            int length = 0, at = headers.toLowerCase(Locale.ROOT).indexOf("content-length:");
+            if (at >= 0) length = Integer.parseInt(headers.substring(at + 15, headers.indexOf('\r', at)).trim());
+            if (n < headerEnd + length) return 0;
+            if (!headers.startsWith("HTTP/1.1 ")) throw new IOException("Not an HTTP/1.1 response");
+            return Integer.parseInt(headers.substring(9, 12));
+        }
+    }
+
+    /* ---------------------------
+       Main
+       --------------------------- */
+    static List<LibraNetDemo.LibraryItem> buildItems(int items) {
+        String[] words = { "river", "night", "ocean", "secret", "garden", "history", "light", "dragon", "science", "winter" };
+        List<LibraNetDemo.LibraryItem> batch = new ArrayList<>(items);
+        for (int id = 1; id <= items; id++) {
+            String title = words[id % words.length] + " " + words[(id / words.length) % words.length] + " " + id;
+            String author = "Author " + (id % 5000);
+            switch (id % 3) {
+                case 0: batch.add(new LibraNetDemo.Book(id, title, author, 100 + id % 900)); break;
+                case 1: batch.add(new LibraNetDemo.Audiobook(id, title, author, 3600 + id % 36000)); break;
+                default: batch.add(new LibraNetDemo.EMagazine(id, title, author, 1 + id % 52));
+            }
+        }
+        return batch;
+    }
+
+    public static void main(String[] args) throws Exception {
+        useServerDefaults(); // before any HttpServer exists
+        Map<String, String> params = new LinkedHashMap<>();
+        params.put("port", "8080");
+        params.put("items", "100000");
+        params.put("wal-dir", "");
+        params.put("threads", "0");
+        params.put("load-test", "false");
+        params.put("url", "");
+        params.put("connections", "10000");
+        params.put("seconds", "10");
+        params.put("client-threads", String.valueOf(Runtime.getRuntime().availableProcessors()));
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--") || !params.containsKey(args[i].substring(2))) {
+                System.err.println("Unknown option: " + args[i]);
+                return;
+            }
+            params.put(args[i].substring(2), args[i + 1]);
+        }
+        int items = Integer.parseInt(params.get("items"));
+        boolean loadTest = Boolean.parseBoolean(params.get("load-test"));
+        int clientThreads = Integer.parseInt(params.get("client-threads"));
+        if (loadTest && !params.get("url").isEmpty()) {
+            URI url = URI.create(params.get("url"));
+            loadTest(new InetSocketAddress(url.getHost(), url.getPort() < 0 ? 80 : url.getPort()), items,
+                    Integer.parseInt(params.get("connections")), Integer.parseInt(params.get("seconds")), clientThreads, System.out);
+            return;
+        }
+
+        LibraNetDemo.LibraryCatalog catalog;
+        if (params.get("wal-dir").isEmpty()) {
+            catalog = new LibraNetDemo.LibraryCatalog();
+            catalog.addItems(buildItems(items));
+        } else {
+            catalog = LibraNetDemo.LibraryCatalog.recover(Paths.get(params.get("wal-dir")), LibraNetDemo.WriteAheadLog.SyncPolicy.INTERVAL);
+            if (catalog.countByType(LibraNetDemo.LibraryItem.class) == 0) catalog.addItems(buildItems(items));
+        }
+        catalog.setEventSink(LibraNetDemo.LibraryEventSink.NO_OP);
+        catalog.setMetrics(new LibraNetDemo.CatalogMetrics());
+        int port = loadTest ? 0 : Integer.parseInt(params.get("port"));
+        try (LibraNetServer server = new LibraNetServer(catalog, new InetSocketAddress(port), Integer.parseInt(params.get("threads")))) {
+            System.out.printf("LibraNet serving %d items on port %d (%s)%n", catalog.countByType(LibraNetDemo.LibraryItem.class),
+                    server.getAddress().getPort(), server.usesVirtualThreads() ? "virtual threads" : "thread pool");
+            if (loadTest) {
+                loadTest(new InetSocketAddress("127.0.0.1", server.getAddress().getPort()), items,
+                        Integer.parseInt(params.get("connections")), Integer.parseInt(params.get("seconds")), clientThreads, System.out);
+            } else {
+                Thread.currentThread().join(); // until the process is stopped
+            }
+        } finally {
+            catalog.close();
+        }
+    }
+}